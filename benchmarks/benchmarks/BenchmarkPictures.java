@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import picture.Picture;
+import picture.Utils;
+
+public class BenchmarkPictures {
+
+  /*
+   * Counts the pixels each benchmark processes. JMH reports an OPERATIONS
+   * counter as a rate alongside the benchmark score, so "pixels" shows up
+   * in pixels per second whatever the image size.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Pixels {
+    public long pixels;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      pixels = 0;
+    }
+  }
+
+  /*
+   * A side x side picture of smooth gradients with low-order noise, so
+   * that compressed formats do real work and no two rows are the same.
+   */
+  public static Picture synthetic(int side, long seed) {
+    Picture picture = Utils.createPicture(side, side);
+    Random random = new Random(seed);
+    int[] row = new int[side];
+    for (int y = 0; y < side; y++) {
+      for (int x = 0; x < side; x++) {
+        int red = (x * 255 / side) ^ random.nextInt(8);
+        int green = (y * 255 / side) ^ random.nextInt(8);
+        int blue = ((x + y) * 127 / side) ^ random.nextInt(8);
+        row[x] = (red << 16) | (green << 8) | blue;
+      }
+      picture.setRow(y, row, 0);
+    }
+    return picture;
+  }
+
+  public static Picture[] syntheticInputs(int side, int count) {
+    Picture[] pictures = new Picture[count];
+    for (int i = 0; i < count; i++) {
+      pictures[i] = synthetic(side, i);
+    }
+    return pictures;
+  }
+
+}
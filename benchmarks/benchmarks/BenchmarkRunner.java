@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the benchmarks with the GC profiler attached, so every result comes
+ * with gc.alloc.rate.norm (bytes allocated per operation) next to the
+ * pixels/s counter. The arguments are the usual JMH ones: regular
+ * expressions selecting benchmarks, "-p side=64,512" to restrict a
+ * parameter, "-rf json -rff results.json" to keep results for comparing
+ * releases, and so on.
+ *
+ * The benchmarks need jmh-core and, at compile time, the
+ * jmh-generator-annprocess annotation processor on the classpath:
+ *
+ *   javac -cp jmh-core.jar:jmh-generator-annprocess.jar:<deps> -d out \
+ *       src/picture/*.java benchmarks/benchmarks/*.java
+ *   java -cp out:jmh-core.jar:<deps> benchmarks.BenchmarkRunner [args]
+ *
+ * The 10000x10000 (100 MP) cases need a few GB of heap; the forks ask for
+ * 4 GB. Pass "-p side=64,512,2048" to skip them on smaller machines.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException,
+      CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+}
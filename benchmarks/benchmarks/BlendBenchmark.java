@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picture.Picture;
+import picture.Process;
+
+/*
+ * Process.blend over N inputs. Only a few distinct pictures are generated
+ * and repeated to make up N, so that 32 inputs of 100 MP still fit in the
+ * heap; blend reads every input in full either way. The pixel count is
+ * input pixels read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class BlendBenchmark {
+
+  private static final int DISTINCT_INPUTS = 4;
+
+  @Param({ "64", "512", "2048", "10000" })
+  public int side;
+
+  @Param({ "2", "8", "32" })
+  public int inputs;
+
+  private Picture[] pictures;
+
+  @Setup
+  public void setUp() {
+    Picture[] distinct = BenchmarkPictures.syntheticInputs(side,
+        Math.min(inputs, DISTINCT_INPUTS));
+    pictures = new Picture[inputs];
+    for (int i = 0; i < inputs; i++) {
+      pictures[i] = distinct[i % distinct.length];
+    }
+  }
+
+  @Benchmark
+  public Picture blend(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side * inputs;
+    return Process.blend(pictures);
+  }
+
+}
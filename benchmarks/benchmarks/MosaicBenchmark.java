@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picture.Picture;
+import picture.Process;
+
+/*
+ * Process.mosaic of four inputs, from one-pixel tiles (all per-tile
+ * overhead) to tiles large enough to be pure copying.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class MosaicBenchmark {
+
+  private static final int INPUTS = 4;
+
+  @Param({ "64", "512", "2048", "10000" })
+  public int side;
+
+  @Param({ "1", "8", "64" })
+  public int tileSize;
+
+  private Picture[] pictures;
+
+  @Setup
+  public void setUp() {
+    pictures = BenchmarkPictures.syntheticInputs(side, INPUTS);
+  }
+
+  @Benchmark
+  public Picture mosaic(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.mosaic(tileSize, pictures);
+  }
+
+}
@@ -0,0 +1,114 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picture.Picture;
+import picture.Process;
+import picture.Tone;
+
+/*
+ * The single-input operations of Process on square synthetic pictures from
+ * 64x64 up to 10000x10000 (100 MP).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class ProcessBenchmark {
+
+  @Param({ "64", "512", "2048", "10000" })
+  public int side;
+
+  private static final Tone TONE =
+      Tone.compile("gamma=2.2", "linear=1.2,-10", "grayscale", "invert");
+
+  private Picture picture;
+  private Picture grayPicture;
+
+  @Setup
+  public void setUp() {
+    picture = BenchmarkPictures.synthetic(side, 0);
+    grayPicture = Process.grayscale(picture);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Rotation {
+    @Param({ "_90", "_180", "_270" })
+    public Process.Angle angle;
+  }
+
+  @State(Scope.Benchmark)
+  public static class Flip {
+    @Param({ "H", "V" })
+    public Process.Direction direction;
+  }
+
+  @Benchmark
+  public Picture invert(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.invert(picture);
+  }
+
+  @Benchmark
+  public Picture grayscale(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.grayscale(picture);
+  }
+
+  @Benchmark
+  public Picture rotate(Rotation rotation, BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.rotate(picture, rotation.angle);
+  }
+
+  @Benchmark
+  public Picture flip(Flip flip, BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.flip(picture, flip.direction);
+  }
+
+  @Benchmark
+  public Picture blur(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.blur(picture);
+  }
+
+  @Benchmark
+  public Picture tone(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.tone(picture, TONE);
+  }
+
+  @Benchmark
+  public Picture gaussian(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.gaussian(picture, 2.0, Process.Border.CLAMP);
+  }
+
+  @Benchmark
+  public Picture sharpen(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.sharpen(picture, Process.Border.CLAMP);
+  }
+
+  @Benchmark
+  public Picture gaussianGray(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Process.gaussian(grayPicture, 2.0, Process.Border.CLAMP);
+  }
+
+}
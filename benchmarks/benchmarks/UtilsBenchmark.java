@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import picture.Picture;
+import picture.PngEncoder;
+import picture.Utils;
+
+/*
+ * Utils.loadPicture and Utils.savePicture for each file format, kept apart
+ * from the Process benchmarks since encoding usually dominates a Main run.
+ * Loading a .praw file only maps it, so its score is the cost of opening
+ * the picture rather than of reading its pixels. The encoder setting
+ * (see PngEncoder.parse) only affects PNG files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class UtilsBenchmark {
+
+  @Param({ "64", "512", "2048", "10000" })
+  public int side;
+
+  @Param({ "png", "ppm", "praw" })
+  public String format;
+
+  @Param({ "default", "fastest" })
+  public String encoder;
+
+  private Picture picture;
+  private File directory;
+  private String input;
+  private String output;
+  private PngEncoder png;
+
+  @Setup
+  public void setUp() throws IOException {
+    picture = BenchmarkPictures.synthetic(side, 0);
+    directory = Files.createTempDirectory("picture-bench").toFile();
+    input = new File(directory, "in." + format).getPath();
+    output = new File(directory, "out." + format).getPath();
+    png = PngEncoder.parse(encoder);
+    if (!Utils.savePicture(picture, input)) {
+      throw new IOException("could not write " + input);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Benchmark
+  public Picture loadPicture(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Utils.loadPicture(input);
+  }
+
+  @Benchmark
+  public boolean savePicture(BenchmarkPictures.Pixels counter) {
+    counter.pixels += (long) side * side;
+    return Utils.savePicture(picture, output, png);
+  }
+
+}
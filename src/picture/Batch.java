@@ -0,0 +1,240 @@
+package picture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many <tt>Main</tt> jobs in one JVM, so that JVM startup and ImageIO
+ * initialisation are paid once rather than per picture. Jobs come from a
+ * manifest, one per line in the usual
+ * <tt>&lt;transformation&gt; &lt;arguments&gt; &lt;inputs&gt; &lt;output&gt;</tt>
+ * form, or from applying one transformation to every file matching a glob.
+ *
+ * Jobs run on a fixed number of worker threads. A job that fails is
+ * reported on its own and does not stop the others; the <tt>Report</tt>
+ * returned at the end counts the failures and the aggregate throughput.
+ */
+public final class Batch {
+
+    /**
+     * One invocation of <tt>Main</tt>, with where it came from for error
+     * messages.
+     */
+    public static final class Job {
+        private final String origin;
+        private final String[] args;
+
+        public Job(String origin, String... args) {
+            this.origin = origin;
+            this.args = args.clone();
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public String[] getArgs() {
+            return args.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", args);
+        }
+    }
+
+    /**
+     * The outcome of a batch: how many jobs ran and failed, how many pixels
+     * the successful ones wrote, and how long the whole batch took.
+     */
+    public static final class Report {
+        private final int jobs;
+        private final int failures;
+        private final long pixels;
+        private final long nanos;
+
+        Report(int jobs, int failures, long pixels, long nanos) {
+            this.jobs = jobs;
+            this.failures = failures;
+            this.pixels = pixels;
+            this.nanos = nanos;
+        }
+
+        public int getJobs() {
+            return jobs;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("%d jobs (%d failed) in %.2f s: "
+                + "%.1f jobs/s, %.1f megapixels/s", jobs, failures, seconds,
+                jobs / seconds, pixels / seconds / 1e6);
+        }
+    }
+
+    /**
+     * Hide default constructor (static methods only).
+     */
+    private Batch() {
+    }
+
+    /**
+     * Read a manifest of jobs. Each non-blank line is split on whitespace
+     * into the arguments of one job; lines starting with <tt>#</tt> are
+     * comments.
+     *
+     * @param manifest
+     *                    the manifest file
+     * @return the jobs in the order they appear.
+     * @throws IOException
+     *                     if the manifest cannot be read.
+     */
+    public static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        try (BufferedReader in = new BufferedReader(
+                new FileReader(manifest))) {
+            int number = 0;
+            for (String line = in.readLine(); line != null;
+                    line = in.readLine()) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                jobs.add(new Job(manifest + ":" + number, line.split("\\s+")));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Make one job per file matching <tt>pattern</tt>, a path whose last
+     * element may be a glob such as <tt>images/*.png</tt>. Each job is
+     * <tt>template</tt> - a transformation and its arguments followed by an
+     * output directory - with the file inserted as the input, and writes a
+     * file of the same name in the output directory.
+     *
+     * @param pattern
+     *                    the files to process
+     * @param template
+     *                    <tt>&lt;transformation&gt; &lt;arguments&gt;
+     *                    &lt;output directory&gt;</tt>
+     * @return the jobs, sorted by input file name.
+     * @throws IOException
+     *                     if the directory cannot be listed.
+     */
+    public static List<Job> glob(String pattern, String[] template)
+            throws IOException {
+        if (template.length < 2) {
+            throw new IllegalArgumentException("A glob batch needs "
+                + "<transformation> <arguments> <output directory>");
+        }
+        File parent = new File(pattern).getAbsoluteFile().getParentFile();
+        String name = new File(pattern).getName();
+        PathMatcher matcher = FileSystems.getDefault()
+            .getPathMatcher("glob:" + name);
+        File[] files = parent.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list " + parent);
+        }
+        Arrays.sort(files);
+
+        File outputs = new File(template[template.length - 1]);
+        List<Job> jobs = new ArrayList<Job>();
+        for (File file : files) {
+            if (!file.isFile()
+                    || !matcher.matches(Paths.get(file.getName()))) {
+                continue;
+            }
+            String[] args = Arrays.copyOf(template, template.length + 1);
+            args[args.length - 2] = file.getPath();
+            args[args.length - 1] = new File(outputs, file.getName())
+                .getPath();
+            jobs.add(new Job(file.getPath(), args));
+        }
+        return jobs;
+    }
+
+    /**
+     * Run <tt>jobs</tt> through <tt>Main</tt> on <tt>workers</tt> threads
+     * and wait for all of them. Each failure is written to <tt>errors</tt>
+     * as it happens, with the job's origin and arguments.
+     *
+     * @param jobs
+     *                    the jobs to run
+     * @param workers
+     *                    the number of jobs to run at once, at least 1
+     * @param errors
+     *                    where to report failed jobs
+     * @return counts and timings for the whole batch.
+     */
+    public static Report run(List<Job> jobs, int workers,
+            final PrintStream errors) {
+        if (workers < 1) {
+            throw new IllegalArgumentException(
+                "a batch needs at least one worker, was " + workers);
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong pixels = new AtomicLong();
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.min(workers, Math.max(1, jobs.size())));
+        try {
+            for (final Job job : jobs) {
+                pool.execute(() -> {
+                    try {
+                        pixels.addAndGet(Main.run(job.args));
+                    } catch (Throwable e) {
+                        // An Error such as OutOfMemoryError on a huge
+                        // picture fails the job too, not the whole batch
+                        failures.incrementAndGet();
+                        errors.println(job.origin + ": " + job + ": "
+                            + (e.getMessage() != null ? e.getMessage()
+                                : e.toString()));
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+        }
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Keep waiting; jobs on large pictures can take a while
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        return new Report(jobs.size(), failures.get(), pixels.get(),
+            System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,160 @@
+package picture;
+
+/**
+ * Blends pictures that arrive one at a time, keeping only a running sum of
+ * each channel of the output. Memory use is three ints per output pixel
+ * however many pictures are added, so hundreds of frames can be blended
+ * without holding more than one of them at once.
+ *
+ * While every picture added is grayscale only one sum is kept, and the
+ * result is a grayscale picture; the first colour picture splits it into
+ * three.
+ *
+ * As with <tt>Process.blend</tt>, the result covers the area common to
+ * every picture added (the smallest width by the smallest height), and each
+ * channel is the floor of the weighted mean of the inputs.
+ */
+public class Blender {
+
+    /** The largest total weight that cannot overflow the running sums. */
+    public static final int MAX_TOTAL_WEIGHT = Integer.MAX_VALUE / 255;
+
+    /**
+     * Running weighted sums, laid out with the first picture's width. While
+     * the blend is gray, <tt>red</tt> holds the sum of the levels and the
+     * others are null.
+     */
+    private int[] red;
+    private int[] green;
+    private int[] blue;
+
+    /** The stride of the sums: the width of the first picture added. */
+    private int stride;
+
+    private int width;
+    private int height;
+    private int totalWeight;
+    private boolean gray;
+
+    /**
+     * Add a picture with weight 1.
+     *
+     * @param picture
+     *                    the picture to blend in
+     */
+    public void add(Picture picture) {
+        add(picture, 1);
+    }
+
+    /**
+     * Add a picture whose pixels count <tt>weight</tt> times towards the
+     * mean.
+     *
+     * @param picture
+     *                    the picture to blend in
+     * @param weight
+     *                    how many times the picture counts, at least 1
+     * @throws IllegalArgumentException
+     *                     if the weight is less than 1, or would take the total
+     *                     weight past <tt>MAX_TOTAL_WEIGHT</tt>.
+     */
+    public void add(Picture picture, final int weight) {
+        if (weight < 1 || weight > MAX_TOTAL_WEIGHT - totalWeight) {
+            throw new IllegalArgumentException("invalid blend weight " + weight
+                + " (total so far " + totalWeight + ")");
+        }
+
+        if (red == null) {
+            stride = width = picture.getWidth();
+            height = picture.getHeight();
+            gray = picture.isGray();
+            red = new int[width * height];
+            if (!gray) {
+                green = new int[width * height];
+                blue = new int[width * height];
+            }
+        } else {
+            // Sums outside the common area are never read again
+            width = Math.min(width, picture.getWidth());
+            height = Math.min(height, picture.getHeight());
+            if (gray && !picture.isGray()) {
+                green = red.clone();
+                blue = red.clone();
+                gray = false;
+            }
+        }
+        totalWeight += weight;
+
+        final int w = width;
+        if (gray) {
+            final byte[] levels = picture.levels();
+            final int pictureWidth = picture.getWidth();
+            Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+                for (int y = fromY; y < toY; y++) {
+                    for (int x = 0, s = y * stride, l = y * pictureWidth;
+                            x < w; x++, s++, l++) {
+                        red[s] += weight * (levels[l] & 0xff);
+                    }
+                }
+            });
+            return;
+        }
+        final Kernels kernels = Kernels.get();
+        final Picture.RowVisitor kernel = (y, row, offset, rowWidth) ->
+            kernels.accumulate(row, offset, weight, red, green, blue,
+                y * stride, w);
+        Scheduler.forEachRowStrip(width, height, 1,
+            (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
+    }
+
+    /**
+     * Return the number of pictures added so far, counted by weight.
+     *
+     * @return the total weight of the pictures added.
+     */
+    public int getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Return the blend of every picture added so far.
+     *
+     * @return a new picture holding the weighted mean of the inputs,
+     *         grayscale if every input was.
+     * @throws IllegalStateException
+     *                     if no picture has been added.
+     */
+    public Picture result() {
+        if (red == null) {
+            throw new IllegalStateException("nothing to blend");
+        }
+        if (gray) {
+            Picture newPicture = Process.grayDestination(width, height);
+            final byte[] dst = newPicture.getGray();
+            final int w = width;
+            final int total = totalWeight;
+            Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+                for (int y = fromY; y < toY; y++) {
+                    for (int x = 0, s = y * stride, d = y * w; x < w;
+                            x++, s++, d++) {
+                        dst[d] = (byte) (red[s] / total);
+                    }
+                }
+            });
+            return newPicture;
+        }
+
+        Picture newPicture = Process.getPool().acquire(width, height);
+        final int[] dst = newPicture.getPixels();
+        final int w = width;
+        final int total = totalWeight;
+        final Kernels kernels = Kernels.get();
+        Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+            for (int y = fromY; y < toY; y++) {
+                kernels.average(red, green, blue, y * stride, total, dst,
+                    y * w, w);
+            }
+        });
+        return newPicture;
+    }
+}
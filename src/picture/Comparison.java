@@ -0,0 +1,315 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * Compares two pictures pixel by pixel, for golden-image checks. Runs of
+ * identical pixels are skipped with <tt>Arrays.mismatch</tt> on the raw
+ * rasters, which the JIT turns into wide vector compares, so comparing
+ * pictures that are (nearly) the same runs at about memory bandwidth;
+ * only the pixels that differ are looked at one by one.
+ *
+ * A pixel differs when any channel differs by more than the tolerance.
+ * The metrics cover the area the two pictures have in common (the smaller
+ * width by the smaller height); pictures of different sizes never match.
+ */
+public final class Comparison {
+
+    /** Roughly how many pixels each band of the comparison covers. */
+    private static final int PIXELS_PER_BAND = Scheduler.PIXELS_PER_STRIP;
+
+    private final Picture expected;
+    private final Picture actual;
+    private final int tolerance;
+    private final int width;
+    private final int height;
+
+    private long differingPixels;
+    private long changedPixels;
+    private int maxDifference;
+    private long sumOfSquares;
+    private long firstDifference = -1;
+
+    private Comparison(Picture expected, Picture actual, int tolerance) {
+        this.expected = expected;
+        this.actual = actual;
+        this.tolerance = tolerance;
+        this.width = Math.min(expected.getWidth(), actual.getWidth());
+        this.height = Math.min(expected.getHeight(), actual.getHeight());
+    }
+
+    /**
+     * Return whether two pictures have the same size and exactly the same
+     * pixels. Stops at the first difference.
+     *
+     * @param a
+     *                    one picture
+     * @param b
+     *                    the other picture
+     * @return true iff the pictures are identical.
+     */
+    public static boolean equal(Picture a, Picture b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        int width = a.getWidth();
+        int height = a.getHeight();
+        int bandRows = bandRows(width);
+        int[] scratchA = a.hasPixels() ? null : new int[bandRows * width];
+        int[] scratchB = b.hasPixels() ? null : new int[bandRows * width];
+        for (int fromY = 0; fromY < height; fromY += bandRows) {
+            int toY = Math.min(height, fromY + bandRows);
+            int length = (toY - fromY) * width;
+            int offsetA = a.rowsOffset(fromY);
+            int offsetB = b.rowsOffset(fromY);
+            if (Arrays.mismatch(a.rows(fromY, toY, scratchA), offsetA,
+                    offsetA + length, b.rows(fromY, toY, scratchB), offsetB,
+                    offsetB + length) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare <tt>actual</tt> against <tt>expected</tt> exactly.
+     *
+     * @see #compare(Picture, Picture, int)
+     */
+    public static Comparison compare(Picture expected, Picture actual) {
+        return compare(expected, actual, 0);
+    }
+
+    /**
+     * Compare <tt>actual</tt> against <tt>expected</tt>, counting a pixel
+     * as different only if some channel differs by more than
+     * <tt>tolerance</tt>, and gather the difference metrics.
+     *
+     * @param expected
+     *                    the reference picture
+     * @param actual
+     *                    the picture to check
+     * @param tolerance
+     *                    the largest per-channel difference that still
+     *                    matches, from 0 (exact) to 255
+     * @return the result of the comparison.
+     * @throws IllegalArgumentException
+     *                     if the tolerance is out of range.
+     */
+    public static Comparison compare(Picture expected, Picture actual,
+            int tolerance) {
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("tolerance must be between 0 "
+                + "and 255, was " + tolerance);
+        }
+        final Comparison comparison = new Comparison(expected, actual,
+            tolerance);
+        final int bandRows = bandRows(comparison.width);
+        int bands = (comparison.height + bandRows - 1) / bandRows;
+        Scheduler.forEachStrip(bands, 1, (from, to) ->
+            comparison.compareRows(from * bandRows,
+                Math.min(comparison.height, to * bandRows)));
+        return comparison;
+    }
+
+    /* Compares rows fromY to toY and merges their metrics in */
+    private void compareRows(int fromY, int toY) {
+        int[] scratchE = expected.hasPixels() ? null : new int[width];
+        int[] scratchA = actual.hasPixels() ? null : new int[width];
+        long differing = 0;
+        long changed = 0;
+        int max = 0;
+        long squares = 0;
+        long first = -1;
+
+        for (int y = fromY; y < toY; y++) {
+            int[] e = expected.rows(y, y + 1, scratchE);
+            int[] a = actual.rows(y, y + 1, scratchA);
+            int offsetE = expected.rowsOffset(y);
+            int offsetA = actual.rowsOffset(y);
+            int x = 0;
+            while (x < width) {
+                int skip = Arrays.mismatch(e, offsetE + x, offsetE + width,
+                    a, offsetA + x, offsetA + width);
+                if (skip < 0) {
+                    break;
+                }
+                x += skip;
+                int p = e[offsetE + x];
+                int q = a[offsetA + x];
+                int red = Math.abs(((p >> 16) & 0xff) - ((q >> 16) & 0xff));
+                int green = Math.abs(((p >> 8) & 0xff) - ((q >> 8) & 0xff));
+                int blue = Math.abs((p & 0xff) - (q & 0xff));
+                int worst = Math.max(red, Math.max(green, blue));
+                // Raw values that differ only in the unused top byte count
+                // as changed but contribute no difference
+                changed++;
+                if (worst > tolerance) {
+                    differing++;
+                    if (first < 0) {
+                        first = (long) y * width + x;
+                    }
+                }
+                max = Math.max(max, worst);
+                squares += red * red + green * green + blue * blue;
+                x++;
+            }
+        }
+
+        synchronized (this) {
+            differingPixels += differing;
+            changedPixels += changed;
+            maxDifference = Math.max(maxDifference, max);
+            sumOfSquares += squares;
+            if (first >= 0 && (firstDifference < 0 || first < firstDifference)) {
+                firstDifference = first;
+            }
+        }
+    }
+
+    /**
+     * Return whether the pictures are the same size and no pixel differs
+     * by more than the tolerance.
+     *
+     * @return true iff the pictures match.
+     */
+    public synchronized boolean matches() {
+        return isSameSize() && differingPixels == 0;
+    }
+
+    /**
+     * Return whether the two pictures have the same width and height.
+     *
+     * @return true iff the sizes agree.
+     */
+    public boolean isSameSize() {
+        return expected.getWidth() == actual.getWidth()
+            && expected.getHeight() == actual.getHeight();
+    }
+
+    /**
+     * Return how many pixels differ by more than the tolerance.
+     *
+     * @return the number of differing pixels.
+     */
+    public synchronized long getDifferingPixels() {
+        return differingPixels;
+    }
+
+    /**
+     * Return how many pixels are not exactly equal, whatever the
+     * tolerance.
+     *
+     * @return the number of changed pixels.
+     */
+    public synchronized long getChangedPixels() {
+        return changedPixels;
+    }
+
+    /**
+     * Return the largest difference in any channel of any pixel.
+     *
+     * @return the maximum channel difference, from 0 to 255.
+     */
+    public synchronized int getMaxDifference() {
+        return maxDifference;
+    }
+
+    /**
+     * Return the x-coordinate of the first differing pixel in row-major
+     * order, or -1 if none differs.
+     *
+     * @return the column of the first difference.
+     */
+    public synchronized int getFirstDifferenceX() {
+        return firstDifference < 0 ? -1 : (int) (firstDifference % width);
+    }
+
+    /**
+     * Return the y-coordinate of the first differing pixel in row-major
+     * order, or -1 if none differs.
+     *
+     * @return the row of the first difference.
+     */
+    public synchronized int getFirstDifferenceY() {
+        return firstDifference < 0 ? -1 : (int) (firstDifference / width);
+    }
+
+    /**
+     * Return the mean squared difference per channel over the common area.
+     *
+     * @return the mean squared error.
+     */
+    public synchronized double getMeanSquaredError() {
+        long samples = 3L * width * height;
+        return samples == 0 ? 0 : (double) sumOfSquares / samples;
+    }
+
+    /**
+     * Return the peak signal-to-noise ratio in decibels, or positive
+     * infinity if the common areas are identical.
+     *
+     * @return the PSNR of actual against expected.
+     */
+    public double getPsnr() {
+        double mse = getMeanSquaredError();
+        return mse == 0 ? Double.POSITIVE_INFINITY
+            : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    /**
+     * Return a picture of the common area whose channels are the absolute
+     * differences between the two pictures: black where they agree,
+     * brighter the more they differ.
+     *
+     * @return a new picture showing the differences.
+     */
+    public Picture diffImage() {
+        Picture diff = Utils.createPicture(width, height);
+        final int[] dst = diff.getPixels();
+        Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+            int[] scratchE = expected.hasPixels() ? null : new int[width];
+            int[] scratchA = actual.hasPixels() ? null : new int[width];
+            for (int y = fromY; y < toY; y++) {
+                int[] e = expected.rows(y, y + 1, scratchE);
+                int[] a = actual.rows(y, y + 1, scratchA);
+                int offsetE = expected.rowsOffset(y);
+                int offsetA = actual.rowsOffset(y);
+                for (int x = 0; x < width; x++) {
+                    int p = e[offsetE + x];
+                    int q = a[offsetA + x];
+                    dst[y * width + x] =
+                        (Math.abs(((p >> 16) & 0xff) - ((q >> 16) & 0xff)) << 16)
+                        | (Math.abs(((p >> 8) & 0xff) - ((q >> 8) & 0xff)) << 8)
+                        | Math.abs((p & 0xff) - (q & 0xff));
+                }
+            }
+        });
+        return diff;
+    }
+
+    /**
+     * Summarise the comparison on one line.
+     */
+    @Override
+    public String toString() {
+        if (!isSameSize()) {
+            return String.format("size differs: %dx%d expected, %dx%d actual",
+                expected.getWidth(), expected.getHeight(), actual.getWidth(),
+                actual.getHeight());
+        }
+        if (matches()) {
+            return String.format("match (%d pixels changed within tolerance "
+                + "%d, max difference %d, PSNR %.2f dB)", getChangedPixels(),
+                tolerance, getMaxDifference(), getPsnr());
+        }
+        return String.format("%d pixels differ by more than %d, first at "
+            + "(%d,%d); max difference %d, PSNR %.2f dB",
+            getDifferingPixels(), tolerance, getFirstDifferenceX(),
+            getFirstDifferenceY(), getMaxDifference(), getPsnr());
+    }
+
+    private static int bandRows(int width) {
+        return Math.max(1, PIXELS_PER_BAND / Math.max(1, width));
+    }
+}
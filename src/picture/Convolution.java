@@ -0,0 +1,458 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * A convolution kernel with fixed-point integer weights, for
+ * <tt>Process.convolve</tt>. Kernels have odd sides and are centred on the
+ * pixel being computed; each output channel is the weighted sum of the
+ * same channel of the pixels under the kernel, plus a bias, rounded and
+ * clamped to [0, 255].
+ *
+ * Weights are given as doubles and quantized once, when the kernel is
+ * built. A kernel whose weights are the outer product of a column and a
+ * row (a Gaussian, a box, a Sobel operator) is detected as separable and
+ * run as a horizontal pass followed by a vertical one, costing
+ * <tt>width + height</tt> multiplications per channel rather than
+ * <tt>width * height</tt>. Each pass has <tt>PASS_BITS</tt> fractional
+ * bits; the horizontal results keep <tt>INTERMEDIATE_BITS</tt> of them, so
+ * everything fits in an int. Other kernels are applied directly with
+ * <tt>DIRECT_BITS</tt> fractional bits. The quantized weights of a kernel
+ * whose weights sum to 1 sum exactly to 1 too, so flat areas come out
+ * unchanged.
+ */
+public final class Convolution {
+
+    /** Fractional bits of the weights of each pass of a separable kernel. */
+    public static final int PASS_BITS = 12;
+
+    /** Fractional bits kept between the two passes of a separable kernel. */
+    public static final int INTERMEDIATE_BITS = 4;
+
+    /** Fractional bits of the weights of a kernel that is not separable. */
+    public static final int DIRECT_BITS = 12;
+
+    /** The largest side of a kernel. */
+    public static final int MAX_SIDE = 2 * Process.MAX_BLUR_RADIUS + 1;
+
+    /** The largest Gaussian standard deviation; its kernel is 6 sigma wide. */
+    public static final double MAX_SIGMA = Process.MAX_BLUR_RADIUS / 3.0;
+
+    /* The largest sum of absolute weights that cannot overflow an int,
+     * leaving room for the rounding term */
+    private static final long MAX_NORM = (Integer.MAX_VALUE >> 1) / 255;
+
+    /**
+     * Sharpens edges: each pixel plus four times itself less its four
+     * neighbours.
+     */
+    public static final Convolution SHARPEN = of(3, 3,
+         0, -1,  0,
+        -1,  5, -1,
+         0, -1,  0);
+
+    /** A relief lit from the top left, flat areas becoming mid gray. */
+    public static final Convolution EMBOSS = of(3, 3,
+        -1, -1,  0,
+        -1,  0,  1,
+         0,  1,  1).withBias(128);
+
+    /** The horizontal Sobel operator, the change from left to right. */
+    public static final Convolution SOBEL_X = separable(
+        new double[] { 1, 2, 1 }, new double[] { -1, 0, 1 });
+
+    /** The vertical Sobel operator, the change from top to bottom. */
+    public static final Convolution SOBEL_Y = separable(
+        new double[] { -1, 0, 1 }, new double[] { 1, 2, 1 });
+
+    private final int width;
+    private final int height;
+    private final int bias;
+    /* For separable kernels: the quantized row and column weights */
+    private final int[] row;
+    private final int[] column;
+    /* For other kernels: the quantized weights, row by row */
+    private final int[] weights;
+
+    private Convolution(int width, int height, int bias, int[] row,
+            int[] column, int[] weights) {
+        this.width = width;
+        this.height = height;
+        this.bias = bias;
+        this.row = row;
+        this.column = column;
+        this.weights = weights;
+    }
+
+    /**
+     * Build a kernel from its weights, row by row. It is run as two passes
+     * if the weights allow it.
+     *
+     * @param width
+     *                    the width of the kernel, odd
+     * @param height
+     *                    the height of the kernel, odd
+     * @param weights
+     *                    <tt>width * height</tt> weights, row by row
+     * @return the kernel.
+     * @throws IllegalArgumentException
+     *                     if a side is even or too large, the number of
+     *                     weights is wrong, or they are so large the sums
+     *                     could overflow.
+     */
+    public static Convolution of(int width, int height, double... weights) {
+        checkSide(width);
+        checkSide(height);
+        if (weights.length != width * height) {
+            throw new IllegalArgumentException("a " + width + "x" + height
+                + " kernel needs " + width * height + " weights, was given "
+                + weights.length);
+        }
+
+        // Separable iff every row is a multiple of the row holding the
+        // largest weight; that row and its column are then the factors
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                pivot = i;
+            }
+        }
+        double largest = weights[pivot];
+        if (largest == 0) {
+            return new Convolution(width, height, 0, null, null,
+                new int[weights.length]);
+        }
+        double[] row = Arrays.copyOfRange(weights, pivot - pivot % width,
+            pivot - pivot % width + width);
+        double[] column = new double[height];
+        for (int y = 0; y < height; y++) {
+            column[y] = weights[y * width + pivot % width] / largest;
+        }
+        double tolerance = Math.abs(largest) * 1e-9;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (Math.abs(weights[y * width + x] - column[y] * row[x])
+                        > tolerance) {
+                    return new Convolution(width, height, 0, null, null,
+                        quantize(weights, DIRECT_BITS, MAX_NORM));
+                }
+            }
+        }
+        return separable(column, row);
+    }
+
+    /**
+     * Build the separable kernel whose weights are
+     * <tt>column[y] * row[x]</tt>.
+     *
+     * @param column
+     *                    the vertical weights, an odd number of them
+     * @param row
+     *                    the horizontal weights, an odd number of them
+     * @return the kernel.
+     * @throws IllegalArgumentException
+     *                     if a side is even or too large, or the weights
+     *                     are so large the sums could overflow.
+     */
+    public static Convolution separable(double[] column, double[] row) {
+        checkSide(row.length);
+        checkSide(column.length);
+        int[] quantizedRow = quantize(row, PASS_BITS, MAX_NORM);
+        int[] quantizedColumn = quantize(column, PASS_BITS, MAX_NORM);
+        // The horizontal pass drops PASS_BITS - INTERMEDIATE_BITS bits
+        // before the vertical pass multiplies again
+        if (norm(quantizedRow) * norm(quantizedColumn)
+                > MAX_NORM << (PASS_BITS - INTERMEDIATE_BITS)) {
+            throw new IllegalArgumentException("kernel weights too large");
+        }
+        return new Convolution(row.length, column.length, 0, quantizedRow,
+            quantizedColumn, null);
+    }
+
+    /**
+     * Build a normalized Gaussian blur kernel, reaching out three standard
+     * deviations on each side.
+     *
+     * @param sigma
+     *                    the standard deviation in pixels, greater than 0
+     *                    and at most <tt>MAX_SIGMA</tt>
+     * @return the kernel, which is separable.
+     * @throws IllegalArgumentException
+     *                     if sigma is out of range.
+     */
+    public static Convolution gaussian(double sigma) {
+        if (!(sigma > 0 && sigma <= MAX_SIGMA)) {
+            throw new IllegalArgumentException("sigma must be greater than 0 "
+                + "and at most " + MAX_SIGMA + ", was " + sigma);
+        }
+        int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+        double[] weights = new double[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            weights[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+            sum += weights[i + radius];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return separable(weights, weights);
+    }
+
+    /**
+     * Return this kernel with <tt>bias</tt> added to every output channel
+     * before clamping.
+     *
+     * @param bias
+     *                    the value to add
+     * @return the biased kernel.
+     */
+    public Convolution withBias(int bias) {
+        return new Convolution(width, height, bias, row, column, weights);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBias() {
+        return bias;
+    }
+
+    /**
+     * Return whether the kernel runs as a horizontal and a vertical pass.
+     *
+     * @return true iff the kernel is separable.
+     */
+    public boolean isSeparable() {
+        return row != null;
+    }
+
+    /**
+     * Describe the quantized kernel; two kernels with the same description
+     * give the same results.
+     */
+    @Override
+    public String toString() {
+        return width + "x" + height + (isSeparable()
+            ? " " + Arrays.toString(column) + "x" + Arrays.toString(row)
+            : " " + Arrays.toString(weights)) + " +" + bias;
+    }
+
+    /**
+     * Computes the channels of successive output rows of one picture,
+     * before clamping. Each source row is read and, for separable kernels,
+     * filtered horizontally once, then kept in a ring of
+     * <tt>height</tt> rows while the output rows that need it are computed.
+     * A grayscale picture is filtered as its single channel.
+     */
+    final class Rows {
+        private final Picture picture;
+        private final Process.Border border;
+        private final int pictureWidth;
+        private final int radiusX;
+        private final int radiusY;
+        private final int channels;
+        private final int[] scratch;
+        private final int[] padded;
+        /* The padded source channels of an RGB row, for separable kernels */
+        private final int[][] planes;
+        /* Per ring slot and channel: source channels padded by radiusX on
+         * either side, or the horizontal pass of a separable kernel */
+        private final int[][][] ring;
+        private int nextRow;
+        private int nextLoaded;
+
+        Rows(Picture picture, Process.Border border, int fromY) {
+            this.picture = picture;
+            this.border = border;
+            this.pictureWidth = picture.getWidth();
+            this.radiusX = width / 2;
+            this.radiusY = height / 2;
+            this.channels = picture.isGray() ? 1 : 3;
+            this.scratch = picture.hasPixels() || picture.isGray() ? null
+                : new int[pictureWidth];
+            this.padded = new int[pictureWidth + 2 * radiusX];
+            this.planes = isSeparable() && channels == 3
+                ? new int[3][padded.length] : null;
+            int ringWidth = isSeparable() ? pictureWidth
+                : pictureWidth + 2 * radiusX;
+            this.ring = new int[height][channels][ringWidth];
+            this.nextRow = fromY;
+            this.nextLoaded = fromY - radiusY;
+        }
+
+        /*
+         * Writes the channels of the next output row, starting from fromY,
+         * to red, green and blue; for a grayscale picture only red is
+         * written, with the gray level.
+         */
+        void next(int[] red, int[] green, int[] blue) {
+            int y = nextRow++;
+            while (nextLoaded <= y + radiusY) {
+                load(nextLoaded++);
+            }
+            int[][] out = { red, green, blue };
+            for (int c = 0; c < channels; c++) {
+                if (isSeparable()) {
+                    vertical(y, c, out[c]);
+                } else {
+                    direct(y, c, out[c]);
+                }
+            }
+        }
+
+        /* Reads row y (mapped by the border) into its ring slot */
+        private void load(int y) {
+            int sourceY = border.index(y, picture.getHeight());
+            if (channels == 1) {
+                byte[] levels = picture.levels();
+                for (int x = 0, s = sourceY * pictureWidth; x < pictureWidth;
+                        x++, s++) {
+                    padded[radiusX + x] = levels[s] & 0xff;
+                }
+            } else {
+                int[] src = picture.rows(sourceY, sourceY + 1, scratch);
+                System.arraycopy(src, picture.rowsOffset(sourceY), padded,
+                    radiusX, pictureWidth);
+            }
+            for (int i = 0; i < radiusX; i++) {
+                padded[i] = padded[radiusX
+                    + border.index(i - radiusX, pictureWidth)];
+                padded[radiusX + pictureWidth + i] = padded[radiusX
+                    + border.index(pictureWidth + i, pictureWidth)];
+            }
+
+            int[][] slot = ring[Math.floorMod(y, height)];
+            if (channels == 1) {
+                // The padded row already holds the gray levels
+                horizontal(padded, slot[0]);
+            } else if (!isSeparable()) {
+                unpack(padded, slot[0], slot[1], slot[2]);
+            } else {
+                unpack(padded, planes[0], planes[1], planes[2]);
+                for (int c = 0; c < 3; c++) {
+                    horizontal(planes[c], slot[c]);
+                }
+            }
+        }
+
+        /* Stores one padded channel, filtered across if separable */
+        private void horizontal(int[] plane, int[] out) {
+            if (!isSeparable()) {
+                System.arraycopy(plane, 0, out, 0, plane.length);
+                return;
+            }
+            int half = 1 << (PASS_BITS - INTERMEDIATE_BITS - 1);
+            int shift = PASS_BITS - INTERMEDIATE_BITS;
+            for (int x = 0; x < pictureWidth; x++) {
+                int sum = half;
+                for (int k = 0; k < width; k++) {
+                    sum += row[k] * plane[x + k];
+                }
+                out[x] = sum >> shift;
+            }
+        }
+
+        private void vertical(int y, int channel, int[] out) {
+            int shift = PASS_BITS + INTERMEDIATE_BITS;
+            Arrays.fill(out, 0, pictureWidth, 1 << (shift - 1));
+            for (int k = 0; k < height; k++) {
+                int w = column[k];
+                if (w == 0) {
+                    continue;
+                }
+                int[] src =
+                    ring[Math.floorMod(y - radiusY + k, height)][channel];
+                for (int x = 0; x < pictureWidth; x++) {
+                    out[x] += w * src[x];
+                }
+            }
+            for (int x = 0; x < pictureWidth; x++) {
+                out[x] = (out[x] >> shift) + bias;
+            }
+        }
+
+        private void direct(int y, int channel, int[] out) {
+            Arrays.fill(out, 0, pictureWidth, 1 << (DIRECT_BITS - 1));
+            for (int j = 0; j < height; j++) {
+                int[] src =
+                    ring[Math.floorMod(y - radiusY + j, height)][channel];
+                for (int k = 0; k < width; k++) {
+                    int w = weights[j * width + k];
+                    if (w == 0) {
+                        continue;
+                    }
+                    for (int x = 0; x < pictureWidth; x++) {
+                        out[x] += w * src[x + k];
+                    }
+                }
+            }
+            for (int x = 0; x < pictureWidth; x++) {
+                out[x] = (out[x] >> DIRECT_BITS) + bias;
+            }
+        }
+    }
+
+    /* Starts computing the output rows of picture from fromY down */
+    Rows rows(Picture picture, Process.Border border, int fromY) {
+        return new Rows(picture, border, fromY);
+    }
+
+    private static void unpack(int[] pixels, int[] red, int[] green,
+            int[] blue) {
+        for (int x = 0; x < pixels.length; x++) {
+            int rgb = pixels[x];
+            red[x] = (rgb >> 16) & 0xff;
+            green[x] = (rgb >> 8) & 0xff;
+            blue[x] = rgb & 0xff;
+        }
+    }
+
+    /*
+     * Scales the weights by 2^bits and rounds them, then moves the rounding
+     * error onto the largest weight so the sum is the scaled sum, rounded.
+     */
+    private static int[] quantize(double[] weights, int bits, long maxNorm) {
+        double scale = 1 << bits;
+        int[] quantized = new int[weights.length];
+        double sum = 0;
+        long quantizedSum = 0;
+        int largest = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double scaled = weights[i] * scale;
+            if (!(Math.abs(scaled) < Integer.MAX_VALUE)) {
+                throw new IllegalArgumentException("kernel weights too large");
+            }
+            quantized[i] = (int) Math.round(scaled);
+            sum += weights[i];
+            quantizedSum += quantized[i];
+            if (Math.abs(weights[i]) > Math.abs(weights[largest])) {
+                largest = i;
+            }
+        }
+        quantized[largest] += Math.round(sum * scale) - quantizedSum;
+        if (norm(quantized) > maxNorm) {
+            throw new IllegalArgumentException("kernel weights too large");
+        }
+        return quantized;
+    }
+
+    private static long norm(int[] weights) {
+        long norm = 0;
+        for (int weight : weights) {
+            norm += Math.abs(weight);
+        }
+        return norm;
+    }
+
+    private static void checkSide(int side) {
+        if (side < 1 || side % 2 == 0 || side > MAX_SIDE) {
+            throw new IllegalArgumentException("kernel sides must be odd and "
+                + "at most " + MAX_SIDE + ", was " + side);
+        }
+    }
+}
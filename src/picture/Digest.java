@@ -0,0 +1,269 @@
+package picture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A 128-bit content digest, used to recognise pictures (and files) that have
+ * been seen before. It is built from the block and finalisation steps of
+ * MurmurHash3 (x64, 128-bit): fast and well mixed, but not cryptographic,
+ * so it identifies content reliably only when nobody is crafting
+ * collisions.
+ *
+ * A picture's digest covers its width, its height and every pixel. The
+ * raster is hashed in bands of rows whose height depends only on the width,
+ * and the band digests are combined in order, so the value is the same
+ * whatever the parallelism, and whether the picture is on the heap or in a
+ * buffer.
+ */
+public final class Digest {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /** Roughly how many pixels each independently hashed band holds. */
+    private static final int PIXELS_PER_BAND = 1 << 16;
+
+    private final long high;
+    private final long low;
+
+    private Digest(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Compute the digest of a picture's raster. <tt>Picture.digest()</tt>
+     * remembers the result; this always does the work.
+     *
+     * @param picture
+     *                    the picture to digest
+     * @return the digest of the picture's size and pixels.
+     */
+    public static Digest of(final Picture picture) {
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final int bandRows = Math.max(1, PIXELS_PER_BAND / Math.max(1, width));
+        int bands = (height + bandRows - 1) / bandRows;
+
+        final long[] bandDigests = new long[2 * bands + 2];
+        bandDigests[0] = width;
+        bandDigests[1] = height;
+        Scheduler.forEachStrip(bands, 1, (from, to) -> {
+            for (int band = from; band < to; band++) {
+                final Hasher hasher = new Hasher(band);
+                picture.forEachRow(band * bandRows,
+                    Math.min(height, (band + 1) * bandRows),
+                    (y, row, offset, w) -> hasher.update(row, offset, w));
+                Digest digest = hasher.finish();
+                bandDigests[2 * band + 2] = digest.high;
+                bandDigests[2 * band + 3] = digest.low;
+            }
+        });
+
+        Hasher combined = new Hasher(-1);
+        for (long value : bandDigests) {
+            combined.update((int) value);
+            combined.update((int) (value >>> 32));
+        }
+        return combined.finish();
+    }
+
+    /**
+     * Compute the digest of a sequence of bytes, such as a key.
+     *
+     * @param bytes
+     *                    the bytes to digest
+     * @return the digest of the bytes.
+     */
+    public static Digest of(byte[] bytes) {
+        try {
+            return of(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            // Reading an array does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the digest of everything remaining on a stream, such as an
+     * encoded file. The stream is not closed.
+     *
+     * @param in
+     *                    the bytes to digest
+     * @return the digest of the bytes.
+     * @throws IOException
+     *                     if the stream cannot be read.
+     */
+    public static Digest of(InputStream in) throws IOException {
+        Hasher hasher = new Hasher(0);
+        byte[] buffer = new byte[1 << 16];
+        long length = 0;
+        int pending = 0;
+        int value = 0;
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            for (int i = 0; i < n; i++) {
+                value |= (buffer[i] & 0xff) << (8 * pending);
+                if (++pending == 4) {
+                    hasher.update(value);
+                    pending = 0;
+                    value = 0;
+                }
+            }
+            length += n;
+        }
+        // The ragged end and the length go in as one more int each
+        hasher.update(value);
+        hasher.update((int) length);
+        hasher.update((int) (length >>> 32));
+        return hasher.finish();
+    }
+
+    /**
+     * Return the top 64 bits of the digest.
+     *
+     * @return the high half.
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Return the bottom 64 bits of the digest.
+     *
+     * @return the low half.
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Return the digest as 32 lower-case hexadecimal digits.
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Digest)) {
+            return false;
+        }
+        Digest digest = (Digest) other;
+        return high == digest.high && low == digest.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) low;
+    }
+
+    /*
+     * Incremental MurmurHash3 x64 128 over a stream of ints, taken as their
+     * little-endian bytes. Four ints make a 16 byte block.
+     */
+    private static final class Hasher {
+        private long h1;
+        private long h2;
+        private final int[] pending = new int[4];
+        private int count;
+        private long length;
+
+        Hasher(long seed) {
+            h1 = seed;
+            h2 = seed;
+        }
+
+        void update(int value) {
+            pending[count++] = value;
+            if (count == 4) {
+                block(pending, 0);
+                count = 0;
+            }
+        }
+
+        void update(int[] values, int offset, int length) {
+            int end = offset + length;
+            while (count != 0 && offset < end) {
+                update(values[offset++]);
+            }
+            for (; offset + 4 <= end; offset += 4) {
+                block(values, offset);
+            }
+            while (offset < end) {
+                update(values[offset++]);
+            }
+        }
+
+        private void block(int[] values, int i) {
+            long k1 = (values[i] & 0xffffffffL)
+                | ((long) values[i + 1] << 32);
+            long k2 = (values[i + 2] & 0xffffffffL)
+                | ((long) values[i + 3] << 32);
+            length += 16;
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        Digest finish() {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = 0; i < count; i++) {
+                long value = (pending[i] & 0xffffffffL) << (32 * (i & 1));
+                if (i < 2) {
+                    k1 |= value;
+                } else {
+                    k2 |= value;
+                }
+            }
+            if (count > 2) {
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            }
+            if (count > 0) {
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            }
+            length += 4 * count;
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = mix(h1);
+            h2 = mix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new Digest(h1, h2);
+        }
+
+        private static long mix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package picture;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decodes a list of input pictures on a few background threads and hands
+ * them over as each one becomes ready, so that decoding overlaps with the
+ * work done on the pictures already loaded. Pictures arrive in the order
+ * they finish decoding, tagged with their position in the list; work that
+ * does not depend on the order (blending, filling mosaic tiles) can start
+ * at once.
+ *
+ * At most <tt>maxPending</tt> pictures are being decoded or waiting to be
+ * taken at any time, besides the one the caller is working on, which
+ * bounds the memory held whatever the number of inputs. Decoding stops as
+ * soon as the loader is closed.
+ */
+public class InputLoader implements AutoCloseable {
+
+    /**
+     * A decoded input and its position in the list of locations.
+     */
+    public static final class Input {
+        private final int index;
+        private final Picture picture;
+        private final String location;
+
+        Input(int index, Picture picture, String location) {
+            this.index = index;
+            this.picture = picture;
+            this.location = location;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Picture getPicture() {
+            return picture;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    private final ExecutorService decoders;
+    private final Semaphore slots;
+    private final LinkedBlockingQueue<Input> ready =
+        new LinkedBlockingQueue<Input>();
+    private final int count;
+    private int taken;
+
+    /**
+     * Start decoding <tt>locations</tt>, as <tt>Utils.loadPicture</tt>
+     * would with the given preview size.
+     *
+     * @param locations
+     *                    the pictures to load
+     * @param threads
+     *                    how many pictures to decode at once, at least 1
+     * @param maxPending
+     *                    how many decoded pictures may wait to be taken,
+     *                    counting those being decoded, at least 1
+     * @param maxDimension
+     *                    the preview size passed to
+     *                    <tt>Utils.loadPicture</tt>, or 0 for full size
+     */
+    public InputLoader(List<String> locations, int threads, int maxPending,
+            final int maxDimension) {
+        if (threads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("a loader needs at least one "
+                + "thread and one pending picture, was " + threads + " and "
+                + maxPending);
+        }
+        count = locations.size();
+        slots = new Semaphore(maxPending);
+        decoders = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(threads, count)), runnable -> {
+                Thread thread = new Thread(runnable, "picture-decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final String location = locations.get(i);
+            decoders.execute(() -> {
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    // Closed before this input was reached
+                    return;
+                }
+                Picture picture = null;
+                try {
+                    picture = Utils.loadPicture(location, maxDimension);
+                } finally {
+                    // A failed load still arrives, so take() reports it
+                    ready.add(new Input(index, picture, location));
+                }
+            });
+        }
+        decoders.shutdown();
+    }
+
+    /**
+     * Return the next input to finish decoding, waiting for one if need
+     * be. Taking an input lets another start decoding.
+     *
+     * @return the next decoded input.
+     * @throws IOException
+     *                     if that input could not be loaded.
+     * @throws NoSuchElementException
+     *                     if every input has been taken.
+     */
+    public Input take() throws IOException {
+        if (taken == count) {
+            throw new NoSuchElementException(
+                "all " + count + " inputs have been taken");
+        }
+        Input input;
+        try {
+            input = ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading inputs", e);
+        }
+        taken++;
+        slots.release();
+        if (input.picture == null) {
+            throw new IOException("Could not load " + input.location);
+        }
+        return input;
+    }
+
+    /**
+     * Return whether some inputs have not been taken yet.
+     *
+     * @return true iff <tt>take</tt> has another input to return.
+     */
+    public boolean hasNext() {
+        return taken < count;
+    }
+
+    /**
+     * Stop decoding inputs that have not been started.
+     */
+    @Override
+    public void close() {
+        decoders.shutdownNow();
+    }
+}
@@ -0,0 +1,137 @@
+package picture;
+
+/**
+ * The per-row arithmetic shared by the point operations, blending and box
+ * blur, working on spans of packed <tt>0x00RRGGBB</tt> pixels, on gray
+ * levels and on separate per-channel int sums.
+ *
+ * <tt>Kernels.get()</tt> returns a SIMD implementation built on the
+ * incubating Java Vector API when the <tt>jdk.incubator.vector</tt> module
+ * is present (run with <tt>--add-modules jdk.incubator.vector</tt>), and the
+ * plain scalar implementation otherwise. Both produce identical results.
+ * Setting the system property <tt>picture.vector=false</tt> forces the
+ * scalar implementation.
+ */
+public abstract class Kernels {
+
+    /** The class holding the Vector API implementation, if present. */
+    private static final String VECTOR_KERNELS = "picture.VectorKernels";
+
+    private static final Kernels SCALAR = new Kernels() {
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+    };
+
+    private static final Kernels INSTANCE = load();
+
+    /**
+     * Return the fastest implementation available in this JVM.
+     *
+     * @return the kernels used by <tt>picture.Process</tt>.
+     */
+    public static Kernels get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Return the scalar implementation, which every other implementation
+     * must match bit for bit.
+     *
+     * @return the reference kernels.
+     */
+    public static Kernels scalar() {
+        return SCALAR;
+    }
+
+    private static Kernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("picture.vector",
+                "true"))) {
+            return SCALAR;
+        }
+        try {
+            return (Kernels) Class.forName(VECTOR_KERNELS)
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in, or the incubator module was not added
+            return SCALAR;
+        }
+    }
+
+    /**
+     * Return a short name for this implementation.
+     *
+     * @return the name of the implementation, e.g. "scalar".
+     */
+    public abstract String getName();
+
+    /**
+     * Write the inverse of <tt>length</tt> pixels of <tt>src</tt> to
+     * <tt>dst</tt>: each channel c becomes 255 - c.
+     */
+    public void invert(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = src[srcOffset + i] ^ 0xffffff;
+        }
+    }
+
+    /**
+     * Write the grayscale version of <tt>length</tt> pixels of <tt>src</tt>
+     * to <tt>dst</tt>: each channel becomes the floor of the mean of the
+     * three.
+     */
+    public void grayscale(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        for (int i = 0; i < length; i++) {
+            int rgb = src[srcOffset + i];
+            int average = (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff)
+                + (rgb & 0xff)) / 3;
+            dst[dstOffset + i] = (average << 16) | (average << 8) | average;
+        }
+    }
+
+    /**
+     * Write the gray levels of <tt>length</tt> pixels of <tt>src</tt> to
+     * <tt>dst</tt>, one byte per pixel: the floor of the mean of the three
+     * channels, as <tt>grayscale</tt> computes it.
+     */
+    public void levels(int[] src, int srcOffset, byte[] dst, int dstOffset,
+            int length) {
+        for (int i = 0; i < length; i++) {
+            int rgb = src[srcOffset + i];
+            dst[dstOffset + i] = (byte) ((((rgb >> 16) & 0xff)
+                + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3);
+        }
+    }
+
+    /**
+     * Add <tt>weight</tt> times each channel of <tt>length</tt> pixels of
+     * <tt>src</tt> to the running sums starting at <tt>sumOffset</tt>. A
+     * weight of -1 removes a row previously added.
+     */
+    public void accumulate(int[] src, int srcOffset, int weight, int[] red,
+            int[] green, int[] blue, int sumOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int rgb = src[srcOffset + i];
+            red[sumOffset + i] += weight * ((rgb >> 16) & 0xff);
+            green[sumOffset + i] += weight * ((rgb >> 8) & 0xff);
+            blue[sumOffset + i] += weight * (rgb & 0xff);
+        }
+    }
+
+    /**
+     * Write <tt>length</tt> pixels to <tt>dst</tt> whose channels are the
+     * running sums starting at <tt>sumOffset</tt> divided (rounding down) by
+     * <tt>divisor</tt>.
+     */
+    public void average(int[] red, int[] green, int[] blue, int sumOffset,
+            int divisor, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = ((red[sumOffset + i] / divisor) << 16)
+                | ((green[sumOffset + i] / divisor) << 8)
+                | (blue[sumOffset + i] / divisor);
+        }
+    }
+}
@@ -2,7 +2,15 @@ package picture;
 
 import picture.Process.*;
 
+import java.awt.Dimension;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.List;
 
 public class Main {
 
@@ -13,57 +21,728 @@ public class Main {
     public static final String INCORRECT_ARG = 
         "The argument you supplied was not valid. Possible arguments:\n" +
         "rotation: 90 180 270\n" +
-        "flip: H V";
+        "flip: H V\n" +
+        "orient: any sequence of 90 180 270 H V\n" +
+        "tone: any sequence of invert grayscale linear=gain[,offset]\n" +
+        "      gamma=exponent threshold=level curve=x0,y0,x1,y1,...\n" +
+        "      each optionally prefixed by red: green: or blue:\n" +
+        "blend: [--weights=w1,w2,...]\n" +
+        "mosaic: tile size, or width x height such as 10x20\n" +
+        "blur: [radius [clamp|mirror|wrap]]\n" +
+        "gaussian: sigma [clamp|mirror|wrap]\n" +
+        "sharpen, edge, emboss: [clamp|mirror|wrap]";
     public static final String SAVE_ERROR = 
         "The transformed image could not be saved.";
 
+    /** Prefix of the option setting the number of worker threads. */
+    public static final String PARALLELISM_OPTION = "--parallelism=";
+
+    /** Prefix of the option setting the rotation block size. */
+    public static final String BLOCK_SIZE_OPTION = "--block-size=";
+
+    /**
+     * Option processing the input in strips rather than loading it whole,
+     * optionally followed by "=rows" giving the rows per strip.
+     */
+    public static final String STREAM_OPTION = "--stream";
+
+    /**
+     * Prefix of the option loading inputs at reduced resolution, so that
+     * neither side exceeds the given size, for fast previews. Streaming is
+     * not needed at that size and is skipped.
+     */
+    public static final String PREVIEW_OPTION = "--preview=";
+
+    /**
+     * Prefix of the option capping how many inputs of a blend or mosaic may
+     * be decoded ahead of being used. The default is one more than the
+     * parallelism, which keeps every decoding thread busy.
+     */
+    public static final String MAX_PENDING_OPTION = "--max-pending=";
+
+    /**
+     * Prefix of the option choosing how PNG outputs are compressed:
+     * <tt>fastest</tt>, <tt>default</tt>, a deflate level, or a level and a
+     * row filter such as <tt>9,paeth</tt>; see <tt>picture.PngEncoder</tt>.
+     */
+    public static final String PNG_OPTION = "--png=";
+
+    /**
+     * Prefix of the option running a pipeline of transformations on one
+     * input, such as <tt>"--pipeline=grayscale | blur 3 | rotate 90"</tt> or
+     * <tt>"--pipeline=invert | blur 3 &gt; a.png; invert &gt; b.png"</tt>;
+     * see <tt>picture.Pipeline</tt>. The arguments are the input, then the
+     * output if the pipeline is a single chain not naming one.
+     */
+    public static final String PIPELINE_OPTION = "--pipeline=";
+
+    /** Prefix of the blend argument giving one weight per input. */
+    public static final String WEIGHTS_OPTION = "--weights=";
+
+    /** Prefix of the option running every job listed in a manifest. */
+    public static final String BATCH_OPTION = "--batch=";
+
+    /**
+     * Prefix of the option running the transformation on every file
+     * matching a glob, writing into the directory given as the output.
+     */
+    public static final String GLOB_OPTION = "--glob=";
+
+    /**
+     * Prefix of the option running as an HTTP server on the given port
+     * instead of transforming files; see <tt>picture.Server</tt>.
+     */
+    public static final String SERVE_OPTION = "--serve=";
+
+    /**
+     * Prefix of the option keeping results in the given directory, so that
+     * repeating a job on the same input content copies the earlier output.
+     */
+    public static final String CACHE_OPTION = "--cache=";
+
+    /**
+     * Prefix of the option setting how many megabytes of results the
+     * in-memory cache behind the <tt>Process</tt> operations may hold.
+     */
+    public static final String CACHE_MEMORY_OPTION = "--cache-memory=";
+
+    /** The in-memory cache size when only a cache directory is given. */
+    public static final int DEFAULT_CACHE_MEGABYTES = 256;
+
+    /**
+     * Prefix of the option setting how many batch jobs, or server requests,
+     * run at once.
+     */
+    public static final String JOBS_OPTION = "--jobs=";
+
+    /**
+     * Option comparing two pictures instead of transforming one, optionally
+     * followed by "=tolerance" giving the largest per-channel difference
+     * that still matches. The arguments are
+     * <tt>&lt;expected&gt; &lt;actual&gt; [&lt;diff image to save&gt;]</tt>.
+     */
+    public static final String COMPARE_OPTION = "--compare";
+
+    /**
+     * Option printing, once the job is done, how long each stage took, its
+     * throughput and the bytes it allocated; see <tt>picture.Metrics</tt>.
+     */
+    public static final String STATS_OPTION = "--stats";
+
+    /* Rows per strip when streaming: -1 if not streaming, 0 for default */
+    private static int streamRows = -1;
+
+    /* The largest side of a preview input, or 0 for full resolution */
+    private static int previewSize = 0;
+
+    /* How PNG outputs are encoded */
+    private static PngEncoder pngEncoder = PngEncoder.DEFAULT;
+
+    /* The cap on inputs decoded ahead of use, or 0 for the default */
+    private static int maxPendingInputs = 0;
+
+    /* Where batch jobs come from, if this is a batch */
+    private static String batchManifest = null;
+    private static String batchGlob = null;
+    private static int batchWorkers =
+        Runtime.getRuntime().availableProcessors();
+
+    /* The port to serve on, or -1 to run jobs from the command line */
+    private static int serverPort = -1;
+
+    /* The tolerance to compare pictures with, or -1 to transform them */
+    private static int compareTolerance = -1;
+
+    /* The pipeline to run, if any */
+    private static String pipelineSpec = null;
+
+    /* Totals of the stages run, if they are to be printed */
+    private static Metrics.Summary stats = null;
+
+    /* The caches of Process results and of output files, if asked for */
+    private static ResultCache resultCache = null;
+    private static ResultCache outputCache = null;
 
     public static void main(String[] args) {
+            args = parseOptions(args);
+
+            if (serverPort >= 0) {
+                serve();
+                return;
+            }
+
+            int status = 0;
+            if (stats != null) {
+                Metrics.addSink(stats);
+            }
+            if (batchManifest != null || batchGlob != null) {
+                status = batch(args);
+            } else if (compareTolerance >= 0) {
+                status = compare(args);
+            } else {
+                try {
+                    if (pipelineSpec != null) {
+                        pipeline(args);
+                    } else {
+                        run(args);
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+            if (stats != null) {
+                Metrics.removeSink(stats);
+                System.out.print(stats);
+            }
+            if (status != 0) {
+                System.exit(status);
+            }
+    }
+
+    /**
+     * Run one job: apply the transformation named by <tt>args[0]</tt> and
+     * save the result to the last argument. Options given before the
+     * transformation on the command line apply to every job.
+     *
+     * @param args
+     *                    <tt>&lt;transformation&gt; &lt;arguments&gt;
+     *                    &lt;inputs&gt; &lt;output&gt;</tt>
+     * @return the number of pixels written, 0 if the output was copied from
+     *         the cache.
+     * @throws IOException
+     *                     if an input cannot be loaded or the output cannot
+     *                     be saved.
+     */
+    static long run(String[] args) throws IOException {
+        String key = outputCache != null ? outputKey(args) : null;
+        if (key == null) {
+            return transformFiles(args);
+        }
+
+        File output = new File(args[args.length - 1]);
+        String extension = extensionOf(output.getName());
+        File cached = outputCache.getFile(key, extension);
+        if (cached != null) {
+            Files.copy(cached.toPath(), output.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            return 0;
+        }
+        long pixels = transformFiles(args);
+        outputCache.putFile(key, extension, output);
+        return pixels;
+    }
+
+    /* Does the work of run, without the output cache */
+    private static long transformFiles(String[] args) throws IOException {
             Process.Transformation transformation = 
                 Process.Transformation.valueOf(args[0].toUpperCase());
 
-            Picture picture = Utils.loadPicture(args[args.length - 2]);
+            if (streamRows >= 0 && previewSize == 0) {
+                return stream(args);
+            }
+
+            Picture transformedPicture = null;
+
+            switch (transformation) {
+                case BLEND:
+                    int firstInput = 1;
+                    int[] weights = null;
+                    if (args[1].startsWith(WEIGHTS_OPTION)) {
+                        firstInput = 2;
+                        weights = parseWeights(
+                            args[1].substring(WEIGHTS_OPTION.length()),
+                            args.length - 3);
+                    }
+                    // Inputs are streamed into the blender as they finish
+                    // decoding, so only a few are held in memory at a time
+                    // Timed as a whole, waits for the decoders included
+                    Metrics.Span blending =
+                        Metrics.start(Metrics.Stage.PROCESS, "blend");
+                    Blender blender = new Blender();
+                    try (InputLoader inputs = loadConcurrently(args,
+                            firstInput)) {
+                        while (inputs.hasNext()) {
+                            InputLoader.Input input = inputs.take();
+                            blender.add(input.getPicture(), weights == null
+                                ? 1 : weights[input.getIndex()]);
+                            Process.release(input.getPicture());
+                        }
+                    }
+                    transformedPicture = blending.end(blender.result());
+                    break;
+                case MOSAIC:
+                    int[] tile = parseTileSize(args[1]);
+                    // The mosaic's size comes from the headers, so tiles can
+                    // be filled as each input finishes decoding
+                    int minWidth = Integer.MAX_VALUE;
+                    int minHeight = Integer.MAX_VALUE;
+                    for (int i = 2; i < args.length - 1; i++) {
+                        Dimension size = Utils.readSize(args[i], previewSize);
+                        if (size == null) {
+                            throw new IOException("Could not load " + args[i]);
+                        }
+                        minWidth = Math.min(minWidth, size.width);
+                        minHeight = Math.min(minHeight, size.height);
+                    }
+                    Metrics.Span tiling =
+                        Metrics.start(Metrics.Stage.PROCESS, "mosaic");
+                    MosaicBuilder mosaic = new MosaicBuilder(tile[0], tile[1],
+                        args.length - 3, minWidth, minHeight);
+                    try (InputLoader inputs = loadConcurrently(args, 2)) {
+                        while (inputs.hasNext()) {
+                            InputLoader.Input input = inputs.take();
+                            mosaic.add(input.getIndex(), input.getPicture());
+                            Process.release(input.getPicture());
+                        }
+                    }
+                    transformedPicture = tiling.end(mosaic.result());
+                    break;
+                default:
+                    Picture input = load(args[args.length - 2]);
+                    transformedPicture = transform(args, input);
+                    if (transformedPicture != input) {
+                        Process.release(input);
+                    }
+                    break;
+            }
+
+            if (!Utils.savePicture(transformedPicture, args[args.length - 1],
+                    pngEncoder)) {
+                throw new IOException(SAVE_ERROR);
+            }
+            long pixels = (long) transformedPicture.getWidth()
+                * transformedPicture.getHeight();
+            // Later jobs in the same JVM reuse the raster
+            Process.release(transformedPicture);
+            return pixels;
+    }
+
+    /**
+     * Apply a single-input transformation to <tt>picture</tt>. The
+     * arguments are laid out as for <tt>run</tt>: the transformation, its
+     * arguments, then an input and an output, which are not used here.
+     * Transformations that keep the shape of the picture are done in
+     * place when it is on the heap and no result cache is set, so the
+     * picture may be overwritten and returned.
+     *
+     * @param args
+     *                    <tt>&lt;transformation&gt; &lt;arguments&gt;
+     *                    &lt;input&gt; &lt;output&gt;</tt>
+     * @param picture
+     *                    the picture to transform
+     * @return the transformed picture.
+     * @throws IllegalArgumentException
+     *                     if the transformation or its arguments are invalid,
+     *                     or it takes more than one input.
+     */
+    static Picture transform(String[] args, Picture picture) {
+        return transform(args, picture, true);
+    }
+
+    /*
+     * As transform(args, picture), only working in place if mayOverwrite
+     * is set, so the picture can be kept for other uses.
+     */
+    static Picture transform(String[] args, Picture picture,
+            boolean mayOverwrite) {
+            Process.Transformation transformation = 
+                Process.Transformation.valueOf(args[0].toUpperCase());
             Picture transformedPicture = null;
+            Metrics.Span span = Metrics.start(Metrics.Stage.PROCESS,
+                transformation.name().toLowerCase());
+            // Cached results are keyed by the input, which must survive
+            boolean inPlace = mayOverwrite && !picture.isBufferBacked()
+                && Process.getCache() == null;
 
             switch (transformation) {
                 case INVERT:
-                    transformedPicture = Process.invert(picture);
+                    transformedPicture = inPlace
+                        ? Process.invertInPlace(picture)
+                        : Process.invert(picture);
                     break;
                 case GRAYSCALE:
-                    transformedPicture = Process.grayscale(picture);
+                    // The grayscale result is a quarter the size, so only
+                    // a picture that is already grayscale is kept
+                    transformedPicture = inPlace && picture.isGray()
+                        ? Process.grayscaleInPlace(picture)
+                        : Process.grayscale(picture);
                     break;
                 case ROTATE:
-                    transformedPicture = Process.rotate(picture, 
-                        Process.Angle.valueOf("_" + args[1]));
+                    Process.Angle angle = Process.Angle.valueOf("_" + args[1]);
+                    transformedPicture = inPlace && angle == Process.Angle._180
+                        ? Process.rotateInPlace(picture, angle)
+                        : Process.rotate(picture, angle);
                     break;
                 case FLIP:
-                    transformedPicture = Process.flip(picture, 
-                        Process.Direction.valueOf(args[1].toUpperCase()));
+                    Process.Direction direction =
+                        Process.Direction.valueOf(args[1].toUpperCase());
+                    transformedPicture = inPlace
+                        ? Process.flipInPlace(picture, direction)
+                        : Process.flip(picture, direction);
                     break;
-                case BLUR:
-                    transformedPicture = Process.blur(picture);
-                    break;
-                case BLEND:
-                    Picture[] blendPictures = new Picture[args.length - 2];
-                    for (int i = 1; i < args.length - 1; i++) {
-                        blendPictures[i-1] = Utils.loadPicture(args[i]);
+                case ORIENT:
+                    Orientation[] steps = new Orientation[args.length - 3];
+                    for (int i = 1; i < args.length - 2; i++) {
+                        steps[i-1] = Orientation.parse(args[i]);
                     }
-                    transformedPicture = Process.blend(blendPictures);
+                    transformedPicture =
+                        inPlace && !Orientation.compose(steps).swapsAxes()
+                        ? Process.orientInPlace(picture, steps)
+                        : Process.orient(picture, steps);
                     break;
-                case MOSAIC:
-                    Picture[] mosaicPictures = new Picture[args.length - 3];
-                    for (int i = 2; i < args.length - 1; i++) {
-                        mosaicPictures[i-2] = Utils.loadPicture(args[i]);
+                case TONE:
+                    // However many steps, one pass over the picture
+                    Tone tone = Tone.compile(
+                        Arrays.copyOfRange(args, 1, args.length - 2));
+                    // In place only if the result is as gray as the input
+                    transformedPicture = inPlace
+                        && Process.canToneInPlace(picture, tone)
+                        ? Process.toneInPlace(picture, tone)
+                        : Process.tone(picture, tone);
+                    break;
+                case BLUR:
+                    if (args.length == 3) {
+                        transformedPicture = Process.blur(picture);
+                    } else {
+                        Process.Border border = args.length > 4
+                            ? Process.Border.valueOf(args[2].toUpperCase())
+                            : Process.Border.CLAMP;
+                        transformedPicture = Process.blur(picture,
+                            Integer.parseInt(args[1]), border);
                     }
-                    transformedPicture = Process.mosaic(
-                        Integer.parseInt(args[1]), mosaicPictures);
                     break;
-                default: break;
+                case GAUSSIAN:
+                    transformedPicture = Process.gaussian(picture,
+                        Double.parseDouble(args[1]), border(args, 2));
+                    break;
+                case SHARPEN:
+                    transformedPicture =
+                        Process.sharpen(picture, border(args, 1));
+                    break;
+                case EDGE:
+                    transformedPicture =
+                        Process.edges(picture, border(args, 1));
+                    break;
+                case EMBOSS:
+                    transformedPicture =
+                        Process.emboss(picture, border(args, 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException(transformation
+                        + " takes more than one picture");
+            }
+            return span.end(transformedPicture);
+    }
+
+    /*
+     * The border named by args[index] if it comes before the input and
+     * output, CLAMP otherwise.
+     */
+    private static Process.Border border(String[] args, int index) {
+        return index < args.length - 2
+            ? Process.Border.valueOf(args[index].toUpperCase())
+            : Process.Border.CLAMP;
+    }
+
+    /*
+     * The output cache key of a job: its arguments up to the output, with
+     * each input file replaced by the digest of its contents. Returns null
+     * (do not cache) if an input is not a local file.
+     */
+    private static String outputKey(String[] args) throws IOException {
+        Process.Transformation transformation =
+            Process.Transformation.valueOf(args[0].toUpperCase());
+        int firstInput = args.length - 2;
+        if (transformation == Process.Transformation.BLEND) {
+            firstInput = args[1].startsWith(WEIGHTS_OPTION) ? 2 : 1;
+        } else if (transformation == Process.Transformation.MOSAIC) {
+            firstInput = 2;
+        }
+
+        StringBuilder key = new StringBuilder(transformation.name());
+        if (previewSize > 0) {
+            key.append(" preview ").append(previewSize);
+        }
+        if (pngEncoder != PngEncoder.DEFAULT) {
+            key.append(" png ").append(pngEncoder.getLevel()).append(',')
+                .append(pngEncoder.getFilter());
+        }
+        for (int i = 1; i < args.length - 1; i++) {
+            key.append(' ');
+            if (i < firstInput) {
+                key.append(args[i]);
+                continue;
             }
+            File input = new File(args[i]);
+            if (!input.isFile()) {
+                return null;
+            }
+            try (InputStream in = new FileInputStream(input)) {
+                key.append(Digest.of(in));
+            }
+        }
+        return key.toString();
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot).toLowerCase();
+    }
+
+    /*
+     * Starts decoding the inputs args[firstInput] up to the output in the
+     * background, on as many threads as the operations use.
+     */
+    private static InputLoader loadConcurrently(String[] args,
+            int firstInput) {
+        int threads = Scheduler.getParallelism();
+        return new InputLoader(
+            Arrays.asList(args).subList(firstInput, args.length - 1),
+            threads, maxPendingInputs > 0 ? maxPendingInputs : threads + 1,
+            previewSize);
+    }
 
-            if (!Utils.savePicture(transformedPicture, args[args.length - 1])) {
-                System.out.println(SAVE_ERROR);
+    /*
+     * Runs the pipeline on the input args[0], returning the number of
+     * pixels written.
+     */
+    private static long pipeline(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException(PIPELINE_OPTION
+                + " takes <input> [<output>]");
+        }
+        Pipeline pipeline = Pipeline.parse(pipelineSpec,
+            args.length == 2 ? args[1] : null);
+        return pipeline.run(load(args[0]), pngEncoder);
+    }
+
+    /* Loads an input picture, failing the job if it cannot be read */
+    private static Picture load(String location) throws IOException {
+        Picture picture = Utils.loadPicture(location, previewSize);
+        if (picture == null) {
+            throw new IOException("Could not load " + location);
+        }
+        return picture;
+    }
+
+    /*
+     * Starts the HTTP server. Its threads keep the JVM running after this
+     * returns.
+     */
+    private static void serve() {
+        try {
+            Server server = new Server(serverPort, batchWorkers);
+            server.start();
+            System.out.println("Listening on port " + server.getPort());
+        } catch (IOException e) {
+            System.out.println("Could not start the server: "
+                + e.getMessage());
+        }
+    }
+
+    /*
+     * Compares an actual picture against the expected one and prints the
+     * metrics, saving the difference image if asked to. Returns the exit
+     * status, 1 if they do not match, so golden-image scripts can tell.
+     */
+    private static int compare(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            throw new IllegalArgumentException(COMPARE_OPTION
+                + " takes <expected> <actual> [<diff image>]");
+        }
+        Comparison comparison;
+        try {
+            comparison = Comparison.compare(load(args[0]), load(args[1]),
+                compareTolerance);
+            if (args.length == 3
+                    && !Utils.savePicture(comparison.diffImage(), args[2],
+                        pngEncoder)) {
+                throw new IOException(SAVE_ERROR);
             }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
+        System.out.println(comparison);
+        return comparison.matches() ? 0 : 1;
+    }
+
+    /*
+     * Runs the jobs of a manifest or glob, reporting failures as they
+     * happen and the throughput at the end. Returns the exit status, 1 if
+     * any job failed, so scripts can tell.
+     */
+    private static int batch(String[] args) {
+        List<Batch.Job> jobs;
+        try {
+            jobs = batchManifest != null
+                ? Batch.readManifest(new File(batchManifest))
+                : Batch.glob(batchGlob, args);
+        } catch (IOException e) {
+            System.out.println("Could not read the batch: " + e.getMessage());
+            return 1;
+        }
+        Batch.Report report = Batch.run(jobs, batchWorkers, System.out);
+        System.out.println(report);
+        return report.getFailures() > 0 ? 1 : 0;
+    }
+
+    /*
+     * Applies the leading "--option" arguments and returns the remaining
+     * <transformation> <arguments> <inputs> <output> arguments.
+     */
+    private static String[] parseOptions(String[] args) {
+        // The scheduler and block size are global, so an earlier run's
+        // options must not leak into this one
+        Scheduler.setParallelism(Runtime.getRuntime().availableProcessors());
+        Process.setBlockSize(Process.DEFAULT_BLOCK_SIZE);
+        streamRows = -1;
+        batchManifest = null;
+        batchGlob = null;
+        batchWorkers = Runtime.getRuntime().availableProcessors();
+        serverPort = -1;
+        compareTolerance = -1;
+        previewSize = 0;
+        maxPendingInputs = 0;
+        pngEncoder = PngEncoder.DEFAULT;
+        stats = null;
+        pipelineSpec = null;
+        String cacheDirectory = null;
+        int cacheMegabytes = -1;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--")) {
+            String option = args[first];
+            if (option.startsWith(PARALLELISM_OPTION)) {
+                Scheduler.setParallelism(Integer.parseInt(
+                    option.substring(PARALLELISM_OPTION.length())));
+            } else if (option.startsWith(BLOCK_SIZE_OPTION)) {
+                Process.setBlockSize(Integer.parseInt(
+                    option.substring(BLOCK_SIZE_OPTION.length())));
+            } else if (option.equals(STREAM_OPTION)) {
+                streamRows = 0;
+            } else if (option.startsWith(STREAM_OPTION + "=")) {
+                streamRows = Integer.parseInt(
+                    option.substring(STREAM_OPTION.length() + 1));
+                if (streamRows < 1) {
+                    throw new IllegalArgumentException(
+                        "Strips need at least one row: " + option);
+                }
+            } else if (option.equals(COMPARE_OPTION)) {
+                compareTolerance = 0;
+            } else if (option.startsWith(COMPARE_OPTION + "=")) {
+                compareTolerance = Integer.parseInt(
+                    option.substring(COMPARE_OPTION.length() + 1));
+                if (compareTolerance < 0 || compareTolerance > 255) {
+                    throw new IllegalArgumentException(
+                        "Tolerance must be between 0 and 255: " + option);
+                }
+            } else if (option.startsWith(PREVIEW_OPTION)) {
+                previewSize = Integer.parseInt(
+                    option.substring(PREVIEW_OPTION.length()));
+                if (previewSize < 1) {
+                    throw new IllegalArgumentException(
+                        "A preview needs at least one pixel: " + option);
+                }
+            } else if (option.startsWith(MAX_PENDING_OPTION)) {
+                maxPendingInputs = Integer.parseInt(
+                    option.substring(MAX_PENDING_OPTION.length()));
+                if (maxPendingInputs < 1) {
+                    throw new IllegalArgumentException(
+                        "At least one input must be decoded ahead: "
+                            + option);
+                }
+            } else if (option.startsWith(PNG_OPTION)) {
+                pngEncoder = PngEncoder.parse(
+                    option.substring(PNG_OPTION.length()));
+            } else if (option.startsWith(PIPELINE_OPTION)) {
+                pipelineSpec = option.substring(PIPELINE_OPTION.length());
+            } else if (option.equals(STATS_OPTION)) {
+                stats = new Metrics.Summary();
+            } else if (option.startsWith(BATCH_OPTION)) {
+                batchManifest = option.substring(BATCH_OPTION.length());
+            } else if (option.startsWith(GLOB_OPTION)) {
+                batchGlob = option.substring(GLOB_OPTION.length());
+            } else if (option.startsWith(SERVE_OPTION)) {
+                serverPort = Integer.parseInt(
+                    option.substring(SERVE_OPTION.length()));
+            } else if (option.startsWith(CACHE_OPTION)) {
+                cacheDirectory = option.substring(CACHE_OPTION.length());
+            } else if (option.startsWith(CACHE_MEMORY_OPTION)) {
+                cacheMegabytes = Integer.parseInt(
+                    option.substring(CACHE_MEMORY_OPTION.length()));
+            } else if (option.startsWith(JOBS_OPTION)) {
+                batchWorkers = Integer.parseInt(
+                    option.substring(JOBS_OPTION.length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+            first++;
+        }
+        configureCache(cacheDirectory, cacheMegabytes);
+        return Arrays.copyOfRange(args, first, args.length);
+    }
+
+    /*
+     * Runs a row-local transformation strip by strip, so the input never
+     * has to fit in memory. Only transformations where each output row
+     * depends on nearby input rows can be streamed.
+     */
+    private static long stream(String[] args) throws IOException {
+        Pipeline.Stage stage = new Pipeline.Stage(args);
+        return StripStream.process(args[args.length - 2],
+            args[args.length - 1], stage.getHalo(), stage.getOperation(),
+            streamRows, pngEncoder);
+    }
+
+    /*
+     * Sets up the caches asked for by the options, or turns caching off if
+     * there were none. Results of Process operations are only kept in
+     * memory; the directory holds finished output files. Streamed jobs only
+     * use the output cache: the strips they process are never seen twice.
+     * Pipelines use neither, sharing their intermediate results themselves.
+     */
+    private static void configureCache(String directory, int megabytes) {
+        resultCache = null;
+        outputCache = null;
+        try {
+            if (directory != null || megabytes >= 0) {
+                resultCache = new ResultCache((long) (megabytes >= 0
+                    ? megabytes : DEFAULT_CACHE_MEGABYTES) << 20, null);
+            }
+            if (directory != null) {
+                outputCache = new ResultCache(0, new File(directory));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                "Cannot use cache directory " + directory, e);
+        }
+        boolean streaming = streamRows >= 0 && previewSize == 0;
+        Process.setCache(streaming || pipelineSpec != null ? null
+            : resultCache);
+    }
+
+    /* Parses a mosaic tile size, "n" for square tiles or "WxH" */
+    private static int[] parseTileSize(String size) {
+        int x = size.toLowerCase().indexOf('x');
+        if (x < 0) {
+            int side = Integer.parseInt(size);
+            return new int[] { side, side };
+        }
+        return new int[] { Integer.parseInt(size.substring(0, x)),
+            Integer.parseInt(size.substring(x + 1)) };
+    }
 
+    /* Parses a comma-separated list of exactly 'count' blend weights */
+    private static int[] parseWeights(String list, int count) {
+        String[] parts = list.split(",");
+        if (parts.length != count) {
+            throw new IllegalArgumentException("Expected " + count
+                + " blend weights, got " + parts.length);
+        }
+        int[] weights = new int[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+        }
+        return weights;
     }
 }
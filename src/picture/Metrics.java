@@ -0,0 +1,476 @@
+package picture;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Timing and throughput of the stages a picture goes through: decoding,
+ * redrawing into an RGB raster, the <tt>Process</tt> operation and
+ * encoding. Each stage run is measured as a <tt>Span</tt> and reported as
+ * a <tt>Sample</tt> to every registered <tt>Sink</tt>, and as a
+ * <tt>picture.Stage</tt> event to Java Flight Recorder when a recording
+ * has it enabled.
+ *
+ * With no sink registered and no recording, starting a span costs one
+ * event allocation and ending it nothing, so the processing path is always
+ * instrumented. <tt>Summary</tt> is a sink that totals samples by stage
+ * and operation, for <tt>Main --stats</tt> or for a long-running server to
+ * expose to a scraper.
+ *
+ * Allocated bytes are those of the thread running the stage, as counted
+ * by the JVM; work it hands to the <tt>Scheduler</tt>'s threads is not
+ * included, so operations whose output is allocated by the caller (all of
+ * them, through the <tt>PicturePool</tt>) are counted correctly while
+ * per-strip scratch buffers are not. It is -1 where the JVM does not count
+ * allocations.
+ */
+public final class Metrics {
+
+    /** The stages of the processing path. */
+    public enum Stage {
+        /** Reading and decoding an input file or stream. */
+        DECODE,
+        /** Redrawing a decoded image into an RGB raster. */
+        CONVERT,
+        /** The transformation itself. */
+        PROCESS,
+        /** Encoding and writing the output. */
+        ENCODE
+    }
+
+    /**
+     * Receives a sample for every span that ends. Sinks are called on the
+     * thread that ran the stage, possibly from several threads at once, so
+     * they must be thread-safe and quick.
+     */
+    public interface Sink {
+        void record(Sample sample);
+    }
+
+    /** One run of one stage. */
+    public static final class Sample {
+        private final Stage stage;
+        private final String operation;
+        private final long nanos;
+        private final int width;
+        private final int height;
+        private final long allocatedBytes;
+
+        Sample(Stage stage, String operation, long nanos, int width,
+                int height, long allocatedBytes) {
+            this.stage = stage;
+            this.operation = operation;
+            this.nanos = nanos;
+            this.width = width;
+            this.height = height;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * Return what was done in the stage: the file format for decoding
+         * and encoding, the transformation for processing.
+         *
+         * @return the operation name, in lower case.
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Return the width of the picture the stage produced (decoding,
+         * converting, processing) or consumed (encoding).
+         *
+         * @return the width in pixels.
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getPixels() {
+            return (long) width * height;
+        }
+
+        /**
+         * Return the bytes the stage's thread allocated.
+         *
+         * @return the allocated bytes, or -1 if unknown.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Return the throughput of the stage.
+         *
+         * @return the pixels handled per second.
+         */
+        public double getPixelsPerSecond() {
+            return nanos == 0 ? 0 : getPixels() * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return stage.name().toLowerCase(Locale.ROOT) + " " + operation
+                + " " + width + "x" + height + " in "
+                + String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+        }
+    }
+
+    /**
+     * A stage in progress. End it once the stage has produced its picture;
+     * a span that is never ended (because the stage failed) reports
+     * nothing.
+     */
+    public static final class Span {
+        private final Stage stage;
+        private final String operation;
+        private final StageEvent event;
+        private final boolean toSinks;
+        private final long start;
+        private final long allocatedBefore;
+
+        private Span(Stage stage, String operation, StageEvent event,
+                boolean toSinks) {
+            this.stage = stage;
+            this.operation = operation;
+            this.event = event;
+            this.toSinks = toSinks;
+            this.allocatedBefore = toSinks || event.isEnabled()
+                ? allocatedBytes() : -1;
+            event.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * End the span, reporting <tt>picture</tt>'s size.
+         *
+         * @param picture
+         *                    the picture the stage produced or consumed
+         * @return <tt>picture</tt>, so a return value can be wrapped.
+         */
+        public Picture end(Picture picture) {
+            end(picture.getWidth(), picture.getHeight());
+            return picture;
+        }
+
+        /**
+         * End the span, reporting a picture of the given size.
+         *
+         * @param width
+         *                    the width of the picture handled
+         * @param height
+         *                    the height of the picture handled
+         */
+        public void end(int width, int height) {
+            long nanos = System.nanoTime() - start;
+            event.end();
+            if (!toSinks && !event.shouldCommit()) {
+                return;
+            }
+            long allocated = allocatedBefore < 0 ? -1
+                : allocatedBytes() - allocatedBefore;
+            if (event.shouldCommit()) {
+                event.stage = stage.name();
+                event.operation = operation;
+                event.width = width;
+                event.height = height;
+                event.pixels = (long) width * height;
+                event.allocated = allocated;
+                event.commit();
+            }
+            if (toSinks) {
+                Sample sample = new Sample(stage, operation, nanos, width,
+                    height, allocated);
+                for (Sink sink : sinks) {
+                    sink.record(sample);
+                }
+            }
+        }
+    }
+
+    /**
+     * A sink totalling samples by stage and operation. It can print a
+     * summary table and render its totals in the Prometheus text format,
+     * and is safe to read while samples arrive.
+     */
+    public static final class Summary implements Sink {
+
+        private static final class Totals {
+            long count;
+            long nanos;
+            long maxNanos;
+            long pixels;
+            long allocatedBytes;
+        }
+
+        private final Map<String, Totals> totals =
+            new TreeMap<String, Totals>();
+
+        @Override
+        public synchronized void record(Sample sample) {
+            Totals total = totals.computeIfAbsent(
+                sample.getStage().ordinal() + " " + sample.getOperation(),
+                key -> new Totals());
+            total.count++;
+            total.nanos += sample.getNanos();
+            total.maxNanos = Math.max(total.maxNanos, sample.getNanos());
+            total.pixels += sample.getPixels();
+            if (sample.getAllocatedBytes() > 0) {
+                total.allocatedBytes += sample.getAllocatedBytes();
+            }
+        }
+
+        /**
+         * Return how many runs of <tt>stage</tt> were recorded, whatever
+         * the operation.
+         *
+         * @param stage
+         *                    the stage to count
+         * @return the number of samples of that stage.
+         */
+        public synchronized long getCount(Stage stage) {
+            long count = 0;
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                if (stageOf(entry.getKey()) == stage) {
+                    count += entry.getValue().count;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Return the total wall time spent in <tt>stage</tt>.
+         *
+         * @param stage
+         *                    the stage to total
+         * @return the nanoseconds spent in that stage.
+         */
+        public synchronized long getNanos(Stage stage) {
+            long nanos = 0;
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                if (stageOf(entry.getKey()) == stage) {
+                    nanos += entry.getValue().nanos;
+                }
+            }
+            return nanos;
+        }
+
+        /**
+         * Return the pixels handled by <tt>stage</tt>.
+         *
+         * @param stage
+         *                    the stage to total
+         * @return the pixels of every picture that stage handled.
+         */
+        public synchronized long getPixels(Stage stage) {
+            long pixels = 0;
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                if (stageOf(entry.getKey()) == stage) {
+                    pixels += entry.getValue().pixels;
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * Render the totals in the Prometheus text exposition format, one
+         * series per stage and operation, for an HTTP endpoint to serve.
+         *
+         * @return the metrics as text.
+         */
+        public synchronized String scrape() {
+            StringBuilder text = new StringBuilder();
+            exposition(text, "picture_stage_runs_total", "counter",
+                "Runs of each processing stage.", 0);
+            exposition(text, "picture_stage_seconds_total", "counter",
+                "Wall time spent in each processing stage.", 1);
+            exposition(text, "picture_stage_max_seconds", "gauge",
+                "Longest run of each processing stage.", 2);
+            exposition(text, "picture_stage_pixels_total", "counter",
+                "Pixels handled by each processing stage.", 3);
+            exposition(text, "picture_stage_allocated_bytes_total", "counter",
+                "Bytes allocated by the thread running each stage.", 4);
+            return text.toString();
+        }
+
+        /**
+         * Return a table of the totals, one line per stage and operation.
+         */
+        @Override
+        public synchronized String toString() {
+            int width = "operation".length();
+            for (String key : totals.keySet()) {
+                width = Math.max(width, operationOf(key).length());
+            }
+            StringBuilder table = new StringBuilder(String.format(Locale.ROOT,
+                "%-8s %-" + width + "s %6s %11s %10s %10s %11s%n", "stage",
+                "operation", "runs", "total ms", "max ms", "Mpixel/s",
+                "alloc MB"));
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                Totals total = entry.getValue();
+                table.append(String.format(Locale.ROOT,
+                    "%-8s %-" + width + "s %6d %11.3f %10.3f %10.2f %11.2f%n",
+                    stageOf(entry.getKey()).name().toLowerCase(Locale.ROOT),
+                    operationOf(entry.getKey()), total.count,
+                    total.nanos / 1e6, total.maxNanos / 1e6,
+                    total.nanos == 0 ? 0 : total.pixels * 1e3 / total.nanos,
+                    total.allocatedBytes / 1e6));
+            }
+            return table.toString();
+        }
+
+        private void exposition(StringBuilder text, String name, String type,
+                String help, int field) {
+            text.append("# HELP ").append(name).append(' ').append(help)
+                .append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type)
+                .append('\n');
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                Totals total = entry.getValue();
+                text.append(name).append("{stage=\"")
+                    .append(stageOf(entry.getKey()).name()
+                        .toLowerCase(Locale.ROOT))
+                    .append("\",operation=\"")
+                    .append(operationOf(entry.getKey())).append("\"} ");
+                switch (field) {
+                    case 0:
+                        text.append(total.count);
+                        break;
+                    case 1:
+                        text.append(total.nanos / 1e9);
+                        break;
+                    case 2:
+                        text.append(total.maxNanos / 1e9);
+                        break;
+                    case 3:
+                        text.append(total.pixels);
+                        break;
+                    default:
+                        text.append(total.allocatedBytes);
+                        break;
+                }
+                text.append('\n');
+            }
+        }
+
+        private static Stage stageOf(String key) {
+            return Stage.values()[Integer.parseInt(
+                key.substring(0, key.indexOf(' ')))];
+        }
+
+        private static String operationOf(String key) {
+            return key.substring(key.indexOf(' ') + 1);
+        }
+    }
+
+    @Name("picture.Stage")
+    @Label("Picture Stage")
+    @Category("Picture")
+    @Description("One run of a stage of the picture processing path")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    private static final CopyOnWriteArrayList<Sink> sinks =
+        new CopyOnWriteArrayList<Sink>();
+
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+        allocationCounter();
+
+    private Metrics() {
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @param stage
+     *                    the stage being run
+     * @param operation
+     *                    what it does, such as <tt>png</tt> or
+     *                    <tt>rotate</tt>
+     * @return the span to end when the stage is done.
+     */
+    public static Span start(Stage stage, String operation) {
+        return new Span(stage, operation, new StageEvent(), !sinks.isEmpty());
+    }
+
+    /**
+     * Send every sample from now on to <tt>sink</tt> as well.
+     *
+     * @param sink
+     *                    the sink to add
+     */
+    public static void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Stop sending samples to <tt>sink</tt>.
+     *
+     * @param sink
+     *                    the sink to remove
+     */
+    public static void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /* The bytes this thread has allocated, or -1 if not counted */
+    private static long allocatedBytes() {
+        return ALLOCATIONS == null ? -1
+            : ALLOCATIONS.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter =
+                (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported()
+                    && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+package picture;
+
+/**
+ * Builds a mosaic from pictures that arrive one at a time, in any order.
+ * The tile in column i and row j of the mosaic comes from picture
+ * (i + j) mod n, so each picture fills its own tiles as soon as it is
+ * added and need not be kept afterwards.
+ *
+ * As with <tt>Process.mosaic</tt>, the result is the area common to every
+ * picture cut down to whole tiles. Since tiles are filled as pictures
+ * arrive, that area has to be known up front: pass the smallest width and
+ * height of the inputs (see <tt>Utils.readSize</tt>) to the constructor.
+ *
+ * The mosaic is grayscale while every picture added is, and becomes RGB
+ * when the first colour picture arrives.
+ */
+public class MosaicBuilder {
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int width;
+    private final int height;
+    private final boolean[] added;
+    private int missing;
+    private Picture mosaic;
+
+    /**
+     * Start a mosaic of <tt>count</tt> pictures whose common area is
+     * <tt>minWidth</tt> by <tt>minHeight</tt>.
+     *
+     * @param tileWidth
+     *                    the width of each tile, at least 1
+     * @param tileHeight
+     *                    the height of each tile, at least 1
+     * @param count
+     *                    how many pictures the mosaic takes tiles from
+     * @param minWidth
+     *                    the smallest width of those pictures
+     * @param minHeight
+     *                    the smallest height of those pictures
+     * @throws IllegalArgumentException
+     *                     if a tile dimension or the count is less than 1.
+     */
+    public MosaicBuilder(int tileWidth, int tileHeight, int count,
+            int minWidth, int minHeight) {
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("tiles must be at least 1x1, "
+                + "were " + tileWidth + "x" + tileHeight);
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("a mosaic needs at least one "
+                + "picture");
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        // This makes the dimensions divisible by the tile size
+        this.width = (minWidth / tileWidth) * tileWidth;
+        this.height = (minHeight / tileHeight) * tileHeight;
+        this.added = new boolean[count];
+        this.missing = count;
+    }
+
+    /**
+     * Fill the tiles that come from picture number <tt>index</tt>. Rows are
+     * filled in parallel, each tile span being one
+     * <tt>System.arraycopy</tt> from the picture's raw raster. Pictures are
+     * added one at a time, as a colour picture may turn the tiles filled so
+     * far into RGB.
+     *
+     * @param index
+     *                    the position of the picture among the inputs
+     * @param picture
+     *                    the picture, at least as large as the common area
+     * @throws IllegalArgumentException
+     *                     if the picture is smaller than the common area, or
+     *                     one with this index was already added.
+     */
+    public synchronized void add(final int index, final Picture picture) {
+        if (picture.getWidth() < width || picture.getHeight() < height) {
+            throw new IllegalArgumentException("picture " + index + " is "
+                + picture.getWidth() + "x" + picture.getHeight()
+                + ", smaller than the " + width + "x" + height + " mosaic");
+        }
+        if (added[index]) {
+            throw new IllegalArgumentException("picture " + index
+                + " was already added");
+        }
+        added[index] = true;
+        missing--;
+        if (mosaic == null) {
+            mosaic = picture.isGray() ? Process.grayDestination(width, height)
+                : Process.getPool().acquire(width, height);
+        } else if (mosaic.isGray() && !picture.isGray()) {
+            Picture rgb = Process.getPool().acquire(width, height);
+            mosaic.getRegion(0, 0, width, height, rgb.getPixels(), 0, width);
+            mosaic = rgb;
+        }
+
+        final int count = added.length;
+        if (mosaic.isGray()) {
+            final byte[] levels = picture.levels();
+            final byte[] dst = mosaic.getGray();
+            final int pictureWidth = picture.getWidth();
+            Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+                for (int y = fromY; y < toY; y++) {
+                    int column = Math.floorMod(index - y / tileHeight, count);
+                    for (int x = column * tileWidth; x < width;
+                            x += count * tileWidth) {
+                        System.arraycopy(levels, y * pictureWidth + x, dst,
+                            y * width + x, tileWidth);
+                    }
+                }
+            });
+            return;
+        }
+        final int[] dst = mosaic.getPixels();
+        Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+            int[] scratch = picture.hasPixels()
+                ? null : new int[picture.getWidth()];
+            for (int y = fromY; y < toY; y++) {
+                // The first tile column of this row taken from the picture
+                int column = Math.floorMod(index - y / tileHeight, count);
+                if (column * tileWidth >= width) {
+                    continue;
+                }
+                int[] src = picture.rows(y, y + 1, scratch);
+                int offset = picture.rowsOffset(y);
+                for (int x = column * tileWidth; x < width;
+                        x += count * tileWidth) {
+                    System.arraycopy(src, offset + x, dst, y * width + x,
+                        tileWidth);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the finished mosaic.
+     *
+     * @return the mosaic, once every picture has been added.
+     * @throws IllegalStateException
+     *                     if some picture has not been added.
+     */
+    public synchronized Picture result() {
+        if (missing > 0) {
+            throw new IllegalStateException(missing
+                + " pictures of the mosaic have not been added");
+        }
+        return mosaic;
+    }
+}
@@ -0,0 +1,179 @@
+package picture;
+
+/**
+ * The eight ways of laying a rectangular picture back onto a grid: the
+ * symmetries of the square (the dihedral group D4). Every chain of
+ * <tt>rotate</tt> and <tt>flip</tt> operations is one of these, so a chain
+ * can be composed with <tt>then</tt> and applied as a single remap by
+ * <tt>Process.orient</tt>.
+ *
+ * Each orientation is described by where it sends the source pixel (x,y)
+ * of a w-by-h picture. Without swapped axes the destination is w-by-h and
+ * the pixel lands at (x', y'), with x' = w - 1 - x if the X axis is
+ * mirrored (x otherwise) and likewise for y. With swapped axes the
+ * destination is h-by-w and the pixel lands at (y', x'), with y' mirrored
+ * about h and x' about w.
+ */
+public enum Orientation {
+    IDENTITY(false, false, false),
+    ROTATE_90(true, true, false),
+    ROTATE_180(false, true, true),
+    ROTATE_270(true, false, true),
+    FLIP_H(false, true, false),
+    FLIP_V(false, false, true),
+    /** Reflection in the main diagonal: (x,y) goes to (y,x). */
+    TRANSPOSE(true, false, false),
+    /** Reflection in the anti-diagonal. */
+    TRANSVERSE(true, true, true);
+
+    private final boolean swap;
+    private final boolean mirrorX;
+    private final boolean mirrorY;
+
+    private Orientation(boolean swap, boolean mirrorX, boolean mirrorY) {
+        this.swap = swap;
+        this.mirrorX = mirrorX;
+        this.mirrorY = mirrorY;
+    }
+
+    /**
+     * Return whether this orientation exchanges the width and height of a
+     * picture.
+     *
+     * @return <tt>true</tt> for the quarter turns and diagonal reflections.
+     */
+    public boolean swapsAxes() {
+        return swap;
+    }
+
+    /**
+     * Return whether the destination's X axis runs backwards.
+     *
+     * @return <tt>true</tt> if destination x' is mirrored.
+     */
+    boolean mirrorsX() {
+        return mirrorX;
+    }
+
+    /**
+     * Return whether the destination's Y axis runs backwards.
+     *
+     * @return <tt>true</tt> if destination y' is mirrored.
+     */
+    boolean mirrorsY() {
+        return mirrorY;
+    }
+
+    /**
+     * Return the orientation obtained by applying <tt>this</tt> and then
+     * <tt>next</tt>.
+     *
+     * @param next
+     *                    the orientation applied second
+     * @return the composition of the two orientations.
+     */
+    public Orientation then(Orientation next) {
+        // Compose as signed permutation matrices acting on coordinates
+        // measured from the centre of the picture
+        int[] a = matrix();
+        int[] b = next.matrix();
+        return fromMatrix(
+            b[0] * a[0] + b[1] * a[2], b[0] * a[1] + b[1] * a[3],
+            b[2] * a[0] + b[3] * a[2], b[2] * a[1] + b[3] * a[3]);
+    }
+
+    /**
+     * Return the orientation that undoes <tt>this</tt>.
+     *
+     * @return the inverse of this orientation.
+     */
+    public Orientation inverse() {
+        for (Orientation candidate : values()) {
+            if (then(candidate) == IDENTITY) {
+                return candidate;
+            }
+        }
+        throw new AssertionError("D4 is a group");
+    }
+
+    /**
+     * Compose a chain of orientations, applied from first to last.
+     *
+     * @param steps
+     *                    the orientations in the order they are applied
+     * @return the single orientation equivalent to the chain.
+     */
+    public static Orientation compose(Orientation... steps) {
+        Orientation result = IDENTITY;
+        for (Orientation step : steps) {
+            result = result.then(step);
+        }
+        return result;
+    }
+
+    public static Orientation of(Process.Angle angle) {
+        switch (angle) {
+            case _90:
+                return ROTATE_90;
+            case _180:
+                return ROTATE_180;
+            case _270:
+                return ROTATE_270;
+            default:
+                throw new IllegalArgumentException("Unknown angle " + angle);
+        }
+    }
+
+    public static Orientation of(Process.Direction direction) {
+        switch (direction) {
+            case H:
+                return FLIP_H;
+            case V:
+                return FLIP_V;
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown direction " + direction);
+        }
+    }
+
+    /**
+     * Parse one step of a chain as written on the command line: a rotation
+     * angle (90, 180, 270) or a flip direction (H, V).
+     *
+     * @param step
+     *                    the step to parse
+     * @return the corresponding orientation.
+     * @throws IllegalArgumentException
+     *                     if the step is neither an angle nor a direction.
+     */
+    public static Orientation parse(String step) {
+        if (Character.isDigit(step.charAt(0))) {
+            return of(Process.Angle.valueOf("_" + step));
+        }
+        return of(Process.Direction.valueOf(step.toUpperCase()));
+    }
+
+    /* The matrix {m00, m01, m10, m11} sending (x, y) to (x', y') */
+    private int[] matrix() {
+        int sx = mirrorX ? -1 : 1;
+        int sy = mirrorY ? -1 : 1;
+        if (swap) {
+            return new int[] { 0, sx, sy, 0 };
+        }
+        return new int[] { sx, 0, 0, sy };
+    }
+
+    private static Orientation fromMatrix(int m00, int m01, int m10,
+            int m11) {
+        boolean swap = m00 == 0;
+        boolean mirrorX = (swap ? m01 : m00) < 0;
+        boolean mirrorY = (swap ? m10 : m11) < 0;
+        for (Orientation candidate : values()) {
+            if (candidate.swap == swap && candidate.mirrorX == mirrorX
+                    && candidate.mirrorY == mirrorY) {
+                return candidate;
+            }
+        }
+        throw new AssertionError("not a symmetry of the square");
+    }
+}
@@ -1,8 +1,16 @@
 package picture;
 
 import java.awt.image.BufferedImage;
-import java.lang.reflect.Method;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.IntBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A class that encapsulates and provides a simplified interface for
@@ -10,11 +18,45 @@ import java.util.Iterator;
  * the RGB direct colour model. Refer to <tt>picture.PictureTool</tt> for
  * information on how to create instances of this class.
  * 
+ * The pixels are held in a single row-major <tt>int[]</tt>, shared with the
+ * <tt>DataBufferInt</tt> of the underlying <tt>TYPE_INT_RGB</tt> image. Each
+ * element is a packed RGB value of the form <tt>0x00RRGGBB</tt>; the top byte
+ * is always zero. The pixel (x,y) lives at index <tt>y * getWidth() + x</tt>.
+ * 
+ * A picture may instead sit directly on an <tt>IntBuffer</tt>, typically a
+ * memory-mapped raster file (see <tt>picture.RasterFiles</tt>), with the same
+ * layout. Such a picture is never copied onto the heap: every accessor and
+ * traversal reads and writes the buffer.
+ * 
+ * A grayscale picture holds one byte per pixel instead, in the
+ * <tt>byte[]</tt> of a <tt>TYPE_BYTE_GRAY</tt> image, a quarter of the
+ * memory of an RGB one. It reads as RGB like any other picture, each pixel
+ * having its gray level in all three channels; a colour written to it is
+ * stored as the floor of the mean of its channels, as
+ * <tt>Process.grayscale</tt> computes it.
+ * 
  * @see picture.Utils PictureTool
  */
-public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
+public class Picture implements Iterable<Picture.Pixel>
 {
 
+    /**
+     * Receives the pixels of a picture one at a time, as primitives.
+     */
+    public interface PixelVisitor {
+        void visit(int x, int y, int rgb);
+    }
+
+    /**
+     * Receives the pixels of a picture one row at a time. The row is the
+     * <tt>width</tt> packed RGB values starting at <tt>row[offset]</tt>; the
+     * array may be the picture's own raster, so it must not be modified and
+     * must not be read outside that span.
+     */
+    public interface RowVisitor {
+        void visit(int y, int[] row, int offset, int width);
+    }
+
     public class Pixel {
         public final int x, y;
         public final Color color;
@@ -27,36 +69,205 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
     }
 
     /** The internal image representation of this picture. */
-    private final BufferedImage image;
+    private BufferedImage image;
+
+    /** The packed RGB raster of image, one int per pixel, row-major. */
+    private final int[] pixels;
+
+    /** The packed RGB raster of a buffer-backed picture, else null. */
+    private final IntBuffer buffer;
 
-    private Pixel currentPixel;
+    /** The gray levels of a grayscale picture, one per pixel, else null. */
+    private final byte[] gray;
+
+    private final int width;
+    private final int height;
+
+    /** The digest of the pixels, or null if it is not known to be current. */
+    private volatile Digest digest;
 
     /**
      * Construct a new Picture object from the specified image.
      * 
      * @param image
      *                    the internal representation of the image.
+     * @throws IllegalArgumentException
+     *                     if the image is not a plain <tt>TYPE_INT_RGB</tt> or
+     *                     <tt>TYPE_BYTE_GRAY</tt> image whose raster can be
+     *                     addressed directly.
      */
     protected Picture(BufferedImage image) {
         this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.buffer = null;
+        if (isPlainGray(image)) {
+            this.gray = ((DataBufferByte) image.getRaster().getDataBuffer())
+                .getData();
+            this.pixels = null;
+            return;
+        }
+        if (image.getType() != BufferedImage.TYPE_INT_RGB
+                || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) image.getSampleModel())
+                       .getScanlineStride() != image.getWidth()
+                || image.getRaster().getDataBuffer().getOffset() != 0) {
+            throw new IllegalArgumentException("Picture requires an unshared "
+                + "TYPE_INT_RGB or TYPE_BYTE_GRAY image");
+        }
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+            .getData();
+        this.gray = null;
+    }
+
+    /*
+     * Whether image is a TYPE_BYTE_GRAY image whose bytes are exactly its
+     * row-major gray levels, as a new image or an 8-bit gray PNG decoded
+     * by ImageIO is.
+     */
+    static boolean isPlainGray(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY
+                || !(image.getSampleModel() instanceof ComponentSampleModel)
+                || image.getRaster().getParent() != null) {
+            return false;
+        }
+        ComponentSampleModel model =
+            (ComponentSampleModel) image.getSampleModel();
+        return model.getPixelStride() == 1
+            && model.getScanlineStride() == image.getWidth()
+            && model.getBandOffsets()[0] == 0
+            && image.getRaster().getDataBuffer().getOffset() == 0;
     }
 
     /**
-     * Return the internal image represented by the Picture.
+     * Construct a new Picture object over a buffer holding a row-major
+     * packed RGB raster of the given size. The pixels are not copied.
+     * 
+     * @param buffer
+     *                    the raster, with (x,y) at index <tt>y * width + x</tt>
+     * @param width
+     *                    the width of the picture
+     * @param height
+     *                    the height of the picture
+     * @throws IllegalArgumentException
+     *                     if the buffer does not hold exactly width * height
+     *                     pixels.
+     */
+    Picture(IntBuffer buffer, int width, int height) {
+        if ((long) width * height != buffer.remaining()) {
+            throw new IllegalArgumentException("a " + width + "x" + height
+                + " picture needs " + (long) width * height + " pixels, the "
+                + "buffer holds " + buffer.remaining());
+        }
+        this.buffer = buffer.slice();
+        this.width = width;
+        this.height = height;
+        this.pixels = null;
+        this.gray = null;
+    }
+
+    /**
+     * Return the internal image represented by the Picture. For a
+     * buffer-backed picture this is a view of the buffer, created on first
+     * use; for a grayscale picture it is a <tt>TYPE_BYTE_GRAY</tt> image.
      * 
      * @return the <tt>BufferedImage</tt> associated with this <tt>Picture</tt>.
      */
-    protected BufferedImage getImage() {
+    protected synchronized BufferedImage getImage() {
+        // The image can be drawn on, so the digest may go stale
+        digest = null;
+        if (image == null) {
+            DirectColorModel model = new DirectColorModel(24, 0xff0000,
+                0xff00, 0xff);
+            image = new BufferedImage(model, Raster.createWritableRaster(
+                model.createCompatibleSampleModel(width, height),
+                new IntBufferDataBuffer(buffer), null), false, null);
+        }
         return image;
     }
 
+    /**
+     * Return whether this picture sits on an <tt>IntBuffer</tt> rather than
+     * an <tt>int[]</tt>, in which case <tt>getPixels</tt> is unavailable.
+     * 
+     * @return <tt>true</tt> for buffer-backed pictures.
+     */
+    public boolean isBufferBacked() {
+        return buffer != null;
+    }
+
+    /**
+     * Return whether this picture holds one gray level per pixel rather
+     * than a packed RGB value.
+     * 
+     * @return <tt>true</tt> for grayscale pictures.
+     */
+    public boolean isGray() {
+        return gray != null;
+    }
+
+    /**
+     * Return whether this picture's pixels are a heap <tt>int[]</tt>, so
+     * that <tt>getPixels</tt> is available and <tt>rows</tt> never needs
+     * its scratch array.
+     */
+    boolean hasPixels() {
+        return pixels != null;
+    }
+
+    /**
+     * Return the raster of a grayscale picture, one gray level per pixel,
+     * row-major. Writes to the returned array are visible in the picture.
+     * 
+     * @return the gray levels, with (x,y) at index <tt>y * getWidth() + x</tt>.
+     * @throws IllegalStateException
+     *                     if the picture is not grayscale.
+     */
+    byte[] getGray() {
+        if (gray == null) {
+            throw new IllegalStateException("picture is not grayscale");
+        }
+        digest = null;
+        return gray;
+    }
+
+    /**
+     * Return the raster of a grayscale picture for reading, like
+     * <tt>getGray</tt> but leaving the digest alone. The returned array must
+     * not be modified.
+     */
+    byte[] levels() {
+        if (gray == null) {
+            throw new IllegalStateException("picture is not grayscale");
+        }
+        return gray;
+    }
+
+    /**
+     * Return the gray level a grayscale picture stores for a packed RGB
+     * value: the floor of the mean of its channels.
+     */
+    static int level(int rgb) {
+        return (((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3;
+    }
+
+    /**
+     * Return the raster of a buffer-backed picture.
+     * 
+     * @return the buffer holding the pixels, or null for a heap picture.
+     */
+    IntBuffer getBuffer() {
+        digest = null;
+        return buffer;
+    }
+
     /**
      * Return the width of the <tt>Picture</tt>.
      * 
      * @return the width of this <tt>Picture</tt>.
      */
     public int getWidth() {
-        return image.getWidth();
+        return width;
     }
 
     /**
@@ -65,7 +276,49 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
      * @return the height of this <tt>Picture</tt>.
      */
     public int getHeight() {
-        return image.getHeight();
+        return height;
+    }
+
+    /**
+     * Return the packed pixel raster of this <tt>Picture</tt>. Writes to the
+     * returned array are visible in the picture (and vice versa).
+     * 
+     * @return the row-major <tt>0x00RRGGBB</tt> pixel array.
+     * @throws IllegalStateException
+     *                     if the picture is buffer-backed or grayscale.
+     */
+    int[] getPixels() {
+        if (pixels == null) {
+            throw new IllegalStateException(gray != null
+                ? "picture is grayscale" : "picture is buffer-backed");
+        }
+        digest = null;
+        return pixels;
+    }
+
+    /**
+     * Return an array holding rows <tt>fromY</tt> to <tt>toY</tt>
+     * (exclusive) one after the other, starting at index
+     * <tt>rowsOffset(fromY)</tt>. For a heap picture this is the raster
+     * itself; otherwise the rows are copied (or, for a grayscale picture,
+     * expanded to RGB) into <tt>scratch</tt>, which
+     * must hold at least <tt>(toY - fromY) * getWidth()</tt> pixels. The
+     * returned array must not be modified.
+     */
+    int[] rows(int fromY, int toY, int[] scratch) {
+        if (pixels != null) {
+            return pixels;
+        }
+        getRegion(0, fromY, width, toY - fromY, scratch, 0, width);
+        return scratch;
+    }
+
+    /**
+     * Return the index at which <tt>rows(fromY, ...)</tt> places row
+     * <tt>fromY</tt>.
+     */
+    int rowsOffset(int fromY) {
+        return pixels != null ? fromY * width : 0;
     }
 
     /**
@@ -82,7 +335,7 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
      *                     boundaries of this picture.
      */
     public Color getPixel(int x, int y) {
-        int rgb = image.getRGB(x, y);
+        int rgb = getRGB(x, y);
         return new Color((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
     }
 
@@ -100,9 +353,190 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
      *                     boundaries of this picture.
      */
     public void setPixel(int x, int y, Color rgb) {
+        setRGB(x, y, ((0xff & rgb.getRed()) << 16)
+                | ((0xff & rgb.getGreen()) << 8) | (0xff & rgb.getBlue()));
+    }
+
+    /**
+     * Return the packed <tt>0x00RRGGBB</tt> value of the pixel at (x,y).
+     * 
+     * @param x
+     *                    x-coordinate of the pixel value to return
+     * @param y
+     *                    y-coordinate of the pixel value to return
+     * @return the packed RGB value of the pixel located at (x,y).
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the specified pixel-location is not contained within the
+     *                     boundaries of this picture.
+     */
+    public int getRGB(int x, int y) {
+        checkBounds(x, y);
+        if (gray != null) {
+            return (gray[y * width + x] & 0xff) * 0x010101;
+        }
+        return pixels != null ? pixels[y * width + x]
+            : buffer.get(y * width + x);
+    }
+
+    /**
+     * Update the pixel at (x,y) with a packed RGB value. Any alpha bits in
+     * <tt>rgb</tt> are discarded, and a grayscale picture keeps only the
+     * mean of the channels.
+     * 
+     * @param x
+     *                    the x-coordinate of the pixel to be updated
+     * @param y
+     *                    the y-coordinate of the pixel to be updated
+     * @param rgb
+     *                    the packed RGB value of the updated pixel
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the specified pixel-location is not contained within the
+     *                     boundaries of this picture.
+     */
+    public void setRGB(int x, int y, int rgb) {
+        checkBounds(x, y);
+        digest = null;
+        if (pixels != null) {
+            pixels[y * width + x] = rgb & 0xffffff;
+        } else if (gray != null) {
+            gray[y * width + x] = (byte) level(rgb);
+        } else {
+            buffer.put(y * width + x, rgb & 0xffffff);
+        }
+    }
 
-        image.setRGB(x, y, 0xff000000 | (((0xff & rgb.getRed()) << 16)
-                | ((0xff & rgb.getGreen()) << 8) | (0xff & rgb.getBlue())));
+    /**
+     * Copy row y of this picture into <tt>dst</tt>, starting at
+     * <tt>offset</tt>.
+     * 
+     * @param y
+     *                    the row to read
+     * @param dst
+     *                    the array receiving <tt>getWidth()</tt> packed RGB values
+     * @param offset
+     *                    the first index of <tt>dst</tt> to write
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the row does not exist or does not fit in <tt>dst</tt>.
+     */
+    public void getRow(int y, int[] dst, int offset) {
+        getRegion(0, y, width, 1, dst, offset, width);
+    }
+
+    /**
+     * Overwrite row y of this picture with the values in <tt>src</tt>,
+     * starting at <tt>offset</tt>. The values must be packed RGB with a zero
+     * top byte.
+     * 
+     * @param y
+     *                    the row to write
+     * @param src
+     *                    the array holding <tt>getWidth()</tt> packed RGB values
+     * @param offset
+     *                    the first index of <tt>src</tt> to read
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the row does not exist or <tt>src</tt> is too short.
+     */
+    public void setRow(int y, int[] src, int offset) {
+        setRegion(0, y, width, 1, src, offset, width);
+    }
+
+    /**
+     * Copy the w-by-h region whose top-left corner is (x,y) into
+     * <tt>dst</tt>. Row r of the region is written to
+     * <tt>dst[offset + r * scan]</tt> onwards.
+     * 
+     * @param x
+     *                    x-coordinate of the top-left corner of the region
+     * @param y
+     *                    y-coordinate of the top-left corner of the region
+     * @param w
+     *                    width of the region
+     * @param h
+     *                    height of the region
+     * @param dst
+     *                    the array receiving the packed RGB values
+     * @param offset
+     *                    the first index of <tt>dst</tt> to write
+     * @param scan
+     *                    the distance in <tt>dst</tt> between successive rows
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the region is not contained within this picture or
+     *                     does not fit in <tt>dst</tt>.
+     */
+    public void getRegion(int x, int y, int w, int h, int[] dst, int offset,
+            int scan) {
+        checkRegion(x, y, w, h);
+        for (int r = 0; r < h; r++) {
+            if (pixels != null) {
+                System.arraycopy(pixels, (y + r) * width + x, dst,
+                    offset + r * scan, w);
+            } else if (gray != null) {
+                for (int i = 0, s = (y + r) * width + x, d = offset + r * scan;
+                        i < w; i++) {
+                    dst[d++] = (gray[s++] & 0xff) * 0x010101;
+                }
+            } else {
+                buffer.get((y + r) * width + x, dst, offset + r * scan, w);
+            }
+        }
+    }
+
+    /**
+     * Overwrite the w-by-h region whose top-left corner is (x,y) with the
+     * values in <tt>src</tt>. Row r of the region is read from
+     * <tt>src[offset + r * scan]</tt> onwards. The values must be packed RGB
+     * with a zero top byte.
+     * 
+     * @param x
+     *                    x-coordinate of the top-left corner of the region
+     * @param y
+     *                    y-coordinate of the top-left corner of the region
+     * @param w
+     *                    width of the region
+     * @param h
+     *                    height of the region
+     * @param src
+     *                    the array holding the packed RGB values
+     * @param offset
+     *                    the first index of <tt>src</tt> to read
+     * @param scan
+     *                    the distance in <tt>src</tt> between successive rows
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the region is not contained within this picture or
+     *                     <tt>src</tt> is too short.
+     */
+    public void setRegion(int x, int y, int w, int h, int[] src, int offset,
+            int scan) {
+        checkRegion(x, y, w, h);
+        digest = null;
+        for (int r = 0; r < h; r++) {
+            if (pixels != null) {
+                System.arraycopy(src, offset + r * scan, pixels,
+                    (y + r) * width + x, w);
+            } else if (gray != null) {
+                for (int i = 0, s = offset + r * scan, d = (y + r) * width + x;
+                        i < w; i++) {
+                    gray[d++] = (byte) level(src[s++]);
+                }
+            } else {
+                buffer.put((y + r) * width + x, src, offset + r * scan, w);
+            }
+        }
+    }
+
+    private void checkBounds(int x, int y) {
+        if (!contains(x, y)) {
+            throw new ArrayIndexOutOfBoundsException(
+                "(" + x + "," + y + ") is outside the picture");
+        }
+    }
+
+    private void checkRegion(int x, int y, int w, int h) {
+        if (w < 0 || h < 0 || x < 0 || y < 0 || x > width - w
+                || y > height - h) {
+            throw new ArrayIndexOutOfBoundsException("region " + w + "x" + h
+                + " at (" + x + "," + y + ") is outside the picture");
+        }
     }
 
     /**
@@ -116,7 +550,7 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
      *                 picture, <tt>false</tt> otherwise.
      */
     public boolean contains(int x, int y) {
-        return x >= 0 && y >= 0 && x < getWidth() && y < getHeight();
+        return x >= 0 && y >= 0 && x < width && y < height;
     }
 
     // Don't worry too much about the following two methods for the moment
@@ -138,37 +572,39 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
         }
 
         Picture other = (Picture) otherO;
-
-        if (image == null || other.image == null) {
-            return image == other.image;
-        }
-        if (image.getWidth() != other.image.getWidth()
-                || image.getHeight() != other.image.getHeight()) {
-            return false;
+        if (other == this) {
+            return true;
         }
 
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                if (image.getRGB(i, j) != other.image.getRGB(i, j)) {
-                    return false;
-                }
-
-            }
+        // Digests already computed settle most inequalities without
+        // touching the pixels; equal digests still need the full compare
+        Digest mine = digest;
+        Digest theirs = other.digest;
+        if (mine != null && theirs != null && !mine.equals(theirs)) {
+            return false;
         }
-        return true;
+        return Comparison.equal(this, other);
     }
 
     public int hashCode() {
-        if (image == null) {
-            return -1;
-        }
-        int hashCode = 0;
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                hashCode = 31 * hashCode + image.getRGB(i, j);
-            }
+        return digest().hashCode();
+    }
+
+    /**
+     * Return a 128-bit digest of this picture's size and pixels. It is
+     * computed on first use and remembered until the picture is next
+     * modified through this class, or its pixels or image are handed out
+     * for writing.
+     * 
+     * @return the content digest of this picture.
+     */
+    public Digest digest() {
+        Digest current = digest;
+        if (current == null) {
+            current = Digest.of(this);
+            digest = current;
         }
-        return hashCode;
+        return current;
     }
 
 
@@ -196,33 +632,130 @@ public class Picture implements Iterator<Picture.Pixel>, Iterable<Picture.Pixel>
         }
     }
 
-    /* Iterable Methods */
-    public Iterator<Pixel> iterator() {
-        currentPixel = new Pixel(-1, 0, null);
-        return this;
+    /**
+     * Call <tt>visitor</tt> once for every pixel, in row-major order. No
+     * objects are allocated per pixel and several traversals of the same
+     * picture may run at once.
+     * 
+     * @param visitor
+     *                    the callback receiving each pixel
+     */
+    public void forEachPixel(PixelVisitor visitor) {
+        forEachPixel(0, height, visitor);
     }
 
-    /* Iterator Methods */
-    @Override
-    public boolean hasNext() {
-        return !((currentPixel.x == getWidth() - 1) &&
-                 (currentPixel.y == getHeight() - 1));
+    /**
+     * Call <tt>visitor</tt> once for every pixel in rows <tt>fromY</tt>
+     * (inclusive) to <tt>toY</tt> (exclusive), in row-major order.
+     * 
+     * @param fromY
+     *                    the first row to visit
+     * @param toY
+     *                    one past the last row to visit
+     * @param visitor
+     *                    the callback receiving each pixel
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the rows are not contained within this picture.
+     */
+    public void forEachPixel(int fromY, int toY, PixelVisitor visitor) {
+        checkRegion(0, fromY, width, toY - fromY);
+        int[] scratch = pixels != null ? null : new int[width];
+        for (int y = fromY; y < toY; y++) {
+            int[] row = rows(y, y + 1, scratch);
+            for (int x = 0, i = rowsOffset(y); x < width; x++, i++) {
+                visitor.visit(x, y, row[i]);
+            }
+        }
     }
 
-    @Override
-    public Pixel next() {
-        int x = currentPixel.x + 1;
-        int y = currentPixel.y;
-        if (currentPixel.x == getWidth() - 1) {
-            x = 0;
-            y++;
-        }
+    /**
+     * Call <tt>visitor</tt> once for every row, from top to bottom, without
+     * copying the pixels of heap pictures.
+     * 
+     * @param visitor
+     *                    the callback receiving each row
+     */
+    public void forEachRow(RowVisitor visitor) {
+        forEachRow(0, height, visitor);
+    }
 
-        currentPixel = new Pixel(x, y, getPixel(x, y));
-        return currentPixel;
+    /**
+     * Call <tt>visitor</tt> once for every row from <tt>fromY</tt>
+     * (inclusive) to <tt>toY</tt> (exclusive), without copying the pixels
+     * of heap pictures. Rows of a buffer-backed picture are copied into a
+     * scratch row first.
+     * 
+     * @param fromY
+     *                    the first row to visit
+     * @param toY
+     *                    one past the last row to visit
+     * @param visitor
+     *                    the callback receiving each row
+     * @throws ArrayIndexOutOfBoundsException
+     *                     if the rows are not contained within this picture.
+     */
+    public void forEachRow(int fromY, int toY, RowVisitor visitor) {
+        checkRegion(0, fromY, width, toY - fromY);
+        int[] scratch = pixels != null ? null : new int[width];
+        for (int y = fromY; y < toY; y++) {
+            visitor.visit(y, rows(y, y + 1, scratch), rowsOffset(y), width);
+        }
     }
 
+    /**
+     * Return an iterator over the pixels of this picture in row-major order.
+     * Each call returns an independent iterator, but every step allocates a
+     * <tt>Pixel</tt> and a <tt>Color</tt>; prefer <tt>forEachPixel</tt> on
+     * large pictures.
+     * 
+     * @return a new iterator over the pixels of this picture.
+     */
     @Override
-    public void remove() {}
+    public Iterator<Pixel> iterator() {
+        return new Iterator<Pixel>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < width * height;
+            }
+
+            @Override
+            public Pixel next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int x = next % width;
+                int y = next / width;
+                next++;
+                return new Pixel(x, y, getPixel(x, y));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* Lets a BufferedImage read and write the pixels of an IntBuffer */
+    private static class IntBufferDataBuffer extends DataBuffer {
+        private final IntBuffer buffer;
+
+        IntBufferDataBuffer(IntBuffer buffer) {
+            super(DataBuffer.TYPE_INT, buffer.capacity());
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return buffer.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            buffer.put(i, val);
+        }
+    }
 
 }
@@ -0,0 +1,148 @@
+package picture;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps pictures that are no longer needed so that later operations can
+ * reuse their rasters instead of allocating new ones. Large short-lived
+ * rasters are what drives the garbage collector into full collections in
+ * long batch runs; recycling them keeps the heap steady.
+ *
+ * Pictures are kept by width and height, up to a budget in bytes. When the
+ * budget is exceeded, pictures of the size released least recently are
+ * dropped first. A picture handed out by <tt>acquire</tt> holds whatever
+ * its previous owner left in it, so it is only suitable as a destination
+ * that will be overwritten completely. All methods may be called from
+ * several threads.
+ */
+public class PicturePool {
+
+    private final long maxBytes;
+
+    /* Free pictures by size, the size released least recently first */
+    private final LinkedHashMap<Long, ArrayDeque<Picture>> free =
+        new LinkedHashMap<Long, ArrayDeque<Picture>>(16, 0.75f, true);
+    private final Set<Picture> pooled =
+        Collections.newSetFromMap(new IdentityHashMap<Picture, Boolean>());
+    private long bytes;
+
+    private long reused;
+    private long allocated;
+
+    /**
+     * Create a pool holding up to <tt>maxBytes</tt> of free pictures.
+     *
+     * @param maxBytes
+     *                    the budget, 4 bytes per pixel; 0 keeps nothing
+     */
+    public PicturePool(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("negative pool size "
+                + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return a heap picture of the given size, reusing a released one if
+     * there is one. Its pixels are unspecified.
+     *
+     * @param width
+     *                    the width of the picture
+     * @param height
+     *                    the height of the picture
+     * @return a picture the caller now owns.
+     */
+    public Picture acquire(int width, int height) {
+        synchronized (this) {
+            Long size = sizeKey(width, height);
+            ArrayDeque<Picture> pictures = free.get(size);
+            if (pictures != null) {
+                Picture picture = pictures.poll();
+                if (pictures.isEmpty()) {
+                    free.remove(size);
+                }
+                pooled.remove(picture);
+                bytes -= sizeOf(picture);
+                reused++;
+                return picture;
+            }
+            allocated++;
+        }
+        return Utils.createPicture(width, height);
+    }
+
+    /**
+     * Give a picture back to the pool. The caller must not use it, or any
+     * image or array obtained from it, afterwards. Buffer-backed and
+     * grayscale pictures, pictures already in the pool and pictures that
+     * would exceed the budget are ignored.
+     *
+     * @param picture
+     *                    the picture to recycle, or null
+     */
+    public synchronized void release(Picture picture) {
+        if (picture == null || !picture.hasPixels()
+                || sizeOf(picture) > maxBytes || !pooled.add(picture)) {
+            return;
+        }
+        free.computeIfAbsent(sizeKey(picture.getWidth(), picture.getHeight()),
+            size -> new ArrayDeque<Picture>()).push(picture);
+        bytes += sizeOf(picture);
+
+        Iterator<Map.Entry<Long, ArrayDeque<Picture>>> eldest =
+            free.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            ArrayDeque<Picture> pictures = eldest.next().getValue();
+            while (bytes > maxBytes && !pictures.isEmpty()) {
+                Picture dropped = pictures.pollLast();
+                pooled.remove(dropped);
+                bytes -= sizeOf(dropped);
+            }
+            if (pictures.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Return how many bytes of free pictures the pool holds.
+     *
+     * @return the memory held for reuse.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return how many acquisitions were served by a released picture.
+     *
+     * @return the number of reuses so far.
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * Return how many acquisitions had to allocate a new picture.
+     *
+     * @return the number of allocations so far.
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    private static Long sizeKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    private static long sizeOf(Picture picture) {
+        return 4L * picture.getWidth() * picture.getHeight();
+    }
+}
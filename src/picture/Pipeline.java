@@ -0,0 +1,513 @@
+package picture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Several transformations of one input run in a single process, without
+ * writing the pictures in between. A pipeline is written as branches
+ * separated by <tt>;</tt> or new lines, each a chain of stages separated by
+ * <tt>|</tt> and ending in <tt>&gt; output</tt>:
+ *
+ * <pre>
+ * grayscale | blur 3 | rotate 90 &gt; a.png; grayscale | edge &gt; b.png
+ * </pre>
+ *
+ * Each stage is a transformation and its arguments as <tt>Main</tt> takes
+ * them. Branches starting with the same stages share them: the pipeline is
+ * a tree whose common prefixes are computed once, and an intermediate
+ * result is kept only until the branches below it are done.
+ *
+ * Runs of stages whose output rows depend only on nearby input rows (the
+ * point operations, horizontal flips, blurs and the other convolutions)
+ * are fused: the run is applied to one strip of rows at a time, with the
+ * halo of rows each stage needs, so the intermediates between them only
+ * ever exist a strip at a time. Successive point operations are compiled
+ * into a single <tt>Tone</tt> first. Strips are about
+ * <tt>Scheduler.PIXELS_PER_STRIP</tt> pixels, small enough to stay in
+ * cache while every stage of the run reads and writes them. A fused run
+ * gives a grayscale picture exactly when running its stages one by one
+ * would.
+ */
+public final class Pipeline {
+
+    /**
+     * One transformation with its arguments, laid out as for
+     * <tt>Main.transform</tt>, and how it can be run on a strip of rows if
+     * it can.
+     */
+    static final class Stage {
+        private final String[] args;
+        private final Process.Transformation transformation;
+        private final Tone tone;
+        private final StripStream.Operation operation;
+        private final int halo;
+        private final String notRowLocal;
+
+        /**
+         * Parse a stage from <tt>&lt;transformation&gt; &lt;arguments&gt;
+         * &lt;input&gt; &lt;output&gt;</tt>, the last two not being used.
+         * Every argument is checked here, so a pipeline with a bad stage is
+         * rejected before any of its outputs is written.
+         */
+        Stage(String[] args) {
+            this.args = args.clone();
+            this.transformation =
+                Process.Transformation.valueOf(args[0].toUpperCase());
+
+            Tone pointTone = null;
+            StripStream.Operation rowOperation = null;
+            int rows = 0;
+            String problem = null;
+            for (int i = 1; i < args.length - 2; i++) {
+                if (args[i].equalsIgnoreCase(Process.Border.WRAP.name())) {
+                    // A window of rows cannot see the far edge it would
+                    // wrap round to
+                    problem = "Wrapped borders cannot be streamed";
+                }
+            }
+            switch (transformation) {
+                case INVERT:
+                    pointTone = Tone.invert();
+                    rowOperation = Process::invert;
+                    break;
+                case GRAYSCALE:
+                    pointTone = Tone.grayscale();
+                    rowOperation = Process::grayscale;
+                    break;
+                case TONE:
+                    final Tone tone = Tone.compile(
+                        Arrays.copyOfRange(args, 1, args.length - 2));
+                    pointTone = tone;
+                    rowOperation = window -> Process.tone(window, tone);
+                    break;
+                case FLIP:
+                    final Process.Direction direction =
+                        Process.Direction.valueOf(args[1].toUpperCase());
+                    if (direction != Process.Direction.H) {
+                        problem = "Only horizontal flips can be streamed";
+                    }
+                    rowOperation = window -> Process.flip(window, direction);
+                    break;
+                case BLUR:
+                    if (args.length == 3) {
+                        rows = 1;
+                        rowOperation = Process::blur;
+                    } else {
+                        final int radius = Integer.parseInt(args[1]);
+                        if (radius < 0 || radius > Process.MAX_BLUR_RADIUS) {
+                            throw new IllegalArgumentException("blur radius "
+                                + "must be between 0 and "
+                                + Process.MAX_BLUR_RADIUS + ", was " + radius);
+                        }
+                        final Process.Border border = border(2);
+                        rows = radius;
+                        rowOperation =
+                            window -> Process.blur(window, radius, border);
+                    }
+                    break;
+                case GAUSSIAN:
+                    final Convolution gaussian =
+                        Convolution.gaussian(Double.parseDouble(args[1]));
+                    final Process.Border gaussianBorder = border(2);
+                    rows = gaussian.getHeight() / 2;
+                    rowOperation = window ->
+                        Process.convolve(window, gaussian, gaussianBorder);
+                    break;
+                case SHARPEN:
+                case EMBOSS:
+                    final Convolution kernel = transformation
+                        == Process.Transformation.SHARPEN
+                        ? Convolution.SHARPEN : Convolution.EMBOSS;
+                    final Process.Border kernelBorder = border(1);
+                    rows = kernel.getHeight() / 2;
+                    rowOperation = window ->
+                        Process.convolve(window, kernel, kernelBorder);
+                    break;
+                case EDGE:
+                    final Process.Border edgeBorder = border(1);
+                    rows = 1;
+                    rowOperation = window -> Process.edges(window, edgeBorder);
+                    break;
+                case ROTATE:
+                    Process.Angle.valueOf("_" + args[1]);
+                    problem = transformation + " cannot be streamed";
+                    break;
+                case ORIENT:
+                    for (int i = 1; i < args.length - 2; i++) {
+                        Orientation.parse(args[i]);
+                    }
+                    problem = transformation + " cannot be streamed";
+                    break;
+                default:
+                    problem = transformation + " cannot be streamed";
+                    break;
+            }
+            this.tone = problem == null ? pointTone : null;
+            this.operation = problem == null ? rowOperation : null;
+            this.halo = rows;
+            this.notRowLocal = problem;
+        }
+
+        /**
+         * Return whether each output row depends only on the input rows
+         * within <tt>getHalo()</tt> of it, with the same width.
+         */
+        boolean isRowLocal() {
+            return operation != null;
+        }
+
+        /**
+         * Return the operation to run on a window of rows.
+         *
+         * @throws IllegalArgumentException
+         *                     if the stage is not row-local.
+         */
+        StripStream.Operation getOperation() {
+            if (operation == null) {
+                throw new IllegalArgumentException(notRowLocal);
+            }
+            return operation;
+        }
+
+        int getHalo() {
+            return halo;
+        }
+
+        /* The compiled tone of a point operation, or null */
+        Tone getTone() {
+            return tone;
+        }
+
+        String[] getArgs() {
+            return args.clone();
+        }
+
+        /* The stage as written, which identifies its result */
+        @Override
+        public String toString() {
+            return transformation.name().toLowerCase() + (args.length > 3
+                ? " " + String.join(" ",
+                    Arrays.copyOfRange(args, 1, args.length - 2))
+                : "");
+        }
+
+        private Process.Border border(int index) {
+            return index < args.length - 2
+                ? Process.Border.valueOf(args[index].toUpperCase())
+                : Process.Border.CLAMP;
+        }
+    }
+
+    /* A stage, the outputs saved from its result and the stages after it */
+    private static final class Node {
+        private final Stage stage;
+        private final List<String> outputs = new ArrayList<String>();
+        private final List<Node> children = new ArrayList<Node>();
+
+        Node(Stage stage) {
+            this.stage = stage;
+        }
+
+        /* The child running stage, shared if there is one already */
+        Node child(Stage next) {
+            for (Node child : children) {
+                if (child.stage.toString().equals(next.toString())) {
+                    return child;
+                }
+            }
+            Node child = new Node(next);
+            children.add(child);
+            return child;
+        }
+    }
+
+    private final Node root = new Node(null);
+    private final List<String> outputs = new ArrayList<String>();
+    private int stages;
+
+    private Pipeline() {
+    }
+
+    /**
+     * Parse a pipeline.
+     *
+     * @param spec
+     *                    the branches, as described above
+     * @param defaultOutput
+     *                    the output of a single branch not naming one, or
+     *                    null if every branch must
+     * @return the pipeline, its common stages shared.
+     * @throws IllegalArgumentException
+     *                     if a stage is not a transformation, has invalid
+     *                     arguments or takes more than one picture, a
+     *                     branch has no output, or two write the same file.
+     */
+    public static Pipeline parse(String spec, String defaultOutput) {
+        Pipeline pipeline = new Pipeline();
+        String[] branches = spec.split("[;\n]");
+        Set<String> seen = new HashSet<String>();
+        for (String branch : branches) {
+            if (branch.trim().isEmpty()) {
+                continue;
+            }
+            String chain = branch;
+            String output = null;
+            int arrow = branch.lastIndexOf('>');
+            if (arrow >= 0) {
+                chain = branch.substring(0, arrow);
+                output = branch.substring(arrow + 1).trim();
+            } else if (defaultOutput != null && branches.length == 1) {
+                output = defaultOutput;
+            }
+            if (output == null || output.isEmpty()) {
+                throw new IllegalArgumentException("No output for "
+                    + branch.trim());
+            }
+            if (!seen.add(output)) {
+                throw new IllegalArgumentException(output
+                    + " is written by two branches");
+            }
+
+            Node node = pipeline.root;
+            if (!chain.trim().isEmpty()) {
+                for (String text : chain.split("\\|")) {
+                    String[] words = text.trim().split("\\s+");
+                    if (words[0].isEmpty()) {
+                        throw new IllegalArgumentException("Empty stage in "
+                            + branch.trim());
+                    }
+                    String[] args = Arrays.copyOf(words, words.length + 2);
+                    args[words.length] = "-";
+                    args[words.length + 1] = "-";
+                    Stage stage = new Stage(args);
+                    if (stage.transformation == Process.Transformation.BLEND
+                            || stage.transformation
+                                == Process.Transformation.MOSAIC) {
+                        throw new IllegalArgumentException(
+                            stage.transformation
+                                + " takes more than one picture");
+                    }
+                    node = node.child(stage);
+                }
+            }
+            node.outputs.add(output);
+            pipeline.outputs.add(output);
+        }
+        if (pipeline.outputs.isEmpty()) {
+            throw new IllegalArgumentException("The pipeline has no branches");
+        }
+        pipeline.stages = count(pipeline.root) - 1;
+        return pipeline;
+    }
+
+    /**
+     * Return the files the pipeline writes, in the order given.
+     *
+     * @return the outputs.
+     */
+    public List<String> getOutputs() {
+        return new ArrayList<String>(outputs);
+    }
+
+    /**
+     * Return how many stages run once common prefixes are shared.
+     *
+     * @return the number of distinct stages.
+     */
+    public int getStageCount() {
+        return stages;
+    }
+
+    /**
+     * Run the pipeline on <tt>input</tt>, saving every output. The input
+     * is handed over: it may be overwritten and is released to the
+     * <tt>Process</tt> pool once done with.
+     *
+     * @param input
+     *                    the picture at the root of every branch
+     * @param png
+     *                    how PNG outputs are encoded
+     * @return the number of pixels written.
+     * @throws IOException
+     *                     if an output cannot be saved.
+     * @throws IllegalArgumentException
+     *                     if a stage has invalid arguments, or takes more
+     *                     than one picture.
+     */
+    public long run(Picture input, PngEncoder png) throws IOException {
+        return run(root, input, png);
+    }
+
+    /* Saves node's outputs from picture, then runs the stages below it */
+    private static long run(Node node, Picture picture, PngEncoder png)
+            throws IOException {
+        long pixels = 0;
+        for (String output : node.outputs) {
+            if (!Utils.savePicture(picture, output, png)) {
+                throw new IOException("Could not save " + output);
+            }
+            pixels += (long) picture.getWidth() * picture.getHeight();
+        }
+
+        boolean handedOver = false;
+        for (int i = 0; i < node.children.size(); i++) {
+            // Extend the run through results nothing else needs
+            Node end = node.children.get(i);
+            List<Stage> run = new ArrayList<Stage>();
+            run.add(end.stage);
+            while (end.stage.isRowLocal() && end.outputs.isEmpty()
+                    && end.children.size() == 1
+                    && end.children.get(0).stage.isRowLocal()) {
+                end = end.children.get(0);
+                run.add(end.stage);
+            }
+            // Only the last branch may overwrite the shared picture
+            boolean last = i == node.children.size() - 1;
+            Picture result = apply(run, picture, last);
+            handedOver |= result == picture;
+            pixels += run(end, result, png);
+        }
+        if (!handedOver) {
+            Process.release(picture);
+        }
+        return pixels;
+    }
+
+    /* Applies a run of stages, all row-local if there are several */
+    private static Picture apply(List<Stage> run, Picture picture,
+            boolean mayOverwrite) {
+        List<Stage> merged = run.size() == 1 ? run : mergeTones(run);
+        if (merged.size() == 1) {
+            return Main.transform(merged.get(0).getArgs(), picture,
+                mayOverwrite);
+        }
+        return fuse(merged, picture);
+    }
+
+    /* Replaces each sequence of point operations by one tone stage */
+    private static List<Stage> mergeTones(List<Stage> run) {
+        List<Stage> merged = new ArrayList<Stage>();
+        List<String> steps = new ArrayList<String>();
+        for (Stage stage : run) {
+            if (stage.getTone() != null) {
+                String[] args = stage.getArgs();
+                if (stage.transformation == Process.Transformation.TONE) {
+                    steps.addAll(Arrays.asList(args)
+                        .subList(1, args.length - 2));
+                } else {
+                    steps.add(args[0].toLowerCase());
+                }
+                continue;
+            }
+            addTone(merged, steps);
+            merged.add(stage);
+        }
+        addTone(merged, steps);
+        return merged;
+    }
+
+    private static void addTone(List<Stage> merged, List<String> steps) {
+        if (steps.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("tone");
+        args.addAll(steps);
+        args.add("-");
+        args.add("-");
+        merged.add(new Stage(args.toArray(new String[args.size()])));
+        steps.clear();
+    }
+
+    /*
+     * Runs row-local stages strip by strip. Each strip is read with the
+     * halo rows every stage after the first needs, so its rows come out
+     * right; the rows computed for the halo are thrown away.
+     */
+    private static Picture fuse(final List<Stage> run, final Picture picture) {
+        List<String> names = new ArrayList<String>();
+        int halo = 0;
+        for (Stage stage : run) {
+            names.add(stage.transformation.name().toLowerCase());
+            halo += stage.getHalo();
+        }
+        Metrics.Span span = Metrics.start(Metrics.Stage.PROCESS,
+            "fused " + String.join("+", names));
+
+        // Only tones change whether a picture is grayscale; the other
+        // row-local stages keep it as it is
+        boolean gray = picture.isGray();
+        for (Stage stage : run) {
+            Tone tone = stage.getTone();
+            if (tone != null) {
+                gray = gray ? tone.grayTable() != null : tone.isGray();
+            }
+        }
+
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final int totalHalo = halo;
+        final int stripRows = Math.max(2 * halo + 1,
+            Scheduler.PIXELS_PER_STRIP / Math.max(1, width));
+        Picture result = gray ? Process.grayDestination(width, height)
+            : Process.getPool().acquire(width, height);
+        final int[] dst = gray ? null : result.getPixels();
+        final byte[] levels = gray ? result.getGray() : null;
+
+        Scheduler.forEachRowStrip(width, height, stripRows, (fromY, toY) -> {
+            for (int y = fromY; y < toY; y += stripRows) {
+                int end = Math.min(toY, y + stripRows);
+                int windowStart = Math.max(0, y - totalHalo);
+                int windowEnd = Math.min(height, end + totalHalo);
+                int windowRows = windowEnd - windowStart;
+                Picture window;
+                if (picture.isGray()) {
+                    window = Process.grayDestination(width, windowRows);
+                    System.arraycopy(picture.levels(), windowStart * width,
+                        window.getGray(), 0, windowRows * width);
+                } else {
+                    window = Process.getPool().acquire(width, windowRows);
+                    picture.getRegion(0, windowStart, width, windowRows,
+                        window.getPixels(), 0, width);
+                }
+                for (Stage stage : run) {
+                    // The window is private, so tones change it in place
+                    // unless they make it grayscale or colour it
+                    Tone tone = stage.getTone();
+                    Picture next = tone != null
+                        && Process.canToneInPlace(window, tone)
+                        ? Process.toneInPlace(window, tone)
+                        : stage.getOperation().apply(window);
+                    if (next != window) {
+                        Process.release(window);
+                    }
+                    window = next;
+                }
+                if (levels != null) {
+                    System.arraycopy(window.levels(),
+                        (y - windowStart) * width, levels, y * width,
+                        (end - y) * width);
+                } else {
+                    window.getRegion(0, y - windowStart, width, end - y, dst,
+                        y * width, width);
+                }
+                Process.release(window);
+            }
+        });
+
+        return span.end(result);
+    }
+
+    private static int count(Node node) {
+        int count = 1;
+        for (Node child : node.children) {
+            count += count(child);
+        }
+        return count;
+    }
+}
@@ -1,8 +1,6 @@
 package picture;
 
-import java.awt.image.BufferedImage;
-import java.lang.reflect.Method;
-import picture.Picture.Pixel;
+import java.util.Arrays;
 import utils.Tuple;
 
 
@@ -15,7 +13,13 @@ public class Process {
         FLIP,
         BLUR,
         BLEND,
-        MOSAIC
+        MOSAIC,
+        ORIENT,
+        TONE,
+        GAUSSIAN,
+        SHARPEN,
+        EDGE,
+        EMBOSS
     }
 
     public enum Angle {
@@ -26,181 +30,1153 @@ public class Process {
         H, V
     }
 
+    /** The largest radius accepted by <tt>blur(Picture, int, Border)</tt>. */
+    public static final int MAX_BLUR_RADIUS = 1024;
+
+    /** The default for <tt>setBlockSize</tt>. */
+    public static final int DEFAULT_BLOCK_SIZE = 32;
+
+    private static volatile int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private static volatile ResultCache cache = null;
+
+    /** The default budget of the pool destinations are drawn from. */
+    public static final long DEFAULT_POOL_BYTES = 256L << 20;
+
+    private static volatile PicturePool pool =
+        new PicturePool(DEFAULT_POOL_BYTES);
+
+    /** Gray level c becomes 255 - c. */
+    private static final int[] INVERTED_LEVELS = new int[256];
+
+    static {
+        for (int level = 0; level < 256; level++) {
+            INVERTED_LEVELS[level] = 255 - level;
+        }
+    }
+
+    /**
+     * How pixels outside the picture are made up when an operation needs
+     * neighbours that fall off an edge.
+     */
+    public enum Border {
+        /** Repeat the edge pixel: ... a a | a b c | c c ... */
+        CLAMP {
+            @Override
+            public int index(int i, int length) {
+                return i < 0 ? 0 : (i >= length ? length - 1 : i);
+            }
+        },
+        /** Reflect about the edge, repeating it: ... b a | a b c | c b ... */
+        MIRROR {
+            @Override
+            public int index(int i, int length) {
+                int period = 2 * length;
+                int m = i % period;
+                if (m < 0) {
+                    m += period;
+                }
+                return m < length ? m : period - 1 - m;
+            }
+        },
+        /** Tile the picture: ... b c | a b c | a b ... */
+        WRAP {
+            @Override
+            public int index(int i, int length) {
+                return Math.floorMod(i, length);
+            }
+        };
+
+        /**
+         * Map a possibly out-of-range coordinate onto [0, length).
+         * 
+         * @param i
+         *                    the coordinate to map
+         * @param length
+         *                    the size of the picture along that axis
+         * @return the coordinate of the pixel standing in for i.
+         */
+        public abstract int index(int i, int length);
+    }
+
     public static Picture invert(Picture picture) {
-        Picture newPicture = Utils.createPicture(picture.getWidth(), 
+        String key = cacheKey("invert", picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (picture.isGray()) {
+            return remember(key, mapLevels(picture, INVERTED_LEVELS));
+        }
+
+        Picture newPicture = destination(picture.getWidth(), 
             picture.getHeight());
 
-        for (Pixel pixel : picture) {
-            pixel.color.invert();
-            newPicture.setPixel(pixel.x, pixel.y, pixel.color);
-        }
+        final int[] dst = newPicture.getPixels();
+        final Kernels kernels = Kernels.get();
+        final Picture.RowVisitor kernel = (y, row, offset, width) ->
+            kernels.invert(row, offset, dst, y * width, width);
+        Scheduler.forEachRowStrip(picture.getWidth(), picture.getHeight(), 1,
+            (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
 
-        return newPicture;
+        return remember(key, newPicture);
     }
 
+    /**
+     * Turn the picture to grayscale: each channel becomes the floor of the
+     * mean of the three. The result is a grayscale picture, holding one
+     * byte per pixel.
+     * 
+     * @param picture
+     *                    the picture to convert
+     * @return the new grayscale picture.
+     */
     public static Picture grayscale(Picture picture) {
-        Picture newPicture = Utils.createPicture(picture.getWidth(), 
+        String key = cacheKey("grayscale", picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Picture newPicture = grayDestination(picture.getWidth(),
             picture.getHeight());
 
-        for (Pixel pixel : picture) {
-            pixel.color.normalise();
-            newPicture.setPixel(pixel.x, pixel.y, pixel.color);
+        final byte[] dst = newPicture.getGray();
+        if (picture.isGray()) {
+            System.arraycopy(picture.levels(), 0, dst, 0, dst.length);
+            return remember(key, newPicture);
         }
+        final Kernels kernels = Kernels.get();
+        final Picture.RowVisitor kernel = (y, row, offset, width) ->
+            kernels.levels(row, offset, dst, y * width, width);
+        Scheduler.forEachRowStrip(picture.getWidth(), picture.getHeight(), 1,
+            (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
 
-        return newPicture;
+        return remember(key, newPicture);
     }
 
-    public static Picture rotate(Picture picture, Angle angle) {
-        Picture newPicture;
-        if (angle == Angle._180) {
-            newPicture = Utils.createPicture(picture.getWidth(), 
+    /**
+     * Apply a point operation, however many steps it was compiled from, in
+     * a single pass over the picture. The result is a grayscale picture if
+     * the tone only produces gray pixels, or if the picture is grayscale
+     * and the tone keeps it gray.
+     *
+     * @param picture
+     *                    the picture to change the tone of
+     * @param tone
+     *                    the compiled point operation
+     * @return the new picture.
+     */
+    public static Picture tone(Picture picture, final Tone tone) {
+        String key = cacheKey("tone " + tone, picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+        int[] grayTable = picture.isGray() ? tone.grayTable() : null;
+        if (grayTable != null) {
+            return remember(key, mapLevels(picture, grayTable));
+        }
+        if (tone.isGray()) {
+            Picture newPicture = grayDestination(picture.getWidth(),
                 picture.getHeight());
-        } else {
-            newPicture = Utils.createPicture(picture.getHeight(), 
-                picture.getWidth());
+            final byte[] dst = newPicture.getGray();
+            final Picture.RowVisitor kernel = (y, row, offset, width) ->
+                tone.apply(row, offset, dst, y * width, width);
+            Scheduler.forEachRowStrip(picture.getWidth(),
+                picture.getHeight(), 1,
+                (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
+            return remember(key, newPicture);
         }
 
-        int width = picture.getWidth() - 1;
-        int height = picture.getHeight() - 1;
+        Picture newPicture = destination(picture.getWidth(),
+            picture.getHeight());
+
+        final int[] dst = newPicture.getPixels();
+        final Picture.RowVisitor kernel = (y, row, offset, width) ->
+            tone.apply(row, offset, dst, y * width, width);
+        Scheduler.forEachRowStrip(picture.getWidth(), picture.getHeight(), 1,
+            (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
 
-        for (Pixel pixel : picture) {
-            switch (angle) {
-                case _90:
-                    newPicture.setPixel(height - pixel.y, pixel.x, 
-                        pixel.color);
-                    break;
-                case _180:
-                    newPicture.setPixel(width - pixel.x, height - pixel.y, 
-                        pixel.color);
-                    break;
-                case _270:
-                    newPicture.setPixel(pixel.y, width - pixel.x, 
-                        pixel.color);
-                    break;
-                default: break;
+        return remember(key, newPicture);
+    }
+
+    /**
+     * Apply a point operation to <tt>picture</tt> in place, without
+     * allocating a destination. The result cache is not consulted, since
+     * the input is overwritten.
+     *
+     * @param picture
+     *                    the picture to change, which must be writable
+     * @param tone
+     *                    the compiled point operation
+     * @return <tt>picture</tt>.
+     * @throws IllegalArgumentException
+     *                     if the picture is grayscale and the tone would
+     *                     colour it.
+     */
+    public static Picture toneInPlace(Picture picture, final Tone tone) {
+        if (picture.isGray()) {
+            int[] table = tone.grayTable();
+            if (table == null) {
+                throw new IllegalArgumentException("tone " + tone
+                    + " colours gray pixels, so it cannot be applied to a "
+                    + "grayscale picture in place");
             }
+            return updateLevels(picture, table);
         }
+        updateRows(picture, (y, row, offset, width) ->
+            tone.apply(row, offset, row, offset, width));
+        return picture;
+    }
 
-        return newPicture;
+    /**
+     * Invert <tt>picture</tt> in place, without allocating a destination.
+     * The result cache is not consulted, since the input is overwritten.
+     * 
+     * @param picture
+     *                    the picture to invert, which must be writable
+     * @return <tt>picture</tt>.
+     */
+    public static Picture invertInPlace(Picture picture) {
+        if (picture.isGray()) {
+            return updateLevels(picture, INVERTED_LEVELS);
+        }
+        final Kernels kernels = Kernels.get();
+        updateRows(picture, (y, row, offset, width) ->
+            kernels.invert(row, offset, row, offset, width));
+        return picture;
+    }
+
+    /**
+     * Turn <tt>picture</tt> to grayscale in place, without allocating a
+     * destination. The result cache is not consulted, since the input is
+     * overwritten.
+     * 
+     * @param picture
+     *                    the picture to convert, which must be writable
+     * @return <tt>picture</tt>.
+     */
+    public static Picture grayscaleInPlace(Picture picture) {
+        if (picture.isGray()) {
+            return picture;
+        }
+        final Kernels kernels = Kernels.get();
+        updateRows(picture, (y, row, offset, width) ->
+            kernels.grayscale(row, offset, row, offset, width));
+        return picture;
+    }
+
+    /**
+     * Flip <tt>picture</tt> in place, without allocating a destination.
+     * 
+     * @param picture
+     *                    the picture to flip, which must be writable
+     * @param direction
+     *                    the axis to flip about
+     * @return <tt>picture</tt>.
+     */
+    public static Picture flipInPlace(Picture picture, Direction direction) {
+        return orientInPlace(picture, Orientation.of(direction));
+    }
+
+    /**
+     * Rotate <tt>picture</tt> in place, without allocating a destination.
+     * Only a half turn keeps the shape of the picture, so it is the only
+     * angle accepted.
+     * 
+     * @param picture
+     *                    the picture to rotate, which must be writable
+     * @param angle
+     *                    the angle to rotate by, which must be 180
+     * @return <tt>picture</tt>.
+     * @throws IllegalArgumentException
+     *                     if the angle is a quarter turn.
+     */
+    public static Picture rotateInPlace(Picture picture, Angle angle) {
+        return orientInPlace(picture, Orientation.of(angle));
+    }
+
+    /**
+     * Apply a chain of rotations and flips in place, if it composes to an
+     * orientation that keeps the shape of the picture: the identity, a
+     * flip or a half turn. A half turn or vertical flip swaps pairs of rows
+     * from either end, so each row is read and written once.
+     * 
+     * @param picture
+     *                    the picture to reorient, which must be writable
+     * @param steps
+     *                    the rotations and flips, applied in order
+     * @return <tt>picture</tt>.
+     * @throws IllegalArgumentException
+     *                     if the chain swaps the axes of the picture.
+     */
+    public static Picture orientInPlace(final Picture picture,
+            Orientation... steps) {
+        Orientation orientation = Orientation.compose(steps);
+        if (orientation.swapsAxes()) {
+            throw new IllegalArgumentException(orientation
+                + " changes the shape of the picture and cannot be done "
+                + "in place");
+        }
+        final boolean mirrorX = orientation.mirrorsX();
+        if (!orientation.mirrorsY()) {
+            if (mirrorX) {
+                updateRows(picture, (y, row, offset, width) ->
+                    reverse(row, offset, width));
+            }
+            return picture;
+        }
+
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        // Strip y swaps row y with its mirror image; an odd middle row only
+        // needs reversing
+        Scheduler.forEachRowStrip(width, (height + 1) / 2, 1,
+            (fromY, toY) -> {
+                int[] top = new int[width];
+                int[] bottom = new int[width];
+                for (int y = fromY; y < toY; y++) {
+                    int mirror = height - 1 - y;
+                    picture.getRow(y, top, 0);
+                    if (mirror == y) {
+                        if (mirrorX) {
+                            reverse(top, 0, width);
+                            picture.setRow(y, top, 0);
+                        }
+                        continue;
+                    }
+                    picture.getRow(mirror, bottom, 0);
+                    if (mirrorX) {
+                        reverse(top, 0, width);
+                        reverse(bottom, 0, width);
+                    }
+                    picture.setRow(y, bottom, 0);
+                    picture.setRow(mirror, top, 0);
+                }
+            });
+        return picture;
+    }
+
+    public static Picture rotate(Picture picture, Angle angle) {
+        return orient(picture, Orientation.of(angle));
     }
 
     public static Picture flip(Picture picture, Direction direction) {
-        Picture newPicture = Utils.createPicture(picture.getWidth(), 
+        return orient(picture, Orientation.of(direction));
+    }
+
+    /**
+     * Apply a chain of rotations and flips in a single pass over the
+     * picture. The chain is first composed into one orientation, so for
+     * example "rotate 90, flip H, rotate 180" costs one copy, and a chain
+     * that cancels out costs a plain copy.
+     */
+    public static Picture orient(Picture picture, Orientation... steps) {
+        Orientation orientation = Orientation.compose(steps);
+        String key = cacheKey("orient " + orientation, picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        int dstWidth = orientation.swapsAxes() ? height : width;
+        int dstHeight = orientation.swapsAxes() ? width : height;
+        Picture newPicture = picture.isGray()
+            ? grayDestination(dstWidth, dstHeight)
+            : destination(dstWidth, dstHeight);
+
+        // Source (x, y) lands at dst[start + x * stepX + y * stepY]
+        int stepX, stepY, start;
+        if (orientation.swapsAxes()) {
+            stepX = orientation.mirrorsY() ? -dstWidth : dstWidth;
+            stepY = orientation.mirrorsX() ? -1 : 1;
+            start = (orientation.mirrorsX() ? height - 1 : 0)
+                + (orientation.mirrorsY() ? (width - 1) * dstWidth : 0);
+        } else {
+            stepX = orientation.mirrorsX() ? -1 : 1;
+            stepY = orientation.mirrorsY() ? -dstWidth : dstWidth;
+            start = (orientation.mirrorsX() ? width - 1 : 0)
+                + (orientation.mirrorsY() ? (height - 1) * dstWidth : 0);
+        }
+
+        if (picture.isGray()) {
+            final byte[] src = picture.levels();
+            final byte[] dst = newPicture.getGray();
+            final int dstStart = start, dstStepX = stepX, dstStepY = stepY;
+            final int block = blockSize;
+            int bands = (height + block - 1) / block;
+            Scheduler.forEachStrip(bands,
+                Scheduler.PIXELS_PER_STRIP / Math.max(1, width * block),
+                (fromBand, toBand) -> transposeLevels(src, width, dst, block,
+                    fromBand * block, Math.min(height, toBand * block),
+                    dstStart, dstStepX, dstStepY));
+            return remember(key, newPicture);
+        }
+
+        final int[] dst = newPicture.getPixels();
+        if (orientation.swapsAxes()) {
+            final int dstStart = start, dstStepX = stepX, dstStepY = stepY;
+            final int block = blockSize;
+            // Strips are whole bands of blocks so no block is split
+            int bands = (height + block - 1) / block;
+            Scheduler.forEachStrip(bands,
+                Scheduler.PIXELS_PER_STRIP / Math.max(1, width * block),
+                (fromBand, toBand) -> transposeBlocks(picture, dst,
+                    block, fromBand * block,
+                    Math.min(height, toBand * block), dstStart, dstStepX,
+                    dstStepY));
+        } else {
+            final Picture.RowVisitor kernel = remapKernel(dst, start, stepX,
+                stepY);
+            Scheduler.forEachRowStrip(width, height, 1,
+                (fromY, toY) -> picture.forEachRow(fromY, toY, kernel));
+        }
+
+        return remember(key, newPicture);
+    }
+
+    /**
+     * Set the side of the square blocks used when an orientation swaps the
+     * axes of a picture. A block of the source and the block it lands on
+     * in the destination should both fit in the L1 or L2 cache.
+     * 
+     * @param pixels
+     *                    the block side, in pixels
+     * @throws IllegalArgumentException
+     *                     if <tt>pixels</tt> is less than 1.
+     */
+    public static void setBlockSize(int pixels) {
+        if (pixels < 1) {
+            throw new IllegalArgumentException(
+                "block size must be at least 1, was " + pixels);
+        }
+        blockSize = pixels;
+    }
+
+    public static int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Set the cache consulted by every operation before it does any work,
+     * keyed by the operation, its arguments and the digests of its inputs.
+     * Computing a digest reads the whole input once per modification of
+     * it, so caching pays off for the more expensive operations and for
+     * inputs that are transformed repeatedly.
+     * 
+     * @param resultCache
+     *                    the cache to use, or null to cache nothing (the
+     *                    default)
+     */
+    public static void setCache(ResultCache resultCache) {
+        cache = resultCache;
+    }
+
+    public static ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set the pool every operation draws its destination picture from.
+     * Pictures given back with <tt>release</tt> are reused for later
+     * results of the same size.
+     * 
+     * @param picturePool
+     *                    the pool to use; a pool with a budget of 0 turns
+     *                    reuse off
+     */
+    public static void setPool(PicturePool picturePool) {
+        if (picturePool == null) {
+            throw new IllegalArgumentException("the pool must not be null");
+        }
+        pool = picturePool;
+    }
+
+    public static PicturePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Hand a picture that is no longer needed back to the pool, so a later
+     * operation can reuse its raster. The caller must not use the picture
+     * afterwards.
+     * 
+     * @param picture
+     *                    the picture to recycle, or null
+     */
+    public static void release(Picture picture) {
+        pool.release(picture);
+    }
+
+    private static Picture destination(int width, int height) {
+        return pool.acquire(width, height);
+    }
+
+    /* Grayscale results are a quarter the size and are not pooled */
+    static Picture grayDestination(int width, int height) {
+        return Utils.createGrayPicture(width, height);
+    }
+
+    /*
+     * Whether toneInPlace gives the same kind of picture as tone: a
+     * grayscale one for a tone that only produces gray, and an RGB one for
+     * a tone that colours a grayscale picture.
+     */
+    static boolean canToneInPlace(Picture picture, Tone tone) {
+        return picture.isGray() ? tone.grayTable() != null : !tone.isGray();
+    }
+
+    /* A new grayscale picture holding table[level] for every level */
+    private static Picture mapLevels(Picture picture, final int[] table) {
+        Picture newPicture = grayDestination(picture.getWidth(),
             picture.getHeight());
+        final byte[] src = picture.levels();
+        final byte[] dst = newPicture.getGray();
+        final int width = picture.getWidth();
+        Scheduler.forEachRowStrip(width, picture.getHeight(), 1,
+            (fromY, toY) -> {
+                for (int i = fromY * width; i < toY * width; i++) {
+                    dst[i] = (byte) table[src[i] & 0xff];
+                }
+            });
+        return newPicture;
+    }
+
+    /* Replaces every level of a grayscale picture by table[level] */
+    private static Picture updateLevels(Picture picture, final int[] table) {
+        final byte[] levels = picture.getGray();
+        final int width = picture.getWidth();
+        Scheduler.forEachRowStrip(width, picture.getHeight(), 1,
+            (fromY, toY) -> {
+                for (int i = fromY * width; i < toY * width; i++) {
+                    levels[i] = (byte) table[levels[i] & 0xff];
+                }
+            });
+        return picture;
+    }
+
+    /*
+     * Applies visitor to every row of picture and writes the row back: heap
+     * rows are updated where they lie, buffer-backed and grayscale rows
+     * through a copy.
+     */
+    private static void updateRows(final Picture picture,
+            final Picture.RowVisitor visitor) {
+        final int width = picture.getWidth();
+        if (picture.hasPixels()) {
+            final int[] pixels = picture.getPixels();
+            Scheduler.forEachRowStrip(width, picture.getHeight(), 1,
+                (fromY, toY) -> {
+                    for (int y = fromY; y < toY; y++) {
+                        visitor.visit(y, pixels, y * width, width);
+                    }
+                });
+            return;
+        }
+        Scheduler.forEachRowStrip(width, picture.getHeight(), 1,
+            (fromY, toY) -> {
+                int[] row = new int[width];
+                for (int y = fromY; y < toY; y++) {
+                    picture.getRow(y, row, 0);
+                    visitor.visit(y, row, 0, width);
+                    picture.setRow(y, row, 0);
+                }
+            });
+    }
+
+    private static void reverse(int[] row, int offset, int length) {
+        for (int i = offset, j = offset + length - 1; i < j; i++, j--) {
+            int swap = row[i];
+            row[i] = row[j];
+            row[j] = swap;
+        }
+    }
+
+    /* The cache key for an operation, or null when nothing is cached */
+    private static String cacheKey(String operation, Picture... inputs) {
+        return cache == null ? null : ResultCache.key(operation, inputs);
+    }
+
+    private static Picture cached(String key) {
+        ResultCache current = cache;
+        return key == null || current == null ? null : current.get(key);
+    }
+
+    private static Picture remember(String key, Picture result) {
+        ResultCache current = cache;
+        if (key != null && current != null) {
+            current.put(key, result);
+        }
+        return result;
+    }
 
-        int width = picture.getWidth() - 1;
-        int height = picture.getHeight() - 1;
+    /*
+     * Transposing remap of source rows fromY to toY, one block at a time.
+     * Writing a whole row would touch a different destination row (and
+     * cache line) for every pixel; within a block those lines are reused
+     * for each of its source rows before they are evicted.
+     */
+    private static void transposeBlocks(Picture picture, int[] dst,
+            int block, int fromY, int toY, int start, int stepX, int stepY) {
+        int width = picture.getWidth();
+        int[] scratch = picture.hasPixels() ? null : new int[block * width];
+        for (int by = fromY; by < toY; by += block) {
+            int endY = Math.min(toY, by + block);
+            int[] src = picture.rows(by, endY, scratch);
+            int band = picture.rowsOffset(by);
+            for (int bx = 0; bx < width; bx += block) {
+                int endX = Math.min(width, bx + block);
+                for (int y = by; y < endY; y++) {
+                    int s = band + (y - by) * width + bx;
+                    int d = start + bx * stepX + y * stepY;
+                    for (int x = bx; x < endX; x++, s++, d += stepX) {
+                        dst[d] = src[s];
+                    }
+                }
+            }
+        }
+    }
 
-        for (Pixel pixel : picture) {
-            switch (direction) {
-                case H:
-                    newPicture.setPixel(width - pixel.x, pixel.y, pixel.color);
-                    break;
-                case V:
-                    newPicture.setPixel(pixel.x, height - pixel.y, pixel.color);
-                    break;
-                default: break;
+    /* transposeBlocks for the gray levels of a grayscale picture */
+    private static void transposeLevels(byte[] src, int width, byte[] dst,
+            int block, int fromY, int toY, int start, int stepX, int stepY) {
+        for (int by = fromY; by < toY; by += block) {
+            int endY = Math.min(toY, by + block);
+            for (int bx = 0; bx < width; bx += block) {
+                int endX = Math.min(width, bx + block);
+                for (int y = by; y < endY; y++) {
+                    int s = y * width + bx;
+                    int d = start + bx * stepX + y * stepY;
+                    for (int x = bx; x < endX; x++, s++, d += stepX) {
+                        dst[d] = src[s];
+                    }
+                }
             }
         }
+    }
 
-        return newPicture;
+    private static Picture.RowVisitor remapKernel(final int[] dst,
+            final int start, final int stepX, final int stepY) {
+        if (stepX == 1) {
+            return (y, row, offset, width) ->
+                System.arraycopy(row, offset, dst, start + y * stepY, width);
+        }
+        return (y, row, offset, width) -> {
+            for (int x = 0, d = start + y * stepY; x < width;
+                    x++, d += stepX) {
+                dst[d] = row[offset + x];
+            }
+        };
     }
 
     public static Picture blur(Picture picture) {
-        Picture newPicture = Utils.createPicture(picture.getWidth(), 
-            picture.getHeight());
+        String key = cacheKey("blur", picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        if (picture.isGray()) {
+            Picture newPicture = grayDestination(width, height);
+            final byte[] src = picture.levels();
+            final byte[] dst = newPicture.getGray();
+            Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+                for (int y = fromY; y < toY; y++) {
+                    int d = y * width;
+                    if (y == 0 || y == height - 1 || width < 3) {
+                        System.arraycopy(src, d, dst, d, width);
+                        continue;
+                    }
+                    dst[d] = src[d];
+                    for (int x = 1; x < width - 1; x++) {
+                        int sum = 0;
+                        for (int i = d - width + x - 1; i <= d + width + x - 1;
+                                i += width) {
+                            sum += (src[i] & 0xff) + (src[i + 1] & 0xff)
+                                + (src[i + 2] & 0xff);
+                        }
+                        dst[d + x] = (byte) (sum / 9);
+                    }
+                    dst[d + width - 1] = src[d + width - 1];
+                }
+            });
+            return remember(key, newPicture);
+        }
 
-        for (Pixel pixel : picture) {
-            boolean hasNeighbours = pixel.x > 0 && 
-                                    pixel.y > 0 && 
-                                    pixel.x < picture.getWidth() - 1 &&
-                                    pixel.y < picture.getHeight() - 1;
+        Picture newPicture = destination(width, height);
 
-            if (hasNeighbours) {
-                newPicture.setPixel(pixel.x, pixel.y, 
-                    averageNeighbours(picture, pixel.x, pixel.y));
-            } else {
-                newPicture.setPixel(pixel.x, pixel.y, pixel.color);
+        final int[] dst = newPicture.getPixels();
+
+        // Each strip reads one row of halo above and below from the source
+        Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+            int[] scratch = picture.hasPixels() ? null : new int[3 * width];
+            for (int y = fromY; y < toY; y++) {
+                int d = y * width;
+                // Pixels without a full set of neighbours are copied
+                // unchanged
+                if (y == 0 || y == height - 1 || width < 3) {
+                    picture.getRow(y, dst, d);
+                    continue;
+                }
+                int[] rows = picture.rows(y - 1, y + 2, scratch);
+                int above = picture.rowsOffset(y - 1);
+                dst[d] = rows[above + width];
+                for (int x = 1; x < width - 1; x++) {
+                    dst[d + x] = averageNeighbours(rows, above, width, x);
+                }
+                dst[d + width - 1] = rows[above + 2 * width - 1];
             }
+        });
+
+        return remember(key, newPicture);
+    }
+
+    public static Picture blur(Picture picture, int radius) {
+        return blur(picture, radius, Border.CLAMP);
+    }
+
+    /**
+     * Box blur: each pixel becomes the mean of the (2 * radius + 1) square
+     * centred on it, with neighbours beyond the edges supplied by
+     * <tt>border</tt>. Running column sums are slid down the picture and each
+     * row of them is slid across, so the cost per pixel does not depend on
+     * the radius.
+     */
+    public static Picture blur(Picture picture, int radius, Border border) {
+        if (radius < 0 || radius > MAX_BLUR_RADIUS) {
+            throw new IllegalArgumentException("blur radius must be between 0 "
+                + "and " + MAX_BLUR_RADIUS + ", was " + radius);
+        }
+        String key = cacheKey("blur " + radius + " " + border, picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
         }
 
-        return newPicture;
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        // A strip pays for a full window of halo rows to prime its sums, so
+        // keep strips a few windows tall
+        int minRows = 4 * (2 * radius + 1);
+        if (picture.isGray()) {
+            Picture newPicture = grayDestination(width, height);
+            final byte[] src = picture.levels();
+            final byte[] dst = newPicture.getGray();
+            Scheduler.forEachRowStrip(width, height, minRows,
+                (fromY, toY) -> blurLevels(src, dst, width, height, radius,
+                    border, fromY, toY));
+            return remember(key, newPicture);
+        }
+
+        Picture newPicture = destination(width, height);
+
+        final int[] dst = newPicture.getPixels();
+        Scheduler.forEachRowStrip(width, height, minRows,
+            (fromY, toY) -> blurRows(picture, dst, radius, border, fromY,
+                toY));
+
+        return remember(key, newPicture);
     }
 
-    public static Picture blend(Picture[] pictures) {
-        Tuple<Integer, Integer> smallestDimensions = 
-            getSmallestDimensions(pictures);
+    private static void blurRows(Picture picture, int[] dst, int radius,
+            Border border, int fromY, int toY) {
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        int[] scratch = picture.hasPixels() ? null : new int[width];
+        int window = 2 * radius + 1;
+        int area = window * window;
+        Kernels kernels = Kernels.get();
+
+        // Column sums over rows y - radius .. y + radius, padded by radius
+        // columns on either side so the horizontal slide needs no checks
+        int[] red = new int[width + 2 * radius];
+        int[] green = new int[width + 2 * radius];
+        int[] blue = new int[width + 2 * radius];
+        int[] padding = new int[2 * radius];
+        for (int i = 0; i < radius; i++) {
+            padding[i] = border.index(i - radius, width) + radius;
+            padding[radius + i] = border.index(width + i, width) + radius;
+        }
 
-        Picture newPicture = Utils.createPicture(
-            smallestDimensions.getX(), smallestDimensions.getY());
+        for (int j = fromY - radius; j <= fromY + radius; j++) {
+            addRow(picture, border.index(j, height), scratch, 1, red, green,
+                blue, radius, kernels);
+        }
+
+        for (int y = fromY; y < toY; y++) {
+            for (int i = 0; i < radius; i++) {
+                int p = padding[i];
+                red[i] = red[p];
+                green[i] = green[p];
+                blue[i] = blue[p];
+                p = padding[radius + i];
+                red[radius + width + i] = red[p];
+                green[radius + width + i] = green[p];
+                blue[radius + width + i] = blue[p];
+            }
 
-        for (Pixel pixel : newPicture) {
-            Color[] colors = new Color[pictures.length];
-            for (int i = 0; i < pictures.length; i++) {
-                colors[i] = pictures[i].getPixel(pixel.x, pixel.y);
+            int r = 0, g = 0, b = 0;
+            for (int i = 0; i < window - 1; i++) {
+                r += red[i];
+                g += green[i];
+                b += blue[i];
+            }
+            for (int x = 0, d = y * width; x < width; x++, d++) {
+                r += red[x + window - 1];
+                g += green[x + window - 1];
+                b += blue[x + window - 1];
+                dst[d] = ((r / area) << 16) | ((g / area) << 8) | (b / area);
+                r -= red[x];
+                g -= green[x];
+                b -= blue[x];
+            }
+
+            if (y < toY - 1) {
+                addRow(picture, border.index(y + radius + 1, height),
+                    scratch, 1, red, green, blue, radius, kernels);
+                addRow(picture, border.index(y - radius, height), scratch, -1,
+                    red, green, blue, radius, kernels);
             }
-            newPicture.setPixel(pixel.x, pixel.y, averageColors(colors));
         }
+    }
 
-        return newPicture;
+    /* blurRows for the gray levels of a grayscale picture */
+    private static void blurLevels(byte[] src, byte[] dst, int width,
+            int height, int radius, Border border, int fromY, int toY) {
+        int window = 2 * radius + 1;
+        int area = window * window;
+
+        int[] sums = new int[width + 2 * radius];
+        int[] padding = new int[2 * radius];
+        for (int i = 0; i < radius; i++) {
+            padding[i] = border.index(i - radius, width) + radius;
+            padding[radius + i] = border.index(width + i, width) + radius;
+        }
+
+        for (int j = fromY - radius; j <= fromY + radius; j++) {
+            addLevels(src, border.index(j, height) * width, 1, sums, radius,
+                width);
+        }
+
+        for (int y = fromY; y < toY; y++) {
+            for (int i = 0; i < radius; i++) {
+                sums[i] = sums[padding[i]];
+                sums[radius + width + i] = sums[padding[radius + i]];
+            }
+
+            int sum = 0;
+            for (int i = 0; i < window - 1; i++) {
+                sum += sums[i];
+            }
+            for (int x = 0, d = y * width; x < width; x++, d++) {
+                sum += sums[x + window - 1];
+                dst[d] = (byte) (sum / area);
+                sum -= sums[x];
+            }
+
+            if (y < toY - 1) {
+                addLevels(src, border.index(y + radius + 1, height) * width,
+                    1, sums, radius, width);
+                addLevels(src, border.index(y - radius, height) * width, -1,
+                    sums, radius, width);
+            }
+        }
     }
 
-    public static Picture mosaic(int tileSize, Picture[] pictures) {
-        Tuple<Integer, Integer> smallestDimensions =
-            getSmallestDimensions(pictures);
+    private static void addLevels(byte[] src, int offset, int sign,
+            int[] sums, int pad, int width) {
+        for (int i = 0; i < width; i++) {
+            sums[pad + i] += sign * (src[offset + i] & 0xff);
+        }
+    }
+
+    /* Adds (sign 1) or subtracts (sign -1) row y into the column sums */
+    private static void addRow(Picture picture, int y, int[] scratch,
+            int sign, int[] red, int[] green, int[] blue, int pad,
+            Kernels kernels) {
+        kernels.accumulate(picture.rows(y, y + 1, scratch),
+            picture.rowsOffset(y), sign, red, green, blue, pad,
+            picture.getWidth());
+    }
+
+    /**
+     * Convolve the picture with <tt>kernel</tt>, with neighbours beyond the
+     * edges supplied by <tt>border</tt>. Separable kernels run as two 1-D
+     * passes; see <tt>picture.Convolution</tt>.
+     *
+     * @param picture
+     *                    the picture to filter
+     * @param kernel
+     *                    the weights to apply around each pixel
+     * @param border
+     *                    how pixels beyond the edges are made up
+     * @return the filtered picture, grayscale if <tt>picture</tt> is.
+     */
+    public static Picture convolve(Picture picture, Convolution kernel,
+            Border border) {
+        String key = cacheKey("convolve " + kernel + " " + border, picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
 
-        // This makes the dimension divisible by tileSize
-        int width = (int) (smallestDimensions.getX() / tileSize) * tileSize;
-        int height = (int) (smallestDimensions.getY() / tileSize) * tileSize; 
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final boolean gray = picture.isGray();
+        Picture newPicture = gray ? grayDestination(width, height)
+            : destination(width, height);
 
-        Picture newPicture = Utils.createPicture(width, height);
+        final int[] dst = gray ? null : newPicture.getPixels();
+        final byte[] levels = gray ? newPicture.getGray() : null;
+        // A strip reads the kernel's height in halo rows, so keep strips a
+        // few kernels tall
+        Scheduler.forEachRowStrip(width, height, 4 * kernel.getHeight(),
+            (fromY, toY) -> {
+                Convolution.Rows rows = kernel.rows(picture, border, fromY);
+                int[] red = new int[width];
+                int[] green = new int[width];
+                int[] blue = new int[width];
+                for (int y = fromY; y < toY; y++) {
+                    rows.next(red, green, blue);
+                    if (gray) {
+                        for (int x = 0, d = y * width; x < width; x++, d++) {
+                            levels[d] = (byte) clamp(red[x]);
+                        }
+                        continue;
+                    }
+                    for (int x = 0, d = y * width; x < width; x++, d++) {
+                        dst[d] = (clamp(red[x]) << 16)
+                            | (clamp(green[x]) << 8) | clamp(blue[x]);
+                    }
+                }
+            });
+
+        return remember(key, newPicture);
+    }
+
+    /**
+     * Gaussian blur with standard deviation <tt>sigma</tt>.
+     *
+     * @param picture
+     *                    the picture to blur
+     * @param sigma
+     *                    the standard deviation in pixels, greater than 0
+     *                    and at most <tt>Convolution.MAX_SIGMA</tt>
+     * @param border
+     *                    how pixels beyond the edges are made up
+     * @return the blurred picture.
+     */
+    public static Picture gaussian(Picture picture, double sigma,
+            Border border) {
+        return convolve(picture, Convolution.gaussian(sigma), border);
+    }
+
+    public static Picture sharpen(Picture picture, Border border) {
+        return convolve(picture, Convolution.SHARPEN, border);
+    }
 
-        int pictureIndex;
-        int startingPictureIndex = 0;
-        for (int x = 0; x <= width - tileSize; x += tileSize) {
-            pictureIndex = startingPictureIndex;
+    public static Picture emboss(Picture picture, Border border) {
+        return convolve(picture, Convolution.EMBOSS, border);
+    }
 
-            startingPictureIndex++;
-            if (startingPictureIndex >= pictures.length)
-                startingPictureIndex = 0;
+    /**
+     * Sobel edge detection: each channel becomes the sum of the absolute
+     * horizontal and vertical Sobel gradients of that channel, clamped to
+     * 255, so flat areas turn black and edges light up in their colour.
+     *
+     * @param picture
+     *                    the picture to find edges in
+     * @param border
+     *                    how pixels beyond the edges are made up
+     * @return the edge picture, grayscale if <tt>picture</tt> is.
+     */
+    public static Picture edges(Picture picture, Border border) {
+        String key = cacheKey("edges " + border, picture);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
 
-            for (int y = 0; y <= height - tileSize; y += tileSize) {
-                Color[] colors = pictures[pictureIndex].getTile(x, y, tileSize);
-                newPicture.setTile(x, y, tileSize, colors);
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final boolean gray = picture.isGray();
+        Picture newPicture = gray ? grayDestination(width, height)
+            : destination(width, height);
 
-            pictureIndex++;
-            if (pictureIndex >= pictures.length)
-                pictureIndex = 0;
+        final int[] dst = gray ? null : newPicture.getPixels();
+        final byte[] levels = gray ? newPicture.getGray() : null;
+        Scheduler.forEachRowStrip(width, height, 12, (fromY, toY) -> {
+            Convolution.Rows across =
+                Convolution.SOBEL_X.rows(picture, border, fromY);
+            Convolution.Rows down =
+                Convolution.SOBEL_Y.rows(picture, border, fromY);
+            int[][] gx = new int[3][width];
+            int[][] gy = new int[3][width];
+            for (int y = fromY; y < toY; y++) {
+                across.next(gx[0], gx[1], gx[2]);
+                down.next(gy[0], gy[1], gy[2]);
+                if (gray) {
+                    for (int x = 0, d = y * width; x < width; x++, d++) {
+                        levels[d] = (byte) clamp(Math.abs(gx[0][x])
+                            + Math.abs(gy[0][x]));
+                    }
+                    continue;
+                }
+                for (int x = 0, d = y * width; x < width; x++, d++) {
+                    dst[d] = (clamp(Math.abs(gx[0][x]) + Math.abs(gy[0][x]))
+                            << 16)
+                        | (clamp(Math.abs(gx[1][x]) + Math.abs(gy[1][x])) << 8)
+                        | clamp(Math.abs(gx[2][x]) + Math.abs(gy[2][x]));
+                }
             }
+        });
+
+        return remember(key, newPicture);
+    }
+
+    private static int clamp(int channel) {
+        return channel < 0 ? 0 : (channel > 255 ? 255 : channel);
+    }
+
+    public static Picture blend(Picture[] pictures) {
+        String key = cacheKey("blend", pictures);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
         }
 
-        return newPicture;
+        Tuple<Integer, Integer> smallestDimensions = 
+            getSmallestDimensions(pictures);
+
+        final int width = smallestDimensions.getX();
+        final int height = smallestDimensions.getY();
+        if (allGray(pictures)) {
+            Picture newPicture = grayDestination(width, height);
+            final byte[] dst = newPicture.getGray();
+            Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) ->
+                blendLevels(pictures, dst, width, fromY, toY));
+            return remember(key, newPicture);
+        }
+        Picture newPicture = destination(width, height);
+
+        final int[] dst = newPicture.getPixels();
+        Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) ->
+            blendRows(pictures, dst, width, fromY, toY));
+
+        return remember(key, newPicture);
     }
 
-    private static Color averageNeighbours(Picture picture, int x, int y) {
-        Color[] colors = new Color[9];
-        int i = 0;
+    private static boolean allGray(Picture[] pictures) {
+        for (Picture picture : pictures) {
+            if (!picture.isGray()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        for (int x_ = x - 1; x_ <= x + 1; x_++) {
-            for (int y_ = y - 1; y_ <= y + 1; y_++) {
-                colors[i] = picture.getPixel(x_, y_);
-                i++;
+    /* The one-channel blendRows, for grayscale inputs */
+    private static void blendLevels(Picture[] pictures, byte[] dst,
+            int width, int fromY, int toY) {
+        int[] sum = new int[width];
+        for (int y = fromY; y < toY; y++) {
+            Arrays.fill(sum, 0);
+            for (Picture picture : pictures) {
+                byte[] levels = picture.levels();
+                for (int x = 0, l = y * picture.getWidth(); x < width;
+                        x++, l++) {
+                    sum[x] += levels[l] & 0xff;
+                }
+            }
+            for (int x = 0, d = y * width; x < width; x++, d++) {
+                dst[d] = (byte) (sum[x] / pictures.length);
             }
         }
-        return averageColors(colors);
     }
 
-    private static Color averageColors(Color[] colors) {
-        int red = 0, green = 0, blue = 0;
+    private static void blendRows(Picture[] pictures, int[] dst, int width,
+            int fromY, int toY) {
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        int[] row = new int[width];
+        Kernels kernels = Kernels.get();
 
-        for (Color color : colors) {
-            red += color.getRed();
-            green += color.getGreen();
-            blue += color.getBlue();
+        for (int y = fromY; y < toY; y++) {
+            Arrays.fill(red, 0);
+            Arrays.fill(green, 0);
+            Arrays.fill(blue, 0);
+            for (Picture picture : pictures) {
+                picture.getRegion(0, y, width, 1, row, 0, width);
+                kernels.accumulate(row, 0, 1, red, green, blue, 0, width);
+            }
+            kernels.average(red, green, blue, 0, pictures.length, dst,
+                y * width, width);
         }
+    }
+
+    public static Picture mosaic(int tileSize, Picture[] pictures) {
+        return mosaic(tileSize, tileSize, pictures);
+    }
 
-        return new Color(red / colors.length, green / colors.length, 
-                         blue / colors.length);
+    /**
+     * Tile the pictures in a repeating diagonal pattern: the tile in
+     * column i and row j comes from picture (i + j) mod n, at the same
+     * place. The result is the smallest input cut down to whole tiles.
+     * Rows are filled in parallel, each tile span being one
+     * <tt>System.arraycopy</tt> from the raw raster of its source; see
+     * <tt>MosaicBuilder</tt>.
+     * 
+     * @param tileWidth
+     *                    the width of each tile, at least 1
+     * @param tileHeight
+     *                    the height of each tile, at least 1
+     * @param pictures
+     *                    the pictures to take tiles from
+     * @return the mosaic.
+     * @throws IllegalArgumentException
+     *                     if a tile dimension is less than 1.
+     */
+    public static Picture mosaic(int tileWidth, int tileHeight,
+            Picture[] pictures) {
+        String key = cacheKey("mosaic " + tileWidth + "x" + tileHeight,
+            pictures);
+        Picture cached = cached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Tuple<Integer, Integer> smallestDimensions =
+            getSmallestDimensions(pictures);
+        MosaicBuilder builder = new MosaicBuilder(tileWidth, tileHeight,
+            pictures.length, smallestDimensions.getX(),
+            smallestDimensions.getY());
+        for (int i = 0; i < pictures.length; i++) {
+            builder.add(i, pictures[i]);
+        }
+
+        return remember(key, builder.result());
+    }
+
+    /* Averages the 3x3 square around x in three rows starting at 'above' */
+    private static int averageNeighbours(int[] rows, int above, int width,
+            int x) {
+        int red = 0, green = 0, blue = 0;
+
+        for (int row = above; row <= above + 2 * width; row += width) {
+            for (int i = row + x - 1; i <= row + x + 1; i++) {
+                int rgb = rows[i];
+                red += (rgb >> 16) & 0xff;
+                green += (rgb >> 8) & 0xff;
+                blue += rgb & 0xff;
+            }
+        }
+        return ((red / 9) << 16) | ((green / 9) << 8) | (blue / 9);
     }
 
     private static Tuple<Integer, Integer> getSmallestDimensions(
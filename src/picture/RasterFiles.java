@@ -0,0 +1,369 @@
+package picture;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Uncompressed picture files, for intermediates that are written and read
+ * back far more often than they are shared.
+ *
+ * The raw raster format (extension <tt>.praw</tt>) is a 16 byte header - the
+ * magic number <tt>PRAW</tt>, a format version, the width and the height, as
+ * little-endian ints - followed by the pixels as little-endian packed
+ * <tt>0x00RRGGBB</tt> ints in row-major order. Such a file is memory-mapped
+ * rather than read, and the Picture sits directly on the mapping, so opening
+ * one costs nothing until its pixels are touched. A single mapping is limited
+ * to 2 GB, i.e. about 536 million pixels.
+ *
+ * The binary Netpbm formats are supported for interchange with other tools:
+ * PGM (P5), PPM (P6) and PAM (P7) can be read and written. These are
+ * copied onto the heap as they are not laid out like a Picture; gray files
+ * are read as grayscale pictures.
+ */
+public final class RasterFiles {
+
+    public static final String RAW_EXTENSION = ".praw";
+
+    /** "PRAW" read as a little-endian int. */
+    private static final int MAGIC = 0x57415250;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    /**
+     * Hide default constructor (static methods only).
+     */
+    private RasterFiles() {
+    }
+
+    /**
+     * Map a raw raster file as a Picture. The pixels are not read: they are
+     * paged in from the file as they are used. A writable mapping writes
+     * changes to the picture through to the file.
+     *
+     * @param file
+     *                    the <tt>.praw</tt> file to map
+     * @param writable
+     *                    whether the picture may be modified
+     * @return a buffer-backed picture over the file's pixels.
+     * @throws IOException
+     *                     if the file cannot be mapped or is not a raw raster.
+     */
+    public static Picture map(File file, boolean writable) throws IOException {
+        StandardOpenOption[] options = writable
+            ? new StandardOpenOption[] { StandardOpenOption.READ,
+                StandardOpenOption.WRITE }
+            : new StandardOpenOption[] { StandardOpenOption.READ };
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(file + " is not a raw raster file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new EOFException(file.toString());
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a raw raster file");
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            long size = rasterBytes(width, height);
+            if (channel.size() != size) {
+                throw new IOException(file + " should hold " + size
+                    + " bytes for a " + width + "x" + height + " picture, "
+                    + "but holds " + channel.size());
+            }
+            MappedByteBuffer mapping = channel.map(writable
+                ? FileChannel.MapMode.READ_WRITE
+                : FileChannel.MapMode.READ_ONLY, 0, size);
+            return new Picture(pixelsOf(mapping), width, height);
+        }
+    }
+
+    /**
+     * Create a raw raster file of the given size and map it as a writable
+     * Picture, initially black. Anything drawn on the picture ends up in the
+     * file.
+     *
+     * @param file
+     *                    the <tt>.praw</tt> file to create or overwrite
+     * @param width
+     *                    the width of the picture
+     * @param height
+     *                    the height of the picture
+     * @return a buffer-backed picture over the new file.
+     * @throws IOException
+     *                     if the file cannot be created or is too large to map.
+     */
+    public static Picture create(File file, int width, int height)
+            throws IOException {
+        long size = rasterBytes(width, height);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapping = channel.map(
+                FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+            return new Picture(pixelsOf(mapping), width, height);
+        }
+    }
+
+    /**
+     * Write a picture as a raw raster file, one row copy at a time.
+     *
+     * @param picture
+     *                    the picture to write
+     * @param file
+     *                    the <tt>.praw</tt> file to create or overwrite
+     * @throws IOException
+     *                     if the file cannot be written.
+     */
+    public static void writeRaw(Picture picture, File file)
+            throws IOException {
+        final Picture target = create(file, picture.getWidth(),
+            picture.getHeight());
+        picture.forEachRow((y, row, offset, width) ->
+            target.setRow(y, row, offset));
+    }
+
+    /**
+     * Read a binary PGM, PPM or PAM file (maximum sample value 255). Gray
+     * files give a grayscale picture, and the alpha channel of a
+     * GRAYSCALE_ALPHA or RGB_ALPHA PAM is dropped.
+     *
+     * @param file
+     *                    the Netpbm file to read
+     * @return a new heap picture holding the file's pixels.
+     * @throws IOException
+     *                     if the file cannot be read or uses an unsupported
+     *                     variant of the format.
+     */
+    public static Picture readNetpbm(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(file), 1 << 16)) {
+            if (in.read() != 'P') {
+                throw new IOException(file + " is not a Netpbm file");
+            }
+            int type = in.read();
+            int width, height, depth, maxval;
+            if (type == '5' || type == '6') {
+                width = Integer.parseInt(token(in));
+                height = Integer.parseInt(token(in));
+                maxval = Integer.parseInt(token(in));
+                depth = type == '5' ? 1 : 3;
+            } else if (type == '7') {
+                width = height = depth = maxval = -1;
+                for (String key = token(in); !key.equals("ENDHDR");
+                        key = token(in)) {
+                    if (key.equals("TUPLTYPE")) {
+                        token(in);
+                        continue;
+                    }
+                    int value = Integer.parseInt(token(in));
+                    if (key.equals("WIDTH")) {
+                        width = value;
+                    } else if (key.equals("HEIGHT")) {
+                        height = value;
+                    } else if (key.equals("DEPTH")) {
+                        depth = value;
+                    } else if (key.equals("MAXVAL")) {
+                        maxval = value;
+                    }
+                }
+            } else {
+                throw new IOException(file + " is not a binary Netpbm file");
+            }
+            if (width < 1 || height < 1 || maxval != 255
+                    || depth < 1 || depth > 4) {
+                throw new IOException(file + ": unsupported Netpbm header ("
+                    + width + "x" + height + ", depth " + depth + ", maxval "
+                    + maxval + ")");
+            }
+
+            if (depth == 1) {
+                Picture picture = Utils.createGrayPicture(width, height);
+                readFully(in, picture.getGray(), file);
+                return picture;
+            }
+            if (depth == 2) {
+                Picture picture = Utils.createGrayPicture(width, height);
+                byte[] levels = picture.getGray();
+                byte[] row = new byte[width * depth];
+                for (int y = 0; y < height; y++) {
+                    readFully(in, row, file);
+                    for (int x = 0, d = y * width; x < width; x++, d++) {
+                        levels[d] = row[2 * x];
+                    }
+                }
+                return picture;
+            }
+            Picture picture = Utils.createPicture(width, height);
+            int[] pixels = picture.getPixels();
+            byte[] row = new byte[width * depth];
+            for (int y = 0; y < height; y++) {
+                readFully(in, row, file);
+                for (int x = 0, i = 0, d = y * width; x < width;
+                        x++, i += depth, d++) {
+                    pixels[d] = ((row[i] & 0xff) << 16)
+                        | ((row[i + 1] & 0xff) << 8) | (row[i + 2] & 0xff);
+                }
+            }
+            return picture;
+        }
+    }
+
+    /**
+     * Write a picture as a binary PGM (P5) file, one byte per pixel. A
+     * colour picture is written as the mean of its channels.
+     *
+     * @param picture
+     *                    the picture to write
+     * @param file
+     *                    the file to create or overwrite
+     * @throws IOException
+     *                     if the file cannot be written.
+     */
+    public static void writePgm(Picture picture, File file)
+            throws IOException {
+        int width = picture.getWidth();
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16)) {
+            out.write(("P5\n" + width + " " + picture.getHeight() + "\n255\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            if (picture.isGray()) {
+                out.write(picture.levels());
+                return;
+            }
+            byte[] bytes = new byte[width];
+            int[] row = new int[width];
+            for (int y = 0; y < picture.getHeight(); y++) {
+                picture.getRow(y, row, 0);
+                for (int x = 0; x < width; x++) {
+                    bytes[x] = (byte) Picture.level(row[x]);
+                }
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Write a picture as a binary PPM (P6) file.
+     *
+     * @param picture
+     *                    the picture to write
+     * @param file
+     *                    the file to create or overwrite
+     * @throws IOException
+     *                     if the file cannot be written.
+     */
+    public static void writePpm(Picture picture, File file)
+            throws IOException {
+        writeNetpbm(picture, file, "P6\n" + picture.getWidth() + " "
+            + picture.getHeight() + "\n255\n");
+    }
+
+    /**
+     * Write a picture as a PAM (P7) file with tuple type RGB.
+     *
+     * @param picture
+     *                    the picture to write
+     * @param file
+     *                    the file to create or overwrite
+     * @throws IOException
+     *                     if the file cannot be written.
+     */
+    public static void writePam(Picture picture, File file)
+            throws IOException {
+        writeNetpbm(picture, file, "P7\nWIDTH " + picture.getWidth()
+            + "\nHEIGHT " + picture.getHeight()
+            + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n");
+    }
+
+    private static void writeNetpbm(Picture picture, File file,
+            String header) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16)) {
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            byte[] bytes = new byte[3 * picture.getWidth()];
+            int[] row = new int[picture.getWidth()];
+            for (int y = 0; y < picture.getHeight(); y++) {
+                picture.getRow(y, row, 0);
+                for (int x = 0, i = 0; x < row.length; x++) {
+                    bytes[i++] = (byte) (row[x] >> 16);
+                    bytes[i++] = (byte) (row[x] >> 8);
+                    bytes[i++] = (byte) row[x];
+                }
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static long rasterBytes(int width, int height) throws IOException {
+        long size = HEADER_BYTES + 4L * width * height;
+        if (width < 0 || height < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("cannot map a " + width + "x" + height
+                + " raster");
+        }
+        return size;
+    }
+
+    private static IntBuffer pixelsOf(MappedByteBuffer mapping) {
+        mapping.position(HEADER_BYTES);
+        return mapping.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /* Reads the next whitespace-separated header token, skipping comments */
+    private static String token(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c = in.read();
+        while (true) {
+            if (c == '#') {
+                while (c != '\n' && c != -1) {
+                    c = in.read();
+                }
+            } else if (c == -1) {
+                throw new EOFException("truncated Netpbm header");
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+            c = in.read();
+        }
+        // The single whitespace after the last token is consumed here,
+        // leaving the stream at the first sample
+        while (c != -1 && !Character.isWhitespace(c)) {
+            sb.append((char) c);
+            c = in.read();
+        }
+        return sb.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, File file)
+            throws IOException {
+        for (int n = 0; n < bytes.length; ) {
+            int read = in.read(bytes, n, bytes.length - n);
+            if (read < 0) {
+                throw new EOFException(file + " is truncated");
+            }
+            n += read;
+        }
+    }
+}
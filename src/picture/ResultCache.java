@@ -0,0 +1,283 @@
+package picture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of transformations, keyed by what was asked for
+ * (the operation and its arguments) and the digests of the inputs, so that
+ * repeating a transformation on the same content costs a lookup.
+ *
+ * Results are kept in memory, least recently used first out, up to a
+ * budget in bytes, and optionally also in a directory as raw raster files
+ * (PGM files for grayscale results), so they survive the JVM. The
+ * directory is never pruned; delete old files (e.g. by access time) when
+ * it grows too large. The same directory can hold encoded output files
+ * keyed the same way, which lets <tt>Main</tt> skip decoding and encoding
+ * as well as processing.
+ *
+ * Pictures handed to or returned by the cache are copies, so callers may
+ * modify them freely. All methods may be called from several threads.
+ */
+public class ResultCache {
+
+    /**
+     * Part of every key. Bump it when an operation's output changes, so
+     * results on disk from older versions are not used.
+     */
+    private static final String KEY_VERSION = "2";
+
+    /** The extension of grayscale results on disk. */
+    private static final String GRAY_EXTENSION = ".pgm";
+
+    private final long maxBytes;
+    private final File directory;
+
+    private final LinkedHashMap<String, Picture> memory =
+        new LinkedHashMap<String, Picture>(16, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a cache that holds up to <tt>maxBytes</tt> of pixels in memory
+     * and, if <tt>directory</tt> is not null, keeps every result there too.
+     *
+     * @param maxBytes
+     *                    the memory budget, 4 bytes per pixel; 0 keeps
+     *                    nothing in memory
+     * @param directory
+     *                    where to keep results on disk, or null
+     * @throws IOException
+     *                     if the directory cannot be created.
+     */
+    public ResultCache(long maxBytes, File directory) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("negative cache size "
+                + maxBytes);
+        }
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * Build the key for applying <tt>operation</tt> to <tt>inputs</tt>.
+     * The operation string must name the transformation and every argument
+     * that affects its output.
+     *
+     * @param operation
+     *                    the transformation and its arguments
+     * @param inputs
+     *                    the pictures it reads, in order
+     * @return a key identifying the result.
+     */
+    public static String key(String operation, Picture... inputs) {
+        StringBuilder key = new StringBuilder(operation);
+        for (Picture input : inputs) {
+            key.append(' ').append(input.digest());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Look a result up in memory, then on disk.
+     *
+     * @param key
+     *                    the key built by <tt>key</tt>
+     * @return a copy of the result, or null if it is not cached.
+     */
+    public Picture get(String key) {
+        Picture result;
+        synchronized (this) {
+            result = memory.get(key);
+        }
+        if (result == null && directory != null) {
+            File file = file(key, RasterFiles.RAW_EXTENSION);
+            File grayFile = file(key, GRAY_EXTENSION);
+            if (file.isFile() || grayFile.isFile()) {
+                try {
+                    result = file.isFile() ? RasterFiles.map(file, false)
+                        : RasterFiles.readNetpbm(grayFile);
+                    remember(key, copy(result));
+                } catch (IOException e) {
+                    // An unreadable entry is a miss; it will be rewritten
+                    result = null;
+                }
+            }
+        }
+        synchronized (this) {
+            if (result == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return copy(result);
+    }
+
+    /**
+     * Store a result in memory and, if the cache has a directory, on disk.
+     *
+     * @param key
+     *                    the key built by <tt>key</tt>
+     * @param result
+     *                    the result; the cache keeps its own copy
+     */
+    public void put(String key, Picture result) {
+        remember(key, copy(result));
+        if (directory != null) {
+            try {
+                File temporary = File.createTempFile("result", ".tmp",
+                    directory);
+                if (result.isGray()) {
+                    RasterFiles.writePgm(result, temporary);
+                    move(temporary, file(key, GRAY_EXTENSION));
+                } else {
+                    RasterFiles.writeRaw(result, temporary);
+                    move(temporary, file(key, RasterFiles.RAW_EXTENSION));
+                }
+            } catch (IOException e) {
+                // The disk copy is only an optimisation
+            }
+        }
+    }
+
+    /**
+     * Return the encoded output file cached under <tt>key</tt>, if any. The
+     * extension tells outputs of different formats apart.
+     *
+     * @param key
+     *                    a key identifying the output
+     * @param extension
+     *                    the extension of the output, including the dot
+     * @return the cached file, or null.
+     */
+    public File getFile(String key, String extension) {
+        File file = directory == null ? null : file(key, extension);
+        boolean hit = file != null && file.isFile();
+        synchronized (this) {
+            if (hit) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return hit ? file : null;
+    }
+
+    /**
+     * Copy an encoded output file into the cache under <tt>key</tt>. Does
+     * nothing if the cache has no directory.
+     *
+     * @param key
+     *                    a key identifying the output
+     * @param extension
+     *                    the extension of the output, including the dot
+     * @param output
+     *                    the file to copy
+     */
+    public void putFile(String key, String extension, File output) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            File temporary = File.createTempFile("result", ".tmp", directory);
+            Files.copy(output.toPath(), temporary.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            move(temporary, file(key, extension));
+        } catch (IOException e) {
+            // The disk copy is only an optimisation
+        }
+    }
+
+    /**
+     * Return how many lookups found a result.
+     *
+     * @return the number of hits so far.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Return how many lookups found nothing.
+     *
+     * @return the number of misses so far.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Return how many bytes of pixels are held in memory.
+     *
+     * @return the memory in use.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private synchronized void remember(String key, Picture result) {
+        long size = sizeOf(result);
+        if (size > maxBytes) {
+            return;
+        }
+        Picture old = memory.put(key, result);
+        bytes += size - (old == null ? 0 : sizeOf(old));
+        Iterator<Map.Entry<String, Picture>> eldest =
+            memory.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /* Names the file for a key by its digest, so any key is a safe name */
+    private File file(String key, String extension) {
+        String name = Digest.of((KEY_VERSION + " " + key)
+            .getBytes(StandardCharsets.UTF_8)).toString();
+        return new File(directory, name + extension);
+    }
+
+    /* Renames into place, so readers never see a half-written entry */
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            from.delete();
+        }
+    }
+
+    private static long sizeOf(Picture picture) {
+        return (picture.isGray() ? 1L : 4L) * picture.getWidth()
+            * picture.getHeight();
+    }
+
+    private static Picture copy(Picture picture) {
+        if (picture.isGray()) {
+            Picture copy = Utils.createGrayPicture(picture.getWidth(),
+                picture.getHeight());
+            System.arraycopy(picture.levels(), 0, copy.getGray(), 0,
+                picture.getWidth() * picture.getHeight());
+            return copy;
+        }
+        final Picture copy = Utils.createPicture(picture.getWidth(),
+            picture.getHeight());
+        final int[] dst = copy.getPixels();
+        picture.forEachRow((y, row, offset, width) ->
+            System.arraycopy(row, offset, dst, y * width, width));
+        return copy;
+    }
+}
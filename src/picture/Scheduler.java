@@ -0,0 +1,160 @@
+package picture;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits work over a range of independent units (usually the rows of an
+ * output picture) into strips and runs them on a shared
+ * <tt>ForkJoinPool</tt>. Each strip is handed to a <tt>StripTask</tt>, which
+ * must only write to the part of the output it was given; reads from source
+ * pictures may reach outside the strip (the halo of a neighbourhood
+ * operation) as sources are never written.
+ *
+ * Because every unit is computed by exactly the same code whichever strip
+ * it lands in, the result does not depend on the parallelism level.
+ */
+public final class Scheduler {
+
+    /**
+     * A piece of work over the units <tt>from</tt> (inclusive) to
+     * <tt>to</tt> (exclusive).
+     */
+    public interface StripTask {
+        void run(int from, int to);
+    }
+
+    /** Roughly how many pixels a strip should cover before it is split. */
+    public static final int PIXELS_PER_STRIP = 1 << 16;
+
+    private static volatile ForkJoinPool pool = null;
+
+    private static volatile int parallelism =
+        Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Hide default constructor (static methods only).
+     */
+    private Scheduler() {
+    }
+
+    /**
+     * Set the number of threads used by the operations in
+     * <tt>picture.Process</tt>. A parallelism of 1 runs everything on the
+     * calling thread.
+     *
+     * @param threads
+     *                    the number of worker threads, at least 1
+     * @throws IllegalArgumentException
+     *                     if <tt>threads</tt> is less than 1.
+     */
+    public static synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                "parallelism must be at least 1, was " + threads);
+        }
+        if (threads != parallelism) {
+            ForkJoinPool old = pool;
+            pool = null;
+            parallelism = threads;
+            if (old != null) {
+                old.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Return the number of threads used by the operations in
+     * <tt>picture.Process</tt>.
+     *
+     * @return the current parallelism level.
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Run <tt>task</tt> over the units 0 to <tt>count</tt>, splitting them
+     * into strips of at least <tt>grain</tt> units, and wait for every strip
+     * to finish.
+     *
+     * @param count
+     *                    the number of units
+     * @param grain
+     *                    the smallest number of units worth running as a strip
+     * @param task
+     *                    the work to run on each strip
+     */
+    public static void forEachStrip(int count, int grain, StripTask task) {
+        grain = Math.max(1, grain);
+        if (parallelism == 1 || count <= grain) {
+            task.run(0, count);
+            return;
+        }
+        // A few strips per thread keeps the workers busy when strips are
+        // uneven, without making them so small the halo dominates
+        int strip = Math.max(grain, count / (parallelism * 4));
+        pool().invoke(new Strips(task, 0, count, strip));
+    }
+
+    /**
+     * Run <tt>task</tt> over the rows of a picture of the given size, in
+     * strips of about <tt>PIXELS_PER_STRIP</tt> pixels and at least
+     * <tt>minRows</tt> rows.
+     *
+     * @param width
+     *                    the width of the picture
+     * @param height
+     *                    the height of the picture
+     * @param minRows
+     *                    the smallest strip worth scheduling
+     * @param task
+     *                    the work to run on each strip of rows
+     */
+    public static void forEachRowStrip(int width, int height, int minRows,
+            StripTask task) {
+        int rows = PIXELS_PER_STRIP / Math.max(1, width);
+        forEachStrip(height, Math.max(minRows, rows), task);
+    }
+
+    private static ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            synchronized (Scheduler.class) {
+                current = pool;
+                if (current == null) {
+                    current = new ForkJoinPool(parallelism);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static class Strips extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final StripTask task;
+        private final int from;
+        private final int to;
+        private final int strip;
+
+        Strips(StripTask task, int from, int to, int strip) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.strip = strip;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= strip) {
+                task.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Strips(task, from, middle, strip),
+                new Strips(task, middle, to, strip));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package picture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A resident HTTP front end to <tt>Process</tt>, so that callers pay for a
+ * request rather than for a JVM launch. A request is
+ *
+ * <pre>
+ * POST /&lt;transformation&gt;/&lt;argument&gt;/...
+ * </pre>
+ *
+ * with an encoded image (anything ImageIO reads) as the body, using the
+ * same vocabulary as <tt>Main</tt>: <tt>/rotate/90</tt>, <tt>/flip/H</tt>,
+ * <tt>/blur</tt>, <tt>/blur/3/mirror</tt>, <tt>/orient/90/H</tt> and so on.
+ * The response is the transformed picture as a PNG. Blend and mosaic take
+ * several pictures and are not offered.
+ *
+ * At most <tt>maxConcurrent</tt> requests are processed at once; any more
+ * are turned away at once with <tt>503 Service Unavailable</tt> rather than
+ * queued, so callers see saturation instead of growing latency. Each
+ * request runs on its own virtual thread when the JVM has them (Java 21 or
+ * later) and on a pooled platform thread otherwise. Every transformation is
+ * run a few times before the server starts listening, so the first real
+ * requests do not pay for JIT compilation.
+ *
+ * <tt>GET /metrics</tt> returns the time, pixels and allocations of every
+ * stage run since the server started (decoding, converting, the
+ * transformation, encoding) in the Prometheus text format, for a
+ * monitoring system to scrape; see <tt>picture.Metrics</tt>.
+ */
+public class Server {
+
+    /** The largest request body accepted, in bytes. */
+    public static final int MAX_BODY_BYTES = 64 << 20;
+
+    /** The side of the synthetic picture used to warm up the JIT. */
+    private static final int WARMUP_SIDE = 256;
+    private static final int WARMUP_ROUNDS = 20;
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Metrics.Summary metrics = new Metrics.Summary();
+
+    /**
+     * Create a server listening on <tt>port</tt> (0 picks a free one). It
+     * does not accept requests until <tt>start</tt> is called.
+     *
+     * @param port
+     *                    the local port to listen on
+     * @param maxConcurrent
+     *                    how many requests may be processed at once, at
+     *                    least 1
+     * @throws IOException
+     *                     if the port cannot be bound.
+     */
+    public Server(int port, int maxConcurrent) throws IOException {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException(
+                "a server needs at least one request slot, was "
+                    + maxConcurrent);
+        }
+        permits = new Semaphore(maxConcurrent);
+        executor = newRequestExecutor();
+        http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/", this::handle);
+        http.setExecutor(executor);
+    }
+
+    /**
+     * Warm up the JIT, then start accepting requests.
+     */
+    public void start() {
+        warmUp();
+        Metrics.addSink(metrics);
+        http.start();
+    }
+
+    /**
+     * Stop accepting requests, giving those in progress up to
+     * <tt>delaySeconds</tt> to finish.
+     *
+     * @param delaySeconds
+     *                    how long to wait for requests in progress
+     */
+    public void stop(int delaySeconds) {
+        http.stop(delaySeconds);
+        executor.shutdown();
+        Metrics.removeSink(metrics);
+    }
+
+    /**
+     * Return the port the server is listening on.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Return the totals of the stages run since the server started, which
+     * <tt>GET /metrics</tt> serves. Stages run by anything else in the same
+     * JVM are counted too.
+     *
+     * @return the server's metrics.
+     */
+    public Metrics.Summary getMetrics() {
+        return metrics;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if ("GET".equals(exchange.getRequestMethod())
+                    && "/metrics".equals(exchange.getRequestURI().getPath())) {
+                respond(exchange, 200, metrics.scrape());
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Use POST with an image body");
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "Too many requests in progress");
+                return;
+            }
+            try {
+                process(exchange);
+            } finally {
+                permits.release();
+            }
+        } catch (RuntimeException e) {
+            if (exchange.getResponseCode() == -1) {
+                respond(exchange, 500, e.toString());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            respond(exchange, 413, "The image is larger than "
+                + MAX_BODY_BYTES + " bytes");
+            return;
+        }
+
+        Picture picture = Utils.readPicture(new ByteArrayInputStream(body));
+        if (picture == null) {
+            respond(exchange, 415, "The body is not an image ImageIO reads");
+            return;
+        }
+
+        Picture result;
+        try {
+            result = Main.transform(
+                parseArguments(exchange.getRequestURI().getRawPath()),
+                picture);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Unknown transformations, bad arguments and missing arguments
+            respond(exchange, 400, Main.INCORRECT_ARG + "\n"
+                + e.getMessage());
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            PngEncoder.DEFAULT.write(result, out);
+        }
+        Process.release(picture);
+        Process.release(result);
+    }
+
+    /*
+     * Turns "/rotate/90" into the argument layout Main uses,
+     * { "rotate", "90", <input>, <output> }, the last two being unused.
+     */
+    private static String[] parseArguments(String path) {
+        List<String> args = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                args.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        if (args.isEmpty()) {
+            throw new IllegalArgumentException("No transformation given");
+        }
+        args.add("-");
+        args.add("-");
+        return args.toArray(new String[args.size()]);
+    }
+
+    /* Reads the whole body, or returns null if it is too large */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            if (body.size() + n > MAX_BODY_BYTES) {
+                return null;
+            }
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+            String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /*
+     * One virtual thread per request where the JVM supports them. Looked up
+     * reflectively so the code still compiles and runs on older JVMs, where
+     * a cached pool of platform threads is used instead: requests over the
+     * limit only hold a thread long enough to be refused, so the pool stays
+     * close to maxConcurrent threads.
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "picture-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /*
+     * Runs every single-input transformation, and a PNG encode and decode,
+     * on a synthetic picture so the hot paths are compiled before the first
+     * request arrives.
+     */
+    private static void warmUp() {
+        Picture picture = Utils.createPicture(WARMUP_SIDE, WARMUP_SIDE);
+        int[] row = new int[WARMUP_SIDE];
+        for (int y = 0; y < WARMUP_SIDE; y++) {
+            for (int x = 0; x < WARMUP_SIDE; x++) {
+                row[x] = (x << 16) | (y << 8) | ((x ^ y) & 0xff);
+            }
+            picture.setRow(y, row, 0);
+        }
+        String[][] requests = { { "invert" }, { "grayscale" },
+            { "rotate", "90" }, { "rotate", "180" }, { "flip", "H" },
+            { "flip", "V" }, { "orient", "90", "H" }, { "blur" },
+            { "blur", "2" }, { "blur", "2", "mirror" }, { "gaussian", "2" },
+            { "sharpen" }, { "edge" }, { "emboss", "wrap" },
+            { "tone", "gamma=2.2", "grayscale", "invert" } };
+        try {
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                for (String[] request : requests) {
+                    String[] args = Arrays.copyOf(request,
+                        request.length + 2);
+                    // In-place transformations scribble on the picture,
+                    // which is all warming up needs
+                    Picture result = Main.transform(args, picture);
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    PngEncoder.DEFAULT.write(result, png);
+                    Utils.readPicture(new ByteArrayInputStream(
+                        png.toByteArray()));
+                    if (result != picture) {
+                        Process.release(result);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // In-memory streams do not fail
+            throw new IllegalStateException(e);
+        }
+    }
+}
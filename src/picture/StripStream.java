@@ -0,0 +1,512 @@
+package picture;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Applies a row-local operation to an image file without ever holding the
+ * whole image in memory. The source is read in horizontal strips, each with
+ * a halo of extra rows above and below for operations that look at
+ * neighbouring pixels, the operation is applied to each strip in turn, and
+ * each output strip is compressed onto the PNG being written before the
+ * next is read. Peak memory is a few strips rather than two copies of the
+ * whole image.
+ *
+ * Non-interlaced 8-bit PNGs (gray, RGB, RGBA and palette without
+ * transparency) are decoded sequentially, one row at a time. Anything else
+ * is read through the <tt>ImageReader</tt> for its format with a source
+ * region per strip; that keeps memory bounded for every format, but readers
+ * that cannot seek (such as ImageIO's own PNG reader) decode the image from
+ * the start for each strip.
+ *
+ * Either way each strip sees exactly the pixels <tt>Utils.loadPicture</tt>
+ * would have produced, so the output matches running the operation on the
+ * loaded picture whenever the operation only needs rows within the halo.
+ */
+public class StripStream {
+
+    /**
+     * A row-local operation. It is given a window of consecutive source
+     * rows and must return a picture of the same height whose rows are the
+     * transformed rows of the window. Output rows within <tt>halo</tt> rows
+     * of a window edge that is not an edge of the image are discarded.
+     */
+    public interface Operation {
+        Picture apply(Picture window);
+    }
+
+    /** The default number of pixels in a strip: 16 MB of packed pixels. */
+    public static final int DEFAULT_STRIP_PIXELS = 1 << 22;
+
+    private final RowSource source;
+    private final Operation operation;
+    private final int halo;
+    private final int stripRows;
+
+    private Picture window;
+    private int windowStart;
+    private int nextSourceRow;
+
+    private StripStream(RowSource source, Operation operation, int halo,
+            int stripRows) {
+        this.source = source;
+        this.operation = operation;
+        this.halo = halo;
+        this.stripRows = stripRows;
+    }
+
+    /**
+     * Stream <tt>input</tt> through <tt>operation</tt> into
+     * <tt>output</tt>, in strips of about <tt>DEFAULT_STRIP_PIXELS</tt>.
+     *
+     * @see #process(String, String, int, Operation, int, PngEncoder)
+     */
+    public static long process(String input, String output, int halo,
+            Operation operation) throws IOException {
+        return process(input, output, halo, operation, 0);
+    }
+
+    /**
+     * Stream <tt>input</tt> through <tt>operation</tt> into
+     * <tt>output</tt>, encoded by the default <tt>PngEncoder</tt>.
+     *
+     * @see #process(String, String, int, Operation, int, PngEncoder)
+     */
+    public static long process(String input, String output, int halo,
+            Operation operation, int stripRows) throws IOException {
+        return process(input, output, halo, operation, stripRows,
+            PngEncoder.DEFAULT);
+    }
+
+    /**
+     * Stream <tt>input</tt> through <tt>operation</tt> into
+     * <tt>output</tt>, which is written as an RGB PNG by <tt>png</tt>.
+     *
+     * @param input
+     *                    the file to read
+     * @param output
+     *                    the file to write
+     * @param halo
+     *                    how many rows above and below a pixel the operation
+     *                    reads
+     * @param operation
+     *                    the operation to apply to each strip
+     * @param stripRows
+     *                    the number of output rows per strip, or 0 to pick it
+     *                    from <tt>DEFAULT_STRIP_PIXELS</tt>
+     * @param png
+     *                    how the output is encoded
+     * @return the number of pixels written.
+     * @throws IOException
+     *                     if the input cannot be read or the output cannot be
+     *                     written.
+     */
+    public static long process(String input, String output, int halo,
+            Operation operation, int stripRows, PngEncoder png)
+            throws IOException {
+        // Decoding, the operation and encoding interleave strip by strip,
+        // so the whole job is timed as one stage
+        Metrics.Span span = Metrics.start(Metrics.Stage.PROCESS, "stream");
+        try (RowSource source = open(new File(input));
+                OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(output), 1 << 16)) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            if (stripRows <= 0) {
+                stripRows = Math.max(1, DEFAULT_STRIP_PIXELS
+                    / Math.max(1, width));
+            }
+            stripRows = Math.min(stripRows, Math.max(1, height));
+            StripStream stream = new StripStream(source, operation, halo,
+                stripRows);
+            PngEncoder.RowWriter writer = png.startRows(out, width, height);
+            for (int fromY = 0; fromY < height; fromY += stripRows) {
+                writer.write(stream.strip(fromY,
+                    Math.min(height, fromY + stripRows)));
+            }
+            writer.finish();
+            span.end(width, height);
+            return (long) width * height;
+        }
+    }
+
+    /* Computes output rows fromY to toY */
+    private Picture strip(int fromY, int toY) throws IOException {
+        int height = source.getHeight();
+        int width = source.getWidth();
+        int start = Math.max(0, fromY - halo);
+        int end = Math.min(height, toY + halo);
+
+        Picture next = Utils.createPicture(width, end - start);
+        int kept = 0;
+        if (window != null && start < windowStart + window.getHeight()) {
+            // Reuse the halo rows already read for the previous strip
+            kept = windowStart + window.getHeight() - start;
+            window.getRegion(0, start - windowStart, width, kept,
+                next.getPixels(), 0, width);
+        }
+        if (nextSourceRow != start + kept) {
+            throw new IllegalStateException("strips must advance in order");
+        }
+        source.read(next.getPixels(), kept * width, end - start - kept);
+        nextSourceRow = end;
+        window = next;
+        windowStart = start;
+
+        Picture result = operation.apply(window);
+        // The output is an RGB PNG, so grayscale results are expanded
+        if (fromY == start && toY == end && !result.isGray()) {
+            return result;
+        }
+        Picture out = Utils.createPicture(width, toY - fromY);
+        result.getRegion(0, fromY - start, width, toY - fromY,
+            out.getPixels(), 0, width);
+        return out;
+    }
+
+    private static RowSource open(File file) throws IOException {
+        RowSource png = PngRowSource.open(file);
+        return png != null ? png : new RegionRowSource(file);
+    }
+
+    /* A forward-only source of packed RGB rows */
+    private interface RowSource extends AutoCloseable {
+        int getWidth();
+
+        int getHeight();
+
+        /* Reads the next 'rows' rows into dst starting at offset */
+        void read(int[] dst, int offset, int rows) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /* Reads strips through an ImageReader with a source region each */
+    private static class RegionRowSource implements RowSource {
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+        private int nextRow;
+
+        RegionRowSource(File file) throws IOException {
+            in = ImageIO.createImageInputStream(file);
+            if (in == null) {
+                throw new IOException("cannot read " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                in.close();
+                throw new IOException("no ImageReader for " + file);
+            }
+            reader = readers.next();
+            reader.setInput(in, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void read(int[] dst, int offset, int rows) throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, nextRow, width, rows));
+            BufferedImage region = reader.read(0, param);
+            // The same conversion Utils.loadPicture applies
+            BufferedImage rgb = new BufferedImage(width, rows,
+                BufferedImage.TYPE_INT_RGB);
+            Graphics g = rgb.createGraphics();
+            g.drawImage(region, 0, 0, null);
+            g.dispose();
+            new Picture(rgb).getRegion(0, 0, width, rows, dst, offset, width);
+            nextRow += rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    /* Decodes a non-interlaced 8-bit PNG one row at a time */
+    private static class PngRowSource implements RowSource {
+        private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+        private final DataInputStream chunks;
+        private final Inflater inflater = new Inflater();
+        private final InputStream pixels;
+        private final int width;
+        private final int height;
+        private final int colorType;
+        private final int channels;
+        private final int[] palette;
+        private byte[] previous;
+        private byte[] current;
+
+        private int chunkRemaining;
+
+        private PngRowSource(DataInputStream chunks, int width, int height,
+                int colorType, int[] palette, int firstIdat) {
+            this.chunks = chunks;
+            this.width = width;
+            this.height = height;
+            this.colorType = colorType;
+            this.palette = palette;
+            this.channels = colorType == 2 ? 3 : colorType == 6 ? 4 : 1;
+            this.chunkRemaining = firstIdat;
+            this.previous = new byte[width * channels + 1];
+            this.current = new byte[width * channels + 1];
+            this.pixels = new InflaterInputStream(new IdatStream(), inflater,
+                1 << 16);
+        }
+
+        /* Returns null if the file is not a PNG this class can stream */
+        static PngRowSource open(File file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+            boolean ok = false;
+            try {
+                if (in.readLong() != SIGNATURE) {
+                    return null;
+                }
+                int width = 0, height = 0, colorType = -1;
+                int[] palette = null;
+                while (true) {
+                    int length = in.readInt();
+                    int type = in.readInt();
+                    if (type == chunkType("IHDR")) {
+                        width = in.readInt();
+                        height = in.readInt();
+                        int depth = in.readUnsignedByte();
+                        colorType = in.readUnsignedByte();
+                        in.skipBytes(2);
+                        int interlace = in.readUnsignedByte();
+                        if (depth != 8 || interlace != 0 || (colorType != 0
+                                && colorType != 2 && colorType != 3
+                                && colorType != 6)) {
+                            return null;
+                        }
+                        in.skipBytes(length - 13 + 4);
+                    } else if (type == chunkType("PLTE")) {
+                        palette = new int[256];
+                        for (int i = 0; i < length / 3; i++) {
+                            palette[i] = (in.readUnsignedByte() << 16)
+                                | (in.readUnsignedByte() << 8)
+                                | in.readUnsignedByte();
+                        }
+                        in.skipBytes(length % 3 + 4);
+                    } else if (type == chunkType("tRNS")
+                            || type == chunkType("iCCP")) {
+                        // Transparency and colour profiles change how the
+                        // image is converted to RGB
+                        return null;
+                    } else if (type == chunkType("IDAT")) {
+                        if (colorType == -1
+                                || (colorType == 3 && palette == null)) {
+                            return null;
+                        }
+                        ok = true;
+                        return new PngRowSource(in, width, height, colorType,
+                            palette, length);
+                    } else {
+                        skipFully(in, length + 4);
+                    }
+                }
+            } catch (EOFException e) {
+                return null;
+            } finally {
+                if (!ok) {
+                    in.close();
+                }
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void read(int[] dst, int offset, int rows) throws IOException {
+            for (int r = 0; r < rows; r++, offset += width) {
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+                readFully(pixels, current);
+                unfilter(current, previous, channels);
+                convert(current, dst, offset);
+            }
+        }
+
+        private void convert(byte[] row, int[] dst, int offset) {
+            for (int x = 0, i = 1; x < width; x++, i += channels) {
+                int rgb;
+                switch (colorType) {
+                    case 0:
+                        int v = row[i] & 0xff;
+                        rgb = (v << 16) | (v << 8) | v;
+                        break;
+                    case 3:
+                        rgb = palette[row[i] & 0xff];
+                        break;
+                    case 6:
+                        // Composited over black, as drawing onto a new
+                        // TYPE_INT_RGB image does
+                        int a = row[i + 3] & 0xff;
+                        rgb = (mul8(a, row[i] & 0xff) << 16)
+                            | (mul8(a, row[i + 1] & 0xff) << 8)
+                            | mul8(a, row[i + 2] & 0xff);
+                        break;
+                    default:
+                        rgb = ((row[i] & 0xff) << 16)
+                            | ((row[i + 1] & 0xff) << 8) | (row[i + 2] & 0xff);
+                        break;
+                }
+                dst[offset + x] = rgb;
+            }
+        }
+
+        /* Java2D's rounded a * c / 255 */
+        private static int mul8(int a, int c) {
+            return (int) ((0x10101L * a * c + (1 << 23)) >> 24);
+        }
+
+        /* Undoes the PNG filter of row (filter byte first) in place */
+        private static void unfilter(byte[] row, byte[] up, int bpp) {
+            int filter = row[0];
+            int n = row.length;
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = 1 + bpp; i < n; i++) {
+                        row[i] += row[i - bpp];
+                    }
+                    break;
+                case 2:
+                    for (int i = 1; i < n; i++) {
+                        row[i] += up[i];
+                    }
+                    break;
+                case 3:
+                    for (int i = 1; i < n; i++) {
+                        int left = i > bpp ? row[i - bpp] & 0xff : 0;
+                        row[i] += (left + (up[i] & 0xff)) >> 1;
+                    }
+                    break;
+                case 4:
+                    for (int i = 1; i < n; i++) {
+                        int a = i > bpp ? row[i - bpp] & 0xff : 0;
+                        int b = up[i] & 0xff;
+                        int c = i > bpp ? up[i - bpp] & 0xff : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        row[i] += (pa <= pb && pa <= pc) ? a
+                            : (pb <= pc ? b : c);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("bad PNG filter "
+                        + filter);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            chunks.close();
+        }
+
+        /* The concatenated data of the IDAT chunks */
+        private class IdatStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (chunkRemaining == 0) {
+                    chunks.skipBytes(4);
+                    int length = chunks.readInt();
+                    if (chunks.readInt() != chunkType("IDAT")) {
+                        return -1;
+                    }
+                    chunkRemaining = length;
+                }
+                int n = chunks.read(b, off, Math.min(len, chunkRemaining));
+                if (n > 0) {
+                    chunkRemaining -= n;
+                }
+                return n;
+            }
+        }
+
+        private static int chunkType(String name) {
+            return (name.charAt(0) << 24) | (name.charAt(1) << 16)
+                | (name.charAt(2) << 8) | name.charAt(3);
+        }
+
+        private static void skipFully(DataInputStream in, int n)
+                throws IOException {
+            while (n > 0) {
+                int skipped = in.skipBytes(n);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                n -= skipped;
+            }
+        }
+
+        private static void readFully(InputStream in, byte[] bytes)
+                throws IOException {
+            for (int n = 0; n < bytes.length; ) {
+                int read = in.read(bytes, n, bytes.length - n);
+                if (read < 0) {
+                    throw new EOFException("PNG image data is truncated");
+                }
+                n += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A point operation compiled into lookup tables: each output channel
+ * depends only on the pixel at the same place. Tones are built from simple
+ * steps (inversion, gain and offset, gamma, thresholds, curves, grayscale)
+ * and chained with <tt>then</tt>; however long the chain, the result is
+ * applied in a single pass costing three table lookups per pixel.
+ *
+ * A tone is a table per channel, optionally followed by the grayscale mix
+ * (the floor of the mean of the three channels) and a second table per
+ * channel. Chaining composes tables, and a mix after a mix folds into the
+ * second tables, since the first leaves the three channels determined by
+ * one gray value. Tones are immutable.
+ */
+public final class Tone {
+
+    /** The tone leaving every pixel unchanged. */
+    public static final Tone IDENTITY = new Tone("identity", identity(),
+        identity(), identity(), null, null, null);
+
+    private final String description;
+    /* The tables applied first, one per channel */
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    /* If the mix is applied: the tables after it, indexed by the sum of
+     * the three channels (0 to 765) the gray value is the third of */
+    private final int[] redBySum;
+    private final int[] greenBySum;
+    private final int[] blueBySum;
+
+    private Tone(String description, int[] red, int[] green, int[] blue,
+            int[] redBySum, int[] greenBySum, int[] blueBySum) {
+        this.description = description;
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.redBySum = redBySum;
+        this.greenBySum = greenBySum;
+        this.blueBySum = blueBySum;
+    }
+
+    /**
+     * Build the tone mapping every channel through <tt>table</tt>.
+     *
+     * @param description
+     *                    a name for the tone, which must tell it apart from
+     *                    every other tone, as results are cached by it
+     * @param table
+     *                    256 values between 0 and 255
+     * @return the tone.
+     * @throws IllegalArgumentException
+     *                     if the table has the wrong length or values.
+     */
+    public static Tone of(String description, int[] table) {
+        return of(description, table, table, table);
+    }
+
+    /**
+     * Build the tone mapping each channel through its own table.
+     *
+     * @param description
+     *                    a name for the tone, which must tell it apart from
+     *                    every other tone, as results are cached by it
+     * @param red
+     *                    256 values between 0 and 255 for the red channel
+     * @param green
+     *                    the same for the green channel
+     * @param blue
+     *                    the same for the blue channel
+     * @return the tone.
+     * @throws IllegalArgumentException
+     *                     if a table has the wrong length or values.
+     */
+    public static Tone of(String description, int[] red, int[] green,
+            int[] blue) {
+        return new Tone(description, checked(red), checked(green),
+            checked(blue), null, null, null);
+    }
+
+    /** Each channel c becomes 255 - c. */
+    public static Tone invert() {
+        int[] table = new int[256];
+        for (int c = 0; c < 256; c++) {
+            table[c] = 255 - c;
+        }
+        return of("invert", table);
+    }
+
+    /** Each channel becomes the floor of the mean of the three. */
+    public static Tone grayscale() {
+        int[] bySum = new int[766];
+        for (int sum = 0; sum < bySum.length; sum++) {
+            bySum[sum] = sum / 3;
+        }
+        return new Tone("grayscale", identity(), identity(), identity(),
+            bySum, bySum, bySum);
+    }
+
+    /**
+     * Each channel c becomes <tt>gain * c + offset</tt>, rounded and
+     * clamped.
+     *
+     * @param gain
+     *                    the factor to scale channels by
+     * @param offset
+     *                    the value to add afterwards
+     * @return the tone.
+     */
+    public static Tone linear(double gain, double offset) {
+        int[] table = new int[256];
+        for (int c = 0; c < 256; c++) {
+            table[c] = clamp(Math.round(gain * c + offset));
+        }
+        return of("linear " + gain + "," + offset, table);
+    }
+
+    /**
+     * Each channel c becomes <tt>255 * (c / 255)^exponent</tt>, rounded:
+     * exponents above 1 darken the midtones, below 1 lighten them.
+     *
+     * @param exponent
+     *                    the power to raise channels to, greater than 0
+     * @return the tone.
+     * @throws IllegalArgumentException
+     *                     if the exponent is not positive.
+     */
+    public static Tone gamma(double exponent) {
+        if (!(exponent > 0 && exponent < Double.POSITIVE_INFINITY)) {
+            throw new IllegalArgumentException("gamma must be positive, was "
+                + exponent);
+        }
+        int[] table = new int[256];
+        for (int c = 0; c < 256; c++) {
+            table[c] = clamp(Math.round(255 * Math.pow(c / 255.0, exponent)));
+        }
+        return of("gamma " + exponent, table);
+    }
+
+    /**
+     * Each channel becomes 255 if it is at least <tt>level</tt>, and 0
+     * otherwise.
+     *
+     * @param level
+     *                    the smallest value turned to 255
+     * @return the tone.
+     */
+    public static Tone threshold(int level) {
+        int[] table = new int[256];
+        for (int c = 0; c < 256; c++) {
+            table[c] = c >= level ? 255 : 0;
+        }
+        return of("threshold " + level, table);
+    }
+
+    /**
+     * Each channel follows the straight lines joining the control points
+     * <tt>(x0, y0), (x1, y1), ...</tt>, and stays level before the first
+     * and after the last.
+     *
+     * @param points
+     *                    x and y of each point, the x strictly increasing,
+     *                    all between 0 and 255
+     * @return the tone.
+     * @throws IllegalArgumentException
+     *                     if there is not at least one point, or a
+     *                     coordinate is out of order or of range.
+     */
+    public static Tone curve(int... points) {
+        if (points.length < 2 || points.length % 2 != 0) {
+            throw new IllegalArgumentException("a curve needs x,y pairs, "
+                + "was given " + points.length + " values");
+        }
+        for (int i = 0; i < points.length; i++) {
+            if (points[i] < 0 || points[i] > 255
+                    || (i % 2 == 0 && i > 0 && points[i] <= points[i - 2])) {
+                throw new IllegalArgumentException("curve points must be "
+                    + "between 0 and 255 with increasing x: "
+                    + Arrays.toString(points));
+            }
+        }
+        int[] table = new int[256];
+        int last = points.length - 2;
+        for (int c = 0; c < 256; c++) {
+            if (c <= points[0]) {
+                table[c] = points[1];
+            } else if (c >= points[last]) {
+                table[c] = points[last + 1];
+            } else {
+                int i = 0;
+                while (points[i + 2] < c) {
+                    i += 2;
+                }
+                int x0 = points[i], y0 = points[i + 1];
+                int x1 = points[i + 2], y1 = points[i + 3];
+                table[c] = (int) Math.round(
+                    y0 + (double) (y1 - y0) * (c - x0) / (x1 - x0));
+            }
+        }
+        return of("curve " + Arrays.toString(points), table);
+    }
+
+    /**
+     * Apply a separate tone to each channel: red through <tt>red</tt> and
+     * so on.
+     *
+     * @param red
+     *                    the tone of the red channel
+     * @param green
+     *                    the tone of the green channel
+     * @param blue
+     *                    the tone of the blue channel
+     * @return the combined tone.
+     * @throws IllegalArgumentException
+     *                     if one of them mixes channels, as grayscale does.
+     */
+    public static Tone channels(Tone red, Tone green, Tone blue) {
+        if (red.mixes() || green.mixes() || blue.mixes()) {
+            throw new IllegalArgumentException(
+                "tones that mix channels cannot be applied per channel");
+        }
+        return new Tone("channels(" + red + "; " + green + "; " + blue + ")",
+            red.red, green.green, blue.blue, null, null, null);
+    }
+
+    /**
+     * Parse one step as written on the command line: <tt>invert</tt>,
+     * <tt>grayscale</tt>, <tt>linear=gain,offset</tt>,
+     * <tt>gamma=exponent</tt>, <tt>threshold=level</tt> or
+     * <tt>curve=x0,y0,x1,y1,...</tt>, optionally prefixed by
+     * <tt>red:</tt>, <tt>green:</tt> or <tt>blue:</tt> to apply it to that
+     * channel alone.
+     *
+     * @param step
+     *                    the step to parse
+     * @return the tone.
+     * @throws IllegalArgumentException
+     *                     if the step is not one of these.
+     */
+    public static Tone parse(String step) {
+        String lower = step.toLowerCase(Locale.ROOT);
+        int colon = lower.indexOf(':');
+        if (colon >= 0) {
+            String channel = lower.substring(0, colon);
+            Tone tone = parse(lower.substring(colon + 1));
+            switch (channel) {
+                case "red":
+                    return channels(tone, IDENTITY, IDENTITY);
+                case "green":
+                    return channels(IDENTITY, tone, IDENTITY);
+                case "blue":
+                    return channels(IDENTITY, IDENTITY, tone);
+                default:
+                    throw new IllegalArgumentException("Unknown channel "
+                        + channel + " in " + step);
+            }
+        }
+        int equals = lower.indexOf('=');
+        String name = equals < 0 ? lower : lower.substring(0, equals);
+        double[] values = new double[0];
+        if (equals >= 0) {
+            String[] fields = lower.substring(equals + 1).split(",");
+            values = new double[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = Double.parseDouble(fields[i].trim());
+            }
+        }
+        switch (name) {
+            case "invert":
+                return invert();
+            case "grayscale":
+                return grayscale();
+            case "linear":
+                checkValues(step, values, 1, 2);
+                return linear(values[0], values.length > 1 ? values[1] : 0);
+            case "gamma":
+                checkValues(step, values, 1, 1);
+                return gamma(values[0]);
+            case "threshold":
+                checkValues(step, values, 1, 1);
+                return threshold((int) values[0]);
+            case "curve":
+                int[] points = new int[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    points[i] = (int) values[i];
+                }
+                return curve(points);
+            default:
+                throw new IllegalArgumentException("Unknown tone " + step);
+        }
+    }
+
+    /**
+     * Parse and chain several steps, each as for <tt>parse</tt>.
+     *
+     * @param steps
+     *                    the steps, first applied first
+     * @return the compiled tone.
+     */
+    public static Tone compile(String... steps) {
+        Tone tone = IDENTITY;
+        for (String step : steps) {
+            tone = tone.then(parse(step));
+        }
+        return tone;
+    }
+
+    /**
+     * Return the tone applying this one and then <tt>next</tt>.
+     *
+     * @param next
+     *                    the tone to apply to the result of this one
+     * @return the composed tone.
+     */
+    public Tone then(Tone next) {
+        if (this == IDENTITY) {
+            return next;
+        }
+        if (next == IDENTITY) {
+            return this;
+        }
+        String chained = description + ", " + next.description;
+        if (!mixes()) {
+            // next's first tables absorb ours
+            return new Tone(chained, compose(red, next.red),
+                compose(green, next.green), compose(blue, next.blue),
+                next.redBySum, next.greenBySum, next.blueBySum);
+        }
+        if (!next.mixes()) {
+            return new Tone(chained, red, green, blue,
+                compose(redBySum, next.red), compose(greenBySum, next.green),
+                compose(blueBySum, next.blue));
+        }
+        // After our mix the channels depend on one sum, so next's mix of
+        // them is a table of that sum
+        int[] mixed = new int[766];
+        for (int sum = 0; sum < mixed.length; sum++) {
+            mixed[sum] = next.red[redBySum[sum]] + next.green[greenBySum[sum]]
+                + next.blue[blueBySum[sum]];
+        }
+        return new Tone(chained, red, green, blue,
+            compose(mixed, next.redBySum), compose(mixed, next.greenBySum),
+            compose(mixed, next.blueBySum));
+    }
+
+    /**
+     * Return whether the tone mixes channels, so that an output channel
+     * depends on the other input channels.
+     *
+     * @return true iff the tone includes a grayscale step.
+     */
+    public boolean mixes() {
+        return redBySum != null;
+    }
+
+    /**
+     * Return whether every pixel the tone produces is gray, whatever its
+     * input, as after a grayscale step followed only by steps that treat
+     * the channels alike.
+     *
+     * @return true iff the three output channels are always equal.
+     */
+    public boolean isGray() {
+        return mixes() && Arrays.equals(redBySum, greenBySum)
+            && Arrays.equals(redBySum, blueBySum);
+    }
+
+    /**
+     * Return what the tone does to gray pixels, as a table from gray level
+     * to gray level, or null if it turns some gray pixel into a colour.
+     */
+    int[] grayTable() {
+        int[] table = new int[256];
+        for (int level = 0; level < 256; level++) {
+            int r = red[level], g = green[level], b = blue[level];
+            if (mixes()) {
+                int sum = r + g + b;
+                r = redBySum[sum];
+                g = greenBySum[sum];
+                b = blueBySum[sum];
+            }
+            if (r != g || g != b) {
+                return null;
+            }
+            table[level] = r;
+        }
+        return table;
+    }
+
+    /**
+     * Apply a tone for which <tt>isGray</tt> holds to <tt>length</tt>
+     * packed pixels of <tt>src</tt>, writing their gray levels to
+     * <tt>dst</tt>.
+     */
+    void apply(int[] src, int srcOffset, byte[] dst, int dstOffset,
+            int length) {
+        int[] r = red, g = green, b = blue, bySum = redBySum;
+        for (int i = 0; i < length; i++) {
+            int rgb = src[srcOffset + i];
+            dst[dstOffset + i] = (byte) bySum[r[(rgb >> 16) & 0xff]
+                + g[(rgb >> 8) & 0xff] + b[rgb & 0xff]];
+        }
+    }
+
+    /**
+     * Apply the tone to <tt>length</tt> packed <tt>0x00RRGGBB</tt> pixels
+     * of <tt>src</tt>, writing them to <tt>dst</tt>, which may be the same
+     * array.
+     */
+    public void apply(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        int[] r = red, g = green, b = blue;
+        if (!mixes()) {
+            for (int i = 0; i < length; i++) {
+                int rgb = src[srcOffset + i];
+                dst[dstOffset + i] = (r[(rgb >> 16) & 0xff] << 16)
+                    | (g[(rgb >> 8) & 0xff] << 8) | b[rgb & 0xff];
+            }
+            return;
+        }
+        int[] rs = redBySum, gs = greenBySum, bs = blueBySum;
+        for (int i = 0; i < length; i++) {
+            int rgb = src[srcOffset + i];
+            int sum = r[(rgb >> 16) & 0xff] + g[(rgb >> 8) & 0xff]
+                + b[rgb & 0xff];
+            dst[dstOffset + i] = (rs[sum] << 16) | (gs[sum] << 8) | bs[sum];
+        }
+    }
+
+    /**
+     * Describe the steps of the tone; tones with the same description give
+     * the same results.
+     */
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private static int[] identity() {
+        int[] table = new int[256];
+        for (int c = 0; c < 256; c++) {
+            table[c] = c;
+        }
+        return table;
+    }
+
+    /* The table of first followed by second */
+    private static int[] compose(int[] first, int[] second) {
+        int[] table = new int[first.length];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = second[first[i]];
+        }
+        return table;
+    }
+
+    private static int[] checked(int[] table) {
+        if (table.length != 256) {
+            throw new IllegalArgumentException("a tone table needs 256 "
+                + "entries, had " + table.length);
+        }
+        for (int value : table) {
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("tone table values must "
+                    + "be between 0 and 255, had " + value);
+            }
+        }
+        return table.clone();
+    }
+
+    private static void checkValues(String step, double[] values, int min,
+            int max) {
+        if (values.length < min || values.length > max) {
+            throw new IllegalArgumentException("Wrong number of values in "
+                + step);
+        }
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+}
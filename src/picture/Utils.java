@@ -1,13 +1,19 @@
 package picture;
 
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * A set of convenient methods to create and display Picture objects.
@@ -36,10 +42,31 @@ public class Utils {
     return new Picture(img);
   }
 
+  /**
+   * Create a new grayscale Picture of the specified width and height, holding
+   * one byte per pixel. It starts black.
+   * 
+   * @param width
+   *          width of new Picture
+   * @param height
+   *          height of new Picture
+   * @return a new grayscale Picture of the specified size.
+   */
+  public static Picture createGrayPicture(int width, int height) {
+    BufferedImage img = new BufferedImage(width, height,
+        BufferedImage.TYPE_BYTE_GRAY);
+    return new Picture(img);
+  }
+
   /**
    * Create a Picture object from the the image at the specified location (URL
    * or local file).
    * 
+   * Local raw raster files (<tt>.praw</tt>) are memory-mapped read-only
+   * instead of decoded, and Netpbm files (<tt>.pgm</tt>, <tt>.ppm</tt>,
+   * <tt>.pam</tt>, <tt>.pnm</tt>) are read directly; see
+   * <tt>picture.RasterFiles</tt>. Everything else goes through ImageIO.
+   * 
    * @param location
    *          a String representing the location of the image to be loaded. This
    *          can either be a URL, or a filesystem location.
@@ -47,8 +74,30 @@ public class Utils {
    *         loading failed for any reason.
    */
   public static Picture loadPicture(String locationString) {
+    return loadPicture(locationString, 0);
+  }
+
+  /**
+   * Create a Picture object from the image at the specified location, scaled
+   * down for previewing so that neither side exceeds <tt>maxDimension</tt>.
+   * 
+   * The image is shrunk by the smallest whole factor that fits, keeping
+   * every factor-th pixel of every factor-th row. For ImageIO formats this
+   * is done by the decoder (<tt>ImageReadParam.setSourceSubsampling</tt>),
+   * so the skipped pixels are never converted or stored, and formats that
+   * can skip undecoded data (JPEG, uncompressed and tiled formats) do not
+   * decode them at all. Raw raster files are mapped and only the kept rows
+   * are touched. Images that already fit are loaded whole.
+   * 
+   * @param locationString
+   *          a String representing the location of the image to be loaded
+   * @param maxDimension
+   *          the largest width or height wanted, or 0 for full resolution
+   * @return a Picture representing the image, or null if loading failed for
+   *         any reason.
+   */
+  public static Picture loadPicture(String locationString, int maxDimension) {
 
-    final BufferedImage img;
     final BufferedImage origImage;
 
     URL locationURL = null;
@@ -63,29 +112,237 @@ public class Utils {
     }
 
     try {
-      if (locationURL != null) {
+      if (locationFile != null && hasExtension(locationString,
+          RasterFiles.RAW_EXTENSION)) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.DECODE, "praw");
+        return span.end(subsample(RasterFiles.map(locationFile, false),
+            maxDimension));
+      }
+      if (locationFile != null && hasExtension(locationString, ".pgm", ".ppm",
+          ".pam", ".pnm")) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.DECODE, "netpbm");
+        return span.end(subsample(RasterFiles.readNetpbm(locationFile),
+            maxDimension));
+      }
+
+      if (locationURL == null && locationFile == null) {
+        return null;
+      }
+      Metrics.Span span = Metrics.start(Metrics.Stage.DECODE, "imageio");
+      if (maxDimension > 0) {
+        origImage = locationURL != null
+            ? readSubsampled(locationURL, maxDimension)
+            : readSubsampled(locationFile, maxDimension);
+      } else if (locationURL != null) {
         origImage = ImageIO.read(locationURL);
-      } else if (locationFile != null) {
-        origImage = ImageIO.read(locationFile);
       } else {
-        return null;
+        origImage = ImageIO.read(locationFile);
       }
       
       if (origImage == null) {
         return null;
       }
+      span.end(origImage.getWidth(), origImage.getHeight());
       
     } catch (IOException e) {
       return null;
     }
 
-    // If image loaded, then create a BufferedImage which is modifiable
+    return toPicture(origImage);
+  }
+
+  /**
+   * Create a Picture object from an encoded image (any format ImageIO can
+   * read) arriving on a stream. The stream is read to the end but not
+   * closed.
+   * 
+   * @param in
+   *          the stream holding the encoded image
+   * @return a Picture holding the decoded image, or null if the stream does
+   *         not hold an image ImageIO can read.
+   * @throws IOException
+   *           if the stream cannot be read.
+   */
+  public static Picture readPicture(InputStream in) throws IOException {
+    Metrics.Span span = Metrics.start(Metrics.Stage.DECODE, "imageio");
+    BufferedImage origImage = ImageIO.read(in);
+    if (origImage == null) {
+      return null;
+    }
+    span.end(origImage.getWidth(), origImage.getHeight());
+    return toPicture(origImage);
+  }
+
+  /**
+   * Return the size <tt>loadPicture(location, maxDimension)</tt> would give,
+   * reading only the header where the format allows, so that work sized by
+   * the inputs can be planned before any of them is decoded.
+   * 
+   * @param location
+   *          the location of the image, as for <tt>loadPicture</tt>
+   * @param maxDimension
+   *          the preview size, or 0 for full resolution
+   * @return the width and height of the picture, or null if it cannot be
+   *         read.
+   */
+  public static Dimension readSize(String location, int maxDimension) {
+    int width;
+    int height;
+    File file = new File(location);
+    try {
+      if (file.isFile() && !hasExtension(location, RasterFiles.RAW_EXTENSION,
+          ".pgm", ".ppm", ".pam", ".pnm")) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+          Iterator<ImageReader> readers = in == null ? null
+              : ImageIO.getImageReaders(in);
+          if (readers == null || !readers.hasNext()) {
+            return null;
+          }
+          ImageReader reader = readers.next();
+          try {
+            reader.setInput(in, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+          } finally {
+            reader.dispose();
+          }
+        }
+      } else {
+        // Raw rasters are only mapped; other inputs have to be loaded
+        Picture picture = loadPicture(location);
+        if (picture == null) {
+          return null;
+        }
+        width = picture.getWidth();
+        height = picture.getHeight();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    int factor = previewFactor(width, height, maxDimension);
+    return new Dimension((width + factor - 1) / factor,
+        (height + factor - 1) / factor);
+  }
+
+  /**
+   * Return the smallest whole factor that brings both sides of a
+   * <tt>width</tt> by <tt>height</tt> image within <tt>maxDimension</tt>.
+   * 
+   * @param width
+   *          the width of the image
+   * @param height
+   *          the height of the image
+   * @param maxDimension
+   *          the largest side wanted, or 0 for no limit
+   * @return the subsampling factor, 1 if the image already fits.
+   */
+  public static int previewFactor(int width, int height, int maxDimension) {
+    if (maxDimension <= 0) {
+      return 1;
+    }
+    int longest = Math.max(width, height);
+    return Math.max(1, (longest + maxDimension - 1) / maxDimension);
+  }
+
+  /**
+   * Keep every factor-th pixel of every factor-th row of <tt>picture</tt>, so
+   * that neither side exceeds <tt>maxDimension</tt>. Pictures that already
+   * fit are returned as they are. A grayscale picture gives a grayscale
+   * preview.
+   * 
+   * @param picture
+   *          the picture to shrink
+   * @param maxDimension
+   *          the largest width or height wanted, or 0 for no limit
+   * @return the subsampled picture.
+   */
+  public static Picture subsample(Picture picture, int maxDimension) {
+    final int factor = previewFactor(picture.getWidth(),
+        picture.getHeight(), maxDimension);
+    if (factor == 1) {
+      return picture;
+    }
+    final int width = (picture.getWidth() + factor - 1) / factor;
+    int height = (picture.getHeight() + factor - 1) / factor;
+    if (picture.isGray()) {
+      final byte[] src = picture.levels();
+      final int sourceWidth = picture.getWidth();
+      Picture preview = createGrayPicture(width, height);
+      final byte[] dst = preview.getGray();
+      Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+        for (int y = fromY; y < toY; y++) {
+          int s = y * factor * sourceWidth;
+          for (int x = 0, d = y * width; x < width; x++, s += factor, d++) {
+            dst[d] = src[s];
+          }
+        }
+      });
+      return preview;
+    }
+    Picture preview = createPicture(width, height);
+    final int[] dst = preview.getPixels();
+    Scheduler.forEachRowStrip(width, height, 1, (fromY, toY) -> {
+      int[] scratch = picture.hasPixels() ? null : new int[picture.getWidth()];
+      for (int y = fromY; y < toY; y++) {
+        int sourceY = y * factor;
+        int[] row = picture.rows(sourceY, sourceY + 1, scratch);
+        int s = picture.rowsOffset(sourceY);
+        for (int x = 0, d = y * width; x < width; x++, s += factor, d++) {
+          dst[d] = row[s];
+        }
+      }
+    });
+    return preview;
+  }
+
+  private static BufferedImage readSubsampled(URL location,
+      int maxDimension) throws IOException {
+    try (InputStream in = location.openStream()) {
+      return readSubsampled((Object) in, maxDimension);
+    }
+  }
+
+  /* Decodes the first image of a file or stream, subsampled to fit */
+  private static BufferedImage readSubsampled(Object source,
+      int maxDimension) throws IOException {
+    ImageInputStream in = ImageIO.createImageInputStream(source);
+    if (in == null) {
+      return null;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+    if (!readers.hasNext()) {
+      in.close();
+      return null;
+    }
+    ImageReader reader = readers.next();
+    try {
+      reader.setInput(in, true, true);
+      // Only the header is read to learn the size
+      int factor = previewFactor(reader.getWidth(0), reader.getHeight(0),
+          maxDimension);
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceSubsampling(factor, factor, 0, 0);
+      return reader.read(0, param);
+    } finally {
+      reader.dispose();
+      in.close();
+    }
+  }
+
+  private static Picture toPicture(BufferedImage origImage) {
+    // 8-bit gray images are kept as they are, at one byte per pixel
+    if (Picture.isPlainGray(origImage)) {
+      return new Picture(origImage);
+    }
+    Metrics.Span span = Metrics.start(Metrics.Stage.CONVERT, "drawImage");
+    // Create a BufferedImage which is modifiable
     int imageWidth = origImage.getWidth(null);
     int imageHeight = origImage.getHeight(null);
-    img = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+    BufferedImage img = new BufferedImage(imageWidth, imageHeight,
+        BufferedImage.TYPE_INT_RGB);
     Graphics g = img.createGraphics();
     g.drawImage(origImage, 0, 0, null);
-    return new Picture(img);
+    return span.end(new Picture(img));
   }
 
   /**
@@ -116,7 +373,12 @@ public class Utils {
   }
 
   /**
-   * Saves the given picture in png format in the given destination.
+   * Saves the given picture in the given destination: as a raw raster if it
+   * ends in <tt>.praw</tt>, as a PGM, PPM or PAM if it ends in <tt>.pgm</tt>,
+   * <tt>.ppm</tt> or <tt>.pam</tt>, as a PGM or PPM if it ends in
+   * <tt>.pnm</tt> (PGM for grayscale pictures), and in png format otherwise,
+   * with the default <tt>PngEncoder</tt>. Grayscale pictures are saved as
+   * 8-bit grayscale PNG files.
    * 
    * @param picture
    *          the picture to save to disk
@@ -125,10 +387,73 @@ public class Utils {
    * @return true iff the file was saved successfully
    */
   public static boolean savePicture(Picture picture, String destination) {
+    return savePicture(picture, destination, PngEncoder.DEFAULT);
+  }
+
+  /**
+   * Saves the given picture in the given destination as
+   * <tt>savePicture(Picture, String)</tt> does, using <tt>png</tt> to encode
+   * PNG files.
+   * 
+   * @param picture
+   *          the picture to save to disk
+   * @param destination
+   *          where to save the picture
+   * @param png
+   *          the compression level and filter for PNG files
+   * @return true iff the file was saved successfully
+   */
+  public static boolean savePicture(Picture picture, String destination,
+      PngEncoder png) {
     try {
-      return ImageIO.write(picture.getImage(), "png", new File(destination));
+      File file = new File(destination);
+      // PNG encoding is timed by the encoder itself
+      if (hasExtension(destination, RasterFiles.RAW_EXTENSION)) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.ENCODE, "praw");
+        RasterFiles.writeRaw(picture, file);
+        span.end(picture);
+        return true;
+      }
+      if (hasExtension(destination, ".pgm")) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.ENCODE, "pgm");
+        RasterFiles.writePgm(picture, file);
+        span.end(picture);
+        return true;
+      }
+      // .pnm, which is read as any Netpbm format, holds a PGM for
+      // grayscale pictures and a PPM otherwise
+      if (hasExtension(destination, ".pnm") && picture.isGray()) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.ENCODE, "pgm");
+        RasterFiles.writePgm(picture, file);
+        span.end(picture);
+        return true;
+      }
+      if (hasExtension(destination, ".ppm", ".pnm")) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.ENCODE, "ppm");
+        RasterFiles.writePpm(picture, file);
+        span.end(picture);
+        return true;
+      }
+      if (hasExtension(destination, ".pam")) {
+        Metrics.Span span = Metrics.start(Metrics.Stage.ENCODE, "pam");
+        RasterFiles.writePam(picture, file);
+        span.end(picture);
+        return true;
+      }
+      png.write(picture, file);
+      return true;
     } catch (IOException e) {
       return false;
     }
   }
+
+  private static boolean hasExtension(String location, String... extensions) {
+    String lower = location.toLowerCase();
+    for (String extension : extensions) {
+      if (lower.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
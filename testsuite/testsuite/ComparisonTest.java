@@ -0,0 +1,77 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Comparison;
+import picture.Picture;
+import picture.RasterFiles;
+import picture.Utils;
+
+public class ComparisonTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void identicalPicturesMatchExactly() throws IOException {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    File raw = tmpFolder.newFile("rainbow.praw");
+    RasterFiles.writeRaw(picture, raw);
+    Picture mapped = RasterFiles.map(raw, false);
+
+    Comparison comparison = Comparison.compare(picture, mapped);
+    assertTrue(comparison.matches());
+    assertEquals(0, comparison.getChangedPixels());
+    assertEquals(Double.POSITIVE_INFINITY, comparison.getPsnr(), 0);
+    assertEquals(picture, mapped);
+  }
+
+  @Test
+  public void toleranceAbsorbsSmallDifferences() {
+    Picture expected = Utils.loadPicture("images/rainbow64x64doc.png");
+    Picture actual = Utils.loadPicture("images/rainbow64x64doc.png");
+    actual.setRGB(5, 7, expected.getRGB(5, 7) ^ 0x000201);
+    actual.setRGB(40, 3, expected.getRGB(40, 3) ^ 0x100000);
+
+    Comparison loose = Comparison.compare(expected, actual, 3);
+    assertFalse(loose.matches());
+    assertEquals(2, loose.getChangedPixels());
+    assertEquals(1, loose.getDifferingPixels());
+    assertEquals(40, loose.getFirstDifferenceX());
+    assertEquals(3, loose.getFirstDifferenceY());
+    assertEquals(16, loose.getMaxDifference());
+
+    assertTrue(Comparison.compare(expected, actual, 16).matches());
+    assertFalse(expected.equals(actual));
+  }
+
+  @Test
+  public void diffImageShowsChannelDifferences() {
+    Picture expected = Utils.createPicture(4, 2);
+    Picture actual = Utils.createPicture(4, 2);
+    actual.setRGB(3, 1, 0x0a0014);
+
+    Picture diff = Comparison.compare(expected, actual).diffImage();
+    assertEquals(0x0a0014, diff.getRGB(3, 1));
+    assertEquals(0, diff.getRGB(0, 0));
+  }
+
+  @Test
+  public void differentSizesNeverMatch() {
+    Picture expected = Utils.createPicture(4, 2);
+    Picture actual = Utils.createPicture(2, 4);
+
+    assertFalse(Comparison.compare(expected, actual, 255).matches());
+    assertFalse(expected.equals(actual));
+  }
+
+}
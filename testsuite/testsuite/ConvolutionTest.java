@@ -0,0 +1,100 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static testsuite.TestSuiteHelper.runMain;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Convolution;
+import picture.Picture;
+import picture.Process;
+import picture.Utils;
+
+public class ConvolutionTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void outerProductsAreSeparable() {
+    double[] binomial = { 1, 2, 1 };
+    double[] weights = new double[9];
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 3; x++) {
+        weights[y * 3 + x] = binomial[y] * binomial[x] / 16;
+      }
+    }
+    assertTrue(Convolution.of(3, 3, weights).isSeparable());
+    assertTrue(Convolution.gaussian(1.5).isSeparable());
+    assertFalse(Convolution.SHARPEN.isSeparable());
+  }
+
+  @Test
+  public void separableAndDirectKernelsAgree() {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    // Forced to run directly by a weight too small to matter
+    double[] weights = { 1 / 16.0, 2 / 16.0, 1 / 16.0, 2 / 16.0, 4 / 16.0,
+        2 / 16.0, 1 / 16.0, 2 / 16.0, 1 / 16.0 - 1e-7 };
+    Convolution direct = Convolution.of(3, 3, weights);
+    Convolution separable = Convolution.separable(
+        new double[] { 0.25, 0.5, 0.25 }, new double[] { 0.25, 0.5, 0.25 });
+    assertFalse(direct.isSeparable());
+
+    for (Process.Border border : Process.Border.values()) {
+      assertEquals(Process.convolve(picture, direct, border),
+          Process.convolve(picture, separable, border));
+    }
+  }
+
+  @Test
+  public void identityKernelKeepsThePicture() {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    Convolution identity = Convolution.of(3, 3, 0, 0, 0, 0, 1, 0, 0, 0, 0);
+
+    assertEquals(picture,
+        Process.convolve(picture, identity, Process.Border.WRAP));
+  }
+
+  @Test
+  public void wrapBorderTilesThePicture() {
+    Picture picture = Utils.createPicture(3, 1);
+    picture.setRGB(0, 0, 0x0000ff);
+    Convolution left = Convolution.of(3, 1, 1, 0, 0);
+
+    Picture shifted = Process.convolve(picture, left, Process.Border.WRAP);
+    assertEquals(0x0000ff, shifted.getRGB(1, 0) & 0xffffff);
+    assertEquals(0, shifted.getRGB(0, 0) & 0xffffff);
+    assertEquals(1, Process.Border.WRAP.index(-2, 3));
+  }
+
+  @Test
+  public void flatPicturesStayFlatOrGoBlack() {
+    Picture white = Utils.loadPicture("images/white64x64.png");
+
+    assertEquals(white,
+        Process.gaussian(white, 4.0, Process.Border.MIRROR));
+    assertEquals(white, Process.sharpen(white, Process.Border.CLAMP));
+    assertEquals(Utils.loadPicture("images/black64x64.png"),
+        Process.edges(white, Process.Border.WRAP));
+    assertEquals(0x808080,
+        Process.emboss(white, Process.Border.CLAMP).getRGB(5, 5) & 0xffffff);
+  }
+
+  @Test
+  public void edgeFromMain() throws IOException {
+    assertEquals(Utils.loadPicture("images/black64x64.png"),
+        runMain(tmpFolder, "edge", "mirror", "images/white64x64.png"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void evenKernelsAreRejected() {
+    Convolution.of(2, 1, 0.5, 0.5);
+  }
+
+}
@@ -0,0 +1,189 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static testsuite.TestSuiteHelper.runMain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Blender;
+import picture.Color;
+import picture.Convolution;
+import picture.MosaicBuilder;
+import picture.Picture;
+import picture.PngEncoder;
+import picture.Process;
+import picture.Tone;
+import picture.Utils;
+
+public class GrayPictureTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /* The same pixels as a grayscale picture, held as RGB */
+  private static Picture expanded(Picture gray) {
+    int width = gray.getWidth();
+    int height = gray.getHeight();
+    int[] pixels = new int[width * height];
+    gray.getRegion(0, 0, width, height, pixels, 0, width);
+    Picture picture = Utils.createPicture(width, height);
+    picture.setRegion(0, 0, width, height, pixels, 0, width);
+    return picture;
+  }
+
+  private static Picture grayRainbow() {
+    return Process.grayscale(
+        Utils.loadPicture("images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void grayscaleGivesACompactPicture() {
+    Picture gray = grayRainbow();
+
+    assertTrue(gray.isGray());
+    assertEquals(Utils.loadPicture("images/rainbowGS64x64doc.png"), gray);
+    assertEquals(expanded(gray).digest(), gray.digest());
+  }
+
+  @Test
+  public void writesReadAsTheMeanOfTheChannels() {
+    Picture gray = Utils.createGrayPicture(2, 1);
+    gray.setRGB(0, 0, 0x102030);
+    gray.setPixel(1, 0, new Color(255, 0, 1));
+
+    assertEquals(0x202020, gray.getRGB(0, 0));
+    assertEquals(0x555555, gray.getRGB(1, 0));
+  }
+
+  @Test
+  public void operationsKeepGrayPicturesGray() {
+    Picture gray = grayRainbow();
+    Picture rgb = expanded(gray);
+    Tone curve = Tone.compile("gamma=2.2", "threshold=90");
+
+    Picture[][] pairs = {
+        { Process.invert(gray), Process.invert(rgb) },
+        { Process.grayscale(gray), Process.grayscale(rgb) },
+        { Process.tone(gray, curve), Process.tone(rgb, curve) },
+        { Process.rotate(gray, Process.Angle._90),
+            Process.rotate(rgb, Process.Angle._90) },
+        { Process.flip(gray, Process.Direction.V),
+            Process.flip(rgb, Process.Direction.V) },
+        { Process.blur(gray), Process.blur(rgb) },
+        { Process.blur(gray, 3, Process.Border.MIRROR),
+            Process.blur(rgb, 3, Process.Border.MIRROR) },
+        { Process.gaussian(gray, 1.5, Process.Border.CLAMP),
+            Process.gaussian(rgb, 1.5, Process.Border.CLAMP) },
+        { Process.emboss(gray, Process.Border.WRAP),
+            Process.emboss(rgb, Process.Border.WRAP) },
+        { Process.edges(gray, Process.Border.CLAMP),
+            Process.edges(rgb, Process.Border.CLAMP) } };
+    for (Picture[] pair : pairs) {
+      assertTrue(pair[0].isGray());
+      assertEquals(pair[1], pair[0]);
+    }
+    assertEquals(Process.convolve(rgb, Convolution.SHARPEN,
+        Process.Border.CLAMP), Process.sharpen(gray, Process.Border.CLAMP));
+  }
+
+  @Test
+  public void blendsAndMosaicsOfGrayPicturesAreGray() {
+    Picture[] gray = { grayRainbow(), Process.grayscale(
+        Utils.loadPicture("images/sunset64x32.png")) };
+    Picture[] rgb = { expanded(gray[0]), expanded(gray[1]) };
+
+    Picture[][] pairs = {
+        { Process.blend(gray), Process.blend(rgb) },
+        { Process.mosaic(5, 3, gray), Process.mosaic(5, 3, rgb) } };
+    for (Picture[] pair : pairs) {
+      assertTrue(pair[0].isGray());
+      assertEquals(pair[1], pair[0]);
+    }
+
+    Blender blender = new Blender();
+    blender.add(gray[0], 2);
+    blender.add(gray[1]);
+    Picture blended = blender.result();
+    assertTrue(blended.isGray());
+    assertEquals(Process.blend(new Picture[] { rgb[0], rgb[0], rgb[1] }),
+        blended);
+  }
+
+  @Test
+  public void aColourInputTurnsABlendOrMosaicRgb() {
+    Picture gray = grayRainbow();
+    Picture colour = Utils.loadPicture("images/sunset64x32.png");
+    Picture[] rgb = { expanded(gray), colour };
+
+    Blender blender = new Blender();
+    blender.add(gray);
+    blender.add(colour);
+    Picture blended = blender.result();
+    assertFalse(blended.isGray());
+    assertEquals(Process.blend(rgb), blended);
+
+    MosaicBuilder builder = new MosaicBuilder(5, 3, 2, 64, 32);
+    builder.add(0, gray);
+    builder.add(1, colour);
+    Picture mosaic = builder.result();
+    assertFalse(mosaic.isGray());
+    assertEquals(Process.mosaic(5, 3, rgb), mosaic);
+  }
+
+  @Test
+  public void tintingAGrayPictureGivesColour() {
+    Picture gray = grayRainbow();
+    Tone tint = Tone.parse("red:invert");
+
+    Picture tinted = Process.tone(gray, tint);
+    assertFalse(tinted.isGray());
+    assertEquals(Process.tone(expanded(gray), tint), tinted);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void grayPicturesCannotBeTintedInPlace() {
+    Process.toneInPlace(grayRainbow(), Tone.parse("blue:gamma=2"));
+  }
+
+  @Test
+  public void savedAsEightBitGrayscale() throws IOException {
+    Picture gray = grayRainbow();
+    File png = tmpFolder.newFile("gray.png");
+    new PngEncoder(9, PngEncoder.Filter.PAETH).write(gray, png);
+
+    // Bit depth 8, colour type 0 (grayscale)
+    try (InputStream in = Files.newInputStream(png.toPath())) {
+      byte[] header = new byte[26];
+      assertEquals(header.length, in.read(header));
+      assertEquals(8, header[24]);
+      assertEquals(0, header[25]);
+    }
+    Picture loaded = Utils.loadPicture(png.getPath());
+    assertTrue(loaded.isGray());
+    assertEquals(gray, loaded);
+
+    File pgm = tmpFolder.newFile("gray.pgm");
+    assertTrue(Utils.savePicture(gray, pgm.getPath()));
+    assertEquals(13 + 64 * 64, pgm.length());
+    assertEquals(gray, Utils.loadPicture(pgm.getPath()));
+  }
+
+  @Test
+  public void grayscaleFromMainIsGray() throws IOException {
+    Picture result = runMain(tmpFolder, "grayscale",
+        "images/rainbow64x64doc.png");
+
+    assertTrue(result.isGray());
+    assertEquals(Utils.loadPicture("images/rainbowGS64x64doc.png"), result);
+  }
+
+}
@@ -0,0 +1,63 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import picture.InputLoader;
+import picture.MosaicBuilder;
+import picture.Picture;
+import picture.Process;
+import picture.Utils;
+
+public class InputLoaderTest {
+
+  private static final List<String> INPUTS = Arrays.asList(
+      "images/rainbow64x64doc.png", "images/sunset64x32.png",
+      "images/green64x64doc.png", "images/blue64x32doc.png");
+
+  @Test
+  public void everyInputArrivesOnceWithItsIndex() throws IOException {
+    boolean[] seen = new boolean[INPUTS.size()];
+    try (InputLoader inputs = new InputLoader(INPUTS, 3, 1, 0)) {
+      while (inputs.hasNext()) {
+        InputLoader.Input input = inputs.take();
+        assertFalse(seen[input.getIndex()]);
+        seen[input.getIndex()] = true;
+        assertEquals(Utils.loadPicture(INPUTS.get(input.getIndex())),
+            input.getPicture());
+      }
+    }
+    assertEquals("[true, true, true, true]", Arrays.toString(seen));
+  }
+
+  @Test(expected = IOException.class)
+  public void failedInputIsReported() throws IOException {
+    try (InputLoader inputs = new InputLoader(
+        Arrays.asList("images/missing.png"), 2, 2, 0)) {
+      inputs.take();
+    }
+  }
+
+  @Test
+  public void mosaicBuiltInAnyOrderMatchesProcess() {
+    Picture[] pictures = new Picture[INPUTS.size()];
+    for (int i = 0; i < pictures.length; i++) {
+      pictures[i] = Utils.loadPicture(INPUTS.get(i));
+    }
+    MosaicBuilder builder = new MosaicBuilder(6, 4, pictures.length,
+        Utils.readSize(INPUTS.get(1), 0).width,
+        Utils.readSize(INPUTS.get(1), 0).height);
+    for (int i = pictures.length - 1; i >= 0; i--) {
+      builder.add(i, pictures[i]);
+    }
+
+    assertEquals(Process.mosaic(6, 4, pictures), builder.result());
+  }
+
+}
@@ -0,0 +1,84 @@
+package testsuite;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import picture.Kernels;
+
+/*
+ * Checks that whichever kernels this JVM picked (run with
+ * --add-modules jdk.incubator.vector to exercise the Vector API ones) match
+ * the scalar reference bit for bit, including the ragged tail of each span.
+ */
+public class KernelsTest {
+
+  private static final int[] LENGTHS = { 0, 1, 7, 8, 15, 16, 17, 100, 1023 };
+
+  private final Kernels kernels = Kernels.get();
+  private final Kernels reference = Kernels.scalar();
+  private final Random random = new Random(42);
+
+  private int[] randomPixels(int length) {
+    int[] pixels = new int[length];
+    for (int i = 0; i < length; i++) {
+      pixels[i] = random.nextInt() & 0xffffff;
+    }
+    return pixels;
+  }
+
+  @Test
+  public void invertMatchesScalar() {
+    for (int length : LENGTHS) {
+      int[] src = randomPixels(length + 3);
+      int[] expected = new int[length + 2];
+      int[] actual = new int[length + 2];
+      reference.invert(src, 3, expected, 2, length);
+      kernels.invert(src, 3, actual, 2, length);
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void grayscaleMatchesScalarForEveryChannelSum() {
+    int[] src = new int[256 * 256];
+    int[] expected = new int[src.length];
+    int[] actual = new int[src.length];
+    for (int red = 0; red < 256; red++) {
+      for (int i = 0; i < src.length; i++) {
+        src[i] = (red << 16) | i;
+      }
+      reference.grayscale(src, 0, expected, 0, src.length);
+      kernels.grayscale(src, 0, actual, 0, src.length);
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void accumulateAndAverageMatchScalar() {
+    for (int length : LENGTHS) {
+      int[] src = randomPixels(length + 2);
+      int[][] expected = new int[3][length + 1];
+      int[][] actual = new int[3][length + 1];
+      for (int weight : new int[] { 3, 1, -1, 7 }) {
+        reference.accumulate(src, 2, weight, expected[0], expected[1],
+            expected[2], 1, length);
+        kernels.accumulate(src, 2, weight, actual[0], actual[1], actual[2],
+            1, length);
+      }
+      for (int channel = 0; channel < 3; channel++) {
+        assertArrayEquals(expected[channel], actual[channel]);
+      }
+
+      int[] expectedPixels = new int[length];
+      int[] actualPixels = new int[length];
+      reference.average(expected[0], expected[1], expected[2], 1, 10,
+          expectedPixels, 0, length);
+      kernels.average(actual[0], actual[1], actual[2], 1, 10, actualPixels, 0,
+          length);
+      assertArrayEquals(expectedPixels, actualPixels);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Metrics;
+import picture.Picture;
+import picture.Utils;
+
+public class MetricsTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  private final Metrics.Summary summary = new Metrics.Summary();
+
+  @After
+  public void removeSink() {
+    Metrics.removeSink(summary);
+  }
+
+  @Test
+  public void summaryTotalsEachStage() throws IOException {
+    Metrics.addSink(summary);
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    assertTrue(Utils.savePicture(picture,
+        tmpFolder.newFile("out.png").getPath()));
+
+    assertEquals(1, summary.getCount(Metrics.Stage.DECODE));
+    assertEquals(1, summary.getCount(Metrics.Stage.CONVERT));
+    assertEquals(1, summary.getCount(Metrics.Stage.ENCODE));
+    assertEquals(0, summary.getCount(Metrics.Stage.PROCESS));
+    assertEquals(64 * 64, summary.getPixels(Metrics.Stage.ENCODE));
+    assertTrue(summary.getNanos(Metrics.Stage.DECODE) > 0);
+  }
+
+  @Test
+  public void sinksSeeEverySampleUntilRemoved() {
+    final List<Metrics.Sample> samples = new ArrayList<Metrics.Sample>();
+    Metrics.Sink sink = sample -> {
+      synchronized (samples) {
+        samples.add(sample);
+      }
+    };
+    Metrics.addSink(sink);
+    Metrics.start(Metrics.Stage.PROCESS, "test").end(10, 20);
+    Metrics.removeSink(sink);
+    Metrics.start(Metrics.Stage.PROCESS, "test").end(10, 20);
+
+    assertEquals(1, samples.size());
+    Metrics.Sample sample = samples.get(0);
+    assertEquals(Metrics.Stage.PROCESS, sample.getStage());
+    assertEquals("test", sample.getOperation());
+    assertEquals(200, sample.getPixels());
+    assertTrue(sample.getAllocatedBytes() >= -1);
+  }
+
+  @Test
+  public void scrapeUsesPrometheusTextFormat() {
+    Metrics.addSink(summary);
+    Metrics.start(Metrics.Stage.PROCESS, "test").end(10, 20);
+    Metrics.start(Metrics.Stage.PROCESS, "test").end(10, 20);
+
+    String text = summary.scrape();
+    assertTrue(text.contains("# TYPE picture_stage_runs_total counter\n"));
+    assertTrue(text.contains(
+        "picture_stage_runs_total{stage=\"process\",operation=\"test\"} 2\n"));
+    assertTrue(text.contains(
+        "picture_stage_pixels_total{stage=\"process\",operation=\"test\"} 400\n"));
+  }
+
+  @Test
+  public void spansAreRecordedAsFlightRecorderEvents() throws IOException {
+    File dump = tmpFolder.newFile("stages.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("picture.Stage");
+      recording.start();
+      Metrics.start(Metrics.Stage.PROCESS, "test").end(10, 20);
+      recording.stop();
+      recording.dump(dump.toPath());
+    }
+
+    int found = 0;
+    for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+      if ("test".equals(event.getString("operation"))) {
+        assertEquals("PROCESS", event.getString("stage"));
+        assertEquals(200, event.getLong("pixels"));
+        found++;
+      }
+    }
+    assertEquals(1, found);
+  }
+
+}
@@ -0,0 +1,77 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import picture.Orientation;
+import picture.Picture;
+import picture.PicturePool;
+import picture.Process;
+import picture.Utils;
+
+public class PicturePoolTest {
+
+  @Test
+  public void inPlaceOperationsMatchCopyingOnes() {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+
+    assertEquals(Process.invert(picture),
+        Process.invertInPlace(Utils.loadPicture("images/rainbow64x64doc.png")));
+    assertEquals(Process.grayscale(picture),
+        Process.grayscaleInPlace(
+            Utils.loadPicture("images/rainbow64x64doc.png")));
+    assertEquals(Process.rotate(picture, Process.Angle._180),
+        Process.rotateInPlace(Utils.loadPicture("images/rainbow64x64doc.png"),
+            Process.Angle._180));
+  }
+
+  @Test
+  public void inPlaceOrientationsHandleOddSizes() {
+    Picture picture = Utils.createPicture(5, 3);
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 5; x++) {
+        picture.setRGB(x, y, (x << 8) | y);
+      }
+    }
+    for (Orientation orientation : new Orientation[] { Orientation.FLIP_H,
+        Orientation.FLIP_V, Orientation.ROTATE_180 }) {
+      Picture copy = Process.orient(picture, Orientation.IDENTITY);
+      assertEquals(Process.orient(picture, orientation),
+          Process.orientInPlace(copy, orientation));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void quarterTurnCannotBeDoneInPlace() {
+    Process.rotateInPlace(Utils.createPicture(4, 2), Process.Angle._90);
+  }
+
+  @Test
+  public void releasedPicturesAreReused() {
+    PicturePool pool = new PicturePool(1 << 20);
+    Picture first = pool.acquire(64, 32);
+    pool.release(first);
+    pool.release(first);
+
+    assertEquals(4 * 64 * 32, pool.getBytes());
+    assertTrue(first == pool.acquire(64, 32));
+    assertTrue(first != pool.acquire(64, 32));
+    assertEquals(1, pool.getReused());
+    assertEquals(2, pool.getAllocated());
+  }
+
+  @Test
+  public void poolStaysWithinBudget() {
+    PicturePool pool = new PicturePool(4 * 64 * 64);
+    pool.release(Utils.createPicture(64, 32));
+    pool.release(Utils.createPicture(64, 32));
+    pool.release(Utils.createPicture(32, 64));
+
+    assertEquals(4 * 64 * 64, pool.getBytes());
+    pool.acquire(32, 64);
+    assertEquals(1, pool.getReused());
+  }
+
+}
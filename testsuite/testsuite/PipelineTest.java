@@ -0,0 +1,127 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Main;
+import picture.Picture;
+import picture.PngEncoder;
+import picture.Pipeline;
+import picture.Process;
+import picture.Utils;
+
+public class PipelineTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void chainMatchesSeparateSteps() throws IOException {
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+    Picture expected = Process.rotate(
+        Process.blur(Process.grayscale(rainbow)), Process.Angle._90);
+
+    File output = new File(tmpFolder.getRoot(), "out.png");
+    Pipeline.parse("grayscale | blur | rotate 90", output.getPath())
+        .run(Utils.loadPicture("images/rainbow64x64doc.png"),
+            PngEncoder.DEFAULT);
+    assertEquals(expected, Utils.loadPicture(output.getPath()));
+  }
+
+  @Test
+  public void fusedRunsKeepGrayscale() throws IOException {
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+    File fromRgb = new File(tmpFolder.getRoot(), "a.png");
+    File fromGray = new File(tmpFolder.getRoot(), "b.png");
+    File coloured = new File(tmpFolder.getRoot(), "c.png");
+
+    // The input is handed over to the pipeline, so it gets its own copy
+    Pipeline.parse("grayscale | blur 2 > " + fromRgb.getPath(), null)
+        .run(Utils.loadPicture("images/rainbow64x64doc.png"),
+            PngEncoder.DEFAULT);
+    Pipeline.parse("invert | blur 2 > " + fromGray.getPath()
+        + "; tone red:invert | blur 2 > " + coloured.getPath(), null)
+        .run(Process.grayscale(rainbow), PngEncoder.DEFAULT);
+
+    Picture blurred = Utils.loadPicture(fromRgb.getPath());
+    assertTrue(blurred.isGray());
+    assertEquals(Process.blur(Process.grayscale(rainbow), 2), blurred);
+    Picture inverted = Utils.loadPicture(fromGray.getPath());
+    assertTrue(inverted.isGray());
+    assertEquals(Process.blur(Process.invert(Process.grayscale(rainbow)), 2),
+        inverted);
+    assertFalse(Utils.loadPicture(coloured.getPath()).isGray());
+  }
+
+  @Test
+  public void commonPrefixesAreShared() {
+    Pipeline pipeline = Pipeline.parse("invert | blur > a.png; "
+        + "invert | flip H > b.png\ninvert > c.png", null);
+
+    assertEquals(3, pipeline.getStageCount());
+    assertEquals(3, pipeline.getOutputs().size());
+  }
+
+  @Test
+  public void fusedStripsMatchWholePictures() throws IOException {
+    // Tall enough to be fused in several strips
+    Picture picture = Utils.createPicture(8, 20000);
+    for (int y = 0; y < picture.getHeight(); y++) {
+      for (int x = 0; x < picture.getWidth(); x++) {
+        picture.setRGB(x, y, (y * 7919 + x * 104729) & 0xffffff);
+      }
+    }
+    Picture expected = Process.edges(
+        Process.blur(Process.invert(picture), 2, Process.Border.MIRROR),
+        Process.Border.CLAMP);
+
+    File output = new File(tmpFolder.getRoot(), "out.praw");
+    Pipeline.parse("invert | blur 2 mirror | edge > " + output.getPath(),
+        null).run(picture, PngEncoder.DEFAULT);
+    assertEquals(expected, Utils.loadPicture(output.getPath()));
+  }
+
+  @Test
+  public void branchesFromMain() throws IOException {
+    File inverted = new File(tmpFolder.getRoot(), "inverted.png");
+    File gray = new File(tmpFolder.getRoot(), "gray.png");
+    Main.main(new String[] { "--pipeline=invert > " + inverted.getPath()
+        + "; grayscale > " + gray.getPath(), "images/rainbow64x64doc.png" });
+
+    assertEquals(Utils.loadPicture("images/rainbowI64x64doc.png"),
+        Utils.loadPicture(inverted.getPath()));
+    assertEquals(Utils.loadPicture("images/rainbowGS64x64doc.png"),
+        Utils.loadPicture(gray.getPath()));
+  }
+
+  @Test
+  public void badStagesFailBeforeAnythingIsSaved() {
+    File first = new File(tmpFolder.getRoot(), "first.png");
+    String[] badStages = { "rotate 45", "rotate", "flip D", "orient 90 x",
+        "blur 2000", "blur 3 sideways", "gaussian wide", "blend", "mosaic 4" };
+    for (String stage : badStages) {
+      try {
+        Main.main(new String[] { "--pipeline=invert > " + first.getPath()
+            + "; " + stage + " > second.png", "images/rainbow64x64doc.png" });
+        fail(stage + " was accepted");
+      } catch (IllegalArgumentException e) {
+        assertFalse(stage + " let an output be saved", first.exists());
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void outputsMustDiffer() {
+    Pipeline.parse("invert > a.png; grayscale > a.png", null);
+  }
+
+}
@@ -0,0 +1,96 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Main;
+import picture.Picture;
+import picture.PngEncoder;
+import picture.Utils;
+
+public class PngEncoderTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /* Large enough to be deflated as several strips */
+  private static Picture stripedPicture() {
+    Picture picture = Utils.createPicture(500, 400);
+    int[] row = new int[500];
+    for (int y = 0; y < 400; y++) {
+      for (int x = 0; x < 500; x++) {
+        row[x] = ((x * y) & 0xff) << 16 | ((x + y) & 0xff) << 8
+            | ((x ^ (y * 7)) & 0xff);
+      }
+      picture.setRow(y, row, 0);
+    }
+    return picture;
+  }
+
+  @Test
+  public void everyFilterReadsBackIdentically() throws IOException {
+    Picture picture = stripedPicture();
+    for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+      for (int level : new int[] { 0, 1, 9 }) {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        new PngEncoder(level, filter).write(picture, png);
+        assertEquals(picture, Utils.readPicture(
+            new ByteArrayInputStream(png.toByteArray())));
+      }
+    }
+  }
+
+  @Test
+  public void savedGoldenImageLoadsIdentically() throws IOException {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    File fastest = tmpFolder.newFile("fastest.png");
+
+    Utils.savePicture(picture, fastest.getPath(), PngEncoder.FASTEST);
+    Picture loaded = Utils.loadPicture(fastest.getPath());
+    for (int y = 0; y < picture.getHeight(); y++) {
+      for (int x = 0; x < picture.getWidth(); x++) {
+        assertEquals(picture.getRGB(x, y) & 0xffffff, loaded.getRGB(x, y));
+      }
+    }
+  }
+
+  @Test
+  public void streamedOutputsUseTheChosenEncoder() throws IOException {
+    File stored = tmpFolder.newFile("stored.png");
+    File smallest = tmpFolder.newFile("smallest.png");
+    Main.main(new String[] { "--png=0,none", "--stream=7", "invert",
+        "images/rainbow64x64doc.png", stored.getPath() });
+    Main.main(new String[] { "--png=9,paeth", "--stream=7", "invert",
+        "images/rainbow64x64doc.png", smallest.getPath() });
+
+    // Level 0 stores the raw rows, a filter byte and 3 bytes per pixel
+    assertTrue(stored.length() > 64 * (1 + 64 * 3));
+    assertTrue(smallest.length() < stored.length() / 2);
+    Picture expected = Utils.loadPicture("images/rainbow64x64doc.png");
+    for (int y = 0; y < 64; y++) {
+      for (int x = 0; x < 64; x++) {
+        expected.setRGB(x, y, expected.getRGB(x, y) ^ 0xffffff);
+      }
+    }
+    assertEquals(expected, Utils.loadPicture(stored.getPath()));
+    assertEquals(expected, Utils.loadPicture(smallest.getPath()));
+  }
+
+  @Test
+  public void encoderSpecificationsParse() {
+    assertEquals(PngEncoder.FASTEST, PngEncoder.parse("fastest"));
+    PngEncoder encoder = PngEncoder.parse("9,paeth");
+    assertEquals(9, encoder.getLevel());
+    assertEquals(PngEncoder.Filter.PAETH, encoder.getFilter());
+  }
+
+}
@@ -0,0 +1,182 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Picture;
+import picture.Process;
+import picture.RasterFiles;
+import picture.Utils;
+
+public class RasterFilesTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  /* A Netpbm file made of an ASCII header followed by the given samples */
+  private File netpbm(String name, String header, int... samples)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(header.getBytes(StandardCharsets.US_ASCII));
+    for (int sample : samples) {
+      bytes.write(sample);
+    }
+    File file = tmpFolder.newFile(name);
+    Files.write(file.toPath(), bytes.toByteArray());
+    return file;
+  }
+
+  /* A raw raster file with the given header fields and pixel byte count */
+  private File praw(String name, int magic, int width, int height,
+      int pixelBytes) throws IOException {
+    byte[] bytes = new byte[16 + pixelBytes];
+    int[] header = { magic, 1, width, height };
+    for (int i = 0; i < 16; i++) {
+      bytes[i] = (byte) (header[i / 4] >> (8 * (i % 4)));
+    }
+    File file = tmpFolder.newFile(name);
+    Files.write(file.toPath(), bytes);
+    return file;
+  }
+
+  @Test
+  public void rawFilesReadBack() throws IOException {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    File raw = tmpFolder.newFile("sunset.praw");
+
+    assertTrue(Utils.savePicture(picture, raw.getPath()));
+    assertEquals(16 + 4 * 64 * 32, raw.length());
+    assertEquals(picture, RasterFiles.map(raw, false));
+    assertEquals(picture, Utils.loadPicture(raw.getPath()));
+  }
+
+  @Test
+  public void writableMappingsWriteThrough() throws IOException {
+    File raw = tmpFolder.newFile("drawn.praw");
+    Picture created = RasterFiles.create(raw, 3, 2);
+    assertEquals(0, created.getRGB(2, 1));
+    created.setRGB(2, 1, 0x123456);
+
+    Picture mapped = RasterFiles.map(raw, true);
+    assertEquals(0x123456, mapped.getRGB(2, 1) & 0xffffff);
+    mapped.setRGB(0, 0, 0xabcdef);
+    assertEquals(0xabcdef, RasterFiles.map(raw, false).getRGB(0, 0)
+        & 0xffffff);
+  }
+
+  @Test(expected = IOException.class)
+  public void shortRawFilesAreRejected() throws IOException {
+    File raw = tmpFolder.newFile("short.praw");
+    Files.write(raw.toPath(), new byte[] { 'P', 'R', 'A', 'W', 1 });
+    RasterFiles.map(raw, false);
+  }
+
+  @Test(expected = IOException.class)
+  public void rawFilesOfTheWrongSizeAreRejected() throws IOException {
+    RasterFiles.map(praw("truncated.praw", 0x57415250, 4, 4, 4 * 15),
+        false);
+  }
+
+  @Test(expected = IOException.class)
+  public void rawFilesWithoutTheMagicNumberAreRejected() throws IOException {
+    RasterFiles.map(praw("foreign.praw", 0x12345678, 1, 1, 4), false);
+  }
+
+  @Test
+  public void netpbmFilesReadBack() throws IOException {
+    Picture rgb = Utils.loadPicture("images/sunset64x32.png");
+    Picture gray = Process.grayscale(rgb);
+    File ppm = tmpFolder.newFile("sunset.ppm");
+    File pam = tmpFolder.newFile("sunset.pam");
+    File pgm = tmpFolder.newFile("sunset.pgm");
+
+    RasterFiles.writePpm(rgb, ppm);
+    RasterFiles.writePam(rgb, pam);
+    RasterFiles.writePgm(gray, pgm);
+    assertEquals(rgb, RasterFiles.readNetpbm(ppm));
+    assertEquals(rgb, RasterFiles.readNetpbm(pam));
+    Picture loaded = RasterFiles.readNetpbm(pgm);
+    assertTrue(loaded.isGray());
+    assertEquals(gray, loaded);
+
+    // A colour picture saved as a PGM keeps the mean of its channels
+    File mean = tmpFolder.newFile("mean.pgm");
+    RasterFiles.writePgm(rgb, mean);
+    assertEquals(gray, RasterFiles.readNetpbm(mean));
+  }
+
+  @Test
+  public void pnmFilesReadBack() throws IOException {
+    Picture gray = Process.grayscale(
+        Utils.loadPicture("images/rainbow64x64doc.png"));
+    Picture rgb = Utils.loadPicture("images/rainbow64x64doc.png");
+
+    // A PGM for the grayscale picture, a PPM for the colour one
+    File grayPnm = tmpFolder.newFile("gray.pnm");
+    File rgbPnm = tmpFolder.newFile("rgb.pnm");
+    assertTrue(Utils.savePicture(gray, grayPnm.getPath()));
+    assertTrue(Utils.savePicture(rgb, rgbPnm.getPath()));
+    assertEquals(13 + 64 * 64, grayPnm.length());
+    assertEquals(13 + 3 * 64 * 64, rgbPnm.length());
+
+    Picture loaded = Utils.loadPicture(grayPnm.getPath());
+    assertTrue(loaded.isGray());
+    assertEquals(gray, loaded);
+    assertEquals(rgb, Utils.loadPicture(rgbPnm.getPath()));
+  }
+
+  @Test
+  public void headerCommentsAreSkipped() throws IOException {
+    Picture picture = RasterFiles.readNetpbm(netpbm("comments.ppm",
+        "P6\n# made by hand\n2 # width\n1\n255\n", 1, 2, 3, 4, 5, 6));
+
+    assertEquals(2, picture.getWidth());
+    assertEquals(1, picture.getHeight());
+    assertEquals(0x010203, picture.getRGB(0, 0) & 0xffffff);
+    assertEquals(0x040506, picture.getRGB(1, 0) & 0xffffff);
+  }
+
+  @Test
+  public void pamAlphaIsDropped() throws IOException {
+    Picture grayAlpha = RasterFiles.readNetpbm(netpbm("ga.pam",
+        "P7\nWIDTH 2\nHEIGHT 1\nDEPTH 2\nMAXVAL 255\n"
+            + "TUPLTYPE GRAYSCALE_ALPHA\nENDHDR\n", 10, 0, 200, 255));
+    assertTrue(grayAlpha.isGray());
+    assertEquals(0x0a0a0a, grayAlpha.getRGB(0, 0) & 0xffffff);
+    assertEquals(0xc8c8c8, grayAlpha.getRGB(1, 0) & 0xffffff);
+
+    Picture rgbAlpha = RasterFiles.readNetpbm(netpbm("rgba.pam",
+        "P7\nWIDTH 1\nHEIGHT 2\nDEPTH 4\nMAXVAL 255\n"
+            + "TUPLTYPE RGB_ALPHA\nENDHDR\n", 1, 2, 3, 0, 4, 5, 6, 255));
+    assertFalse(rgbAlpha.isGray());
+    assertEquals(0x010203, rgbAlpha.getRGB(0, 0) & 0xffffff);
+    assertEquals(0x040506, rgbAlpha.getRGB(0, 1) & 0xffffff);
+  }
+
+  @Test(expected = IOException.class)
+  public void sixteenBitSamplesAreRejected() throws IOException {
+    RasterFiles.readNetpbm(netpbm("deep.pgm", "P5\n1 1\n65535\n", 0, 0));
+  }
+
+  @Test(expected = IOException.class)
+  public void plainNetpbmIsRejected() throws IOException {
+    RasterFiles.readNetpbm(netpbm("plain.ppm", "P3\n1 1\n255\n1 2 3\n"));
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedSamplesAreRejected() throws IOException {
+    RasterFiles.readNetpbm(netpbm("short.ppm", "P6\n2 1\n255\n", 1, 2, 3));
+  }
+
+}
@@ -0,0 +1,78 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Orientation;
+import picture.Picture;
+import picture.Process;
+import picture.RasterFiles;
+import picture.ResultCache;
+import picture.Utils;
+
+public class ResultCacheTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @After
+  public void disableCache() {
+    Process.setCache(null);
+  }
+
+  @Test
+  public void digestFollowsContentNotStorage() throws IOException {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    File raw = tmpFolder.newFile("rainbow.praw");
+    RasterFiles.writeRaw(picture, raw);
+
+    assertEquals(picture.digest(), RasterFiles.map(raw, false).digest());
+    assertEquals(picture.hashCode(), RasterFiles.map(raw, false).hashCode());
+  }
+
+  @Test
+  public void digestChangesWhenPictureIsModified() {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    String before = picture.digest().toString();
+    picture.setRGB(10, 20, picture.getRGB(10, 20) ^ 1);
+    assertFalse(before.equals(picture.digest().toString()));
+  }
+
+  @Test
+  public void repeatedOperationIsServedFromCache() throws IOException {
+    ResultCache cache = new ResultCache(1 << 20, null);
+    Process.setCache(cache);
+    Picture picture = Utils.loadPicture("images/bwpatterns64x64.png");
+
+    Picture first = Process.blur(picture);
+    first.setRGB(0, 0, 0x123456);
+    Picture second = Process.blur(picture);
+
+    assertEquals(1, cache.getHits());
+    assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"), second);
+  }
+
+  @Test
+  public void equivalentOrientationsShareResults() throws IOException {
+    ResultCache cache = new ResultCache(0, tmpFolder.newFolder("cache"));
+    Process.setCache(cache);
+    Picture picture = Utils.loadPicture("images/blue64x32doc.png");
+
+    Process.rotate(picture, Process.Angle._90);
+    Picture rotated = Process.orient(picture,
+        Orientation.FLIP_H, Orientation.ROTATE_270,
+        Orientation.FLIP_H);
+
+    assertEquals(1, cache.getHits());
+    assertEquals(Utils.loadPicture("images/blueR9064x32doc.png"), rotated);
+  }
+
+}
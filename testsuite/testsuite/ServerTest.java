@@ -0,0 +1,168 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import picture.Metrics;
+import picture.Picture;
+import picture.Process;
+import picture.Server;
+import picture.Utils;
+
+public class ServerTest {
+
+  private static Server server;
+
+  @BeforeClass
+  public static void startServer() throws IOException {
+    server = new Server(0, 2);
+    server.start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.stop(0);
+  }
+
+  private HttpURLConnection post(String path, String image)
+      throws IOException {
+    return post(server, path, Files.readAllBytes(Paths.get(image)));
+  }
+
+  private static HttpURLConnection post(Server target, String path,
+      byte[] body) throws IOException {
+    HttpURLConnection connection = open(target, path, body.length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    return connection;
+  }
+
+  /* A POST whose body of the given length is still to be written */
+  private static HttpURLConnection open(Server target, String path,
+      int length) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://localhost:" + target.getPort() + path).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(length);
+    return connection;
+  }
+
+  private Picture response(HttpURLConnection connection) throws IOException {
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("image/png", connection.getContentType());
+    try (InputStream in = connection.getInputStream()) {
+      return Utils.readPicture(in);
+    }
+  }
+
+  @Test
+  public void rotate90Green() throws IOException {
+    assertEquals(Utils.loadPicture("images/green64x64R90doc.png"),
+        response(post("/rotate/90", "images/green64x64doc.png")));
+  }
+
+  @Test
+  public void blurBWPatterns() throws IOException {
+    assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"),
+        response(post("/blur", "images/bwpatterns64x64.png")));
+  }
+
+  @Test
+  public void metricsCountServedStages() throws IOException {
+    response(post("/invert", "images/green64x64doc.png"));
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://localhost:" + server.getPort() + "/metrics").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    String text;
+    try (InputStream in = connection.getInputStream()) {
+      text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    assertTrue(text.contains(
+        "picture_stage_pixels_total{stage=\"process\",operation=\"invert\"}"));
+    assertTrue(server.getMetrics().getCount(Metrics.Stage.ENCODE) > 0);
+  }
+
+  @Test
+  public void badArgumentIsRejected() throws IOException {
+    assertEquals(400,
+        post("/rotate/45", "images/green64x64doc.png").getResponseCode());
+  }
+
+  @Test
+  public void requestsOverTheLimitAreTurnedAway() throws Exception {
+    Server single = new Server(0, 1);
+    single.start();
+    try {
+      byte[] image = Files.readAllBytes(Paths.get("images/green64x64doc.png"));
+      // A request whose body is half sent holds the only permit while the
+      // server waits for the rest. It can lose the race for the permit to
+      // the probe, in which case both are tried again
+      for (int attempt = 0; attempt < 20; attempt++) {
+        HttpURLConnection held = open(single, "/invert", image.length);
+        OutputStream body = held.getOutputStream();
+        body.write(image, 0, image.length / 2);
+        body.flush();
+        Thread.sleep(100);
+
+        HttpURLConnection probe = post(single, "/invert", image);
+        int status = probe.getResponseCode();
+        body.write(image, image.length / 2, image.length - image.length / 2);
+        body.close();
+        if (status == 503) {
+          assertEquals("1", probe.getHeaderField("Retry-After"));
+          assertEquals(Process.invert(
+              Utils.loadPicture("images/green64x64doc.png")), response(held));
+          return;
+        }
+        assertEquals(200, status);
+        held.getResponseCode();
+      }
+      fail("the held request never kept the permit");
+    } finally {
+      single.stop(0);
+    }
+  }
+
+  @Test
+  public void getOnATransformationIsRejected() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://localhost:" + server.getPort() + "/invert").openConnection();
+    assertEquals(405, connection.getResponseCode());
+    assertEquals("POST", connection.getHeaderField("Allow"));
+  }
+
+  @Test
+  public void oversizedBodyIsRejected() throws IOException {
+    assertEquals(413, post(server, "/invert",
+        new byte[Server.MAX_BODY_BYTES + 1]).getResponseCode());
+  }
+
+  @Test
+  public void nonImageBodyIsRejected() throws IOException {
+    assertEquals(415, post(server, "/invert",
+        "not an image".getBytes(StandardCharsets.UTF_8)).getResponseCode());
+  }
+
+  @Test
+  public void multiplePictureTransformationIsRejected() throws IOException {
+    assertEquals(400,
+        post("/blend", "images/green64x64doc.png").getResponseCode());
+  }
+
+}
@@ -1,14 +1,28 @@
 package testsuite;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static testsuite.TestSuiteHelper.runMain;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import picture.Batch;
+import picture.Main;
+import picture.Picture;
+import picture.Process;
+import picture.Scheduler;
 import picture.Utils;
 
 public class TestSuite {
@@ -40,12 +54,179 @@ public class TestSuite {
         runMain(tmpFolder, "flip", "V", "images/green64x64doc.png"));
   }
 
+  @Test
+  public void rotate180Blue() throws IOException {
+    assertEquals(Utils.loadPicture("images/blueR18064x32doc.png"),
+        runMain(tmpFolder, "rotate", "180", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void flipHBlue() throws IOException {
+    assertEquals(Utils.loadPicture("images/blueFH64x32doc.png"),
+        runMain(tmpFolder, "flip", "H", "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void orientChainBlue() throws IOException {
+    assertEquals(Utils.loadPicture("images/blueR9064x32doc.png"),
+        runMain(tmpFolder, "orient", "H", "270", "H",
+          "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void orientCancellingChainBlue() throws IOException {
+    assertEquals(Utils.loadPicture("images/blue64x32doc.png"),
+        runMain(tmpFolder, "orient", "90", "H", "270", "V",
+          "images/blue64x32doc.png"));
+  }
+
   @Test
   public void blurBWPatterns() throws IOException {
     assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"),
         runMain(tmpFolder, "blur", "images/bwpatterns64x64.png"));
   }
 
+  @Test
+  public void blurRadiusZeroIsIdentity() throws IOException {
+    assertEquals(Utils.loadPicture("images/rainbow64x64doc.png"),
+        runMain(tmpFolder, "blur", "0", "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void blurMirrorWhite() throws IOException {
+    assertEquals(Utils.loadPicture("images/white64x64.png"),
+        runMain(tmpFolder, "blur", "5", "mirror", "images/white64x64.png"));
+  }
+
+  /* The floor mean of each (2 * radius + 1) square, summed pixel by pixel */
+  private static int[] naiveBlur(Picture picture, int radius,
+      Process.Border border) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int area = (2 * radius + 1) * (2 * radius + 1);
+    int[] expected = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r = 0, g = 0, b = 0;
+        for (int dy = -radius; dy <= radius; dy++) {
+          for (int dx = -radius; dx <= radius; dx++) {
+            int rgb = picture.getRGB(border.index(x + dx, width),
+                border.index(y + dy, height));
+            r += (rgb >> 16) & 0xff;
+            g += (rgb >> 8) & 0xff;
+            b += rgb & 0xff;
+          }
+        }
+        expected[y * width + x] = (r / area) << 16 | (g / area) << 8
+            | (b / area);
+      }
+    }
+    return expected;
+  }
+
+  @Test
+  public void blurMatchesNaiveAverage() {
+    Picture picture = Utils.createPicture(23, 11);
+    for (int y = 0; y < 11; y++) {
+      for (int x = 0; x < 23; x++) {
+        picture.setRGB(x, y, ((x * 37 + y * 11) & 0xff) << 16
+            | ((x * y * 5) & 0xff) << 8 | ((x ^ (y * 29)) & 0xff));
+      }
+    }
+    Picture gray = Process.grayscale(picture);
+    Process.Border[] borders = { Process.Border.CLAMP,
+        Process.Border.MIRROR };
+    for (Process.Border border : borders) {
+      for (int radius : new int[] { 1, 2, 5, 11, 12, 30 }) {
+        for (Picture source : new Picture[] { picture, gray }) {
+          int[] expected = naiveBlur(source, radius, border);
+          Picture blurred = Process.blur(source, radius, border);
+          for (int y = 0; y < 11; y++) {
+            for (int x = 0; x < 23; x++) {
+              assertEquals(border + " radius " + radius + " at " + x + ","
+                  + y, expected[y * 23 + x], blurred.getRGB(x, y) & 0xffffff);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void blurBWPatternsInParallel() throws IOException {
+    assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"),
+        runMain(tmpFolder, "--parallelism=4", "blur",
+          "images/bwpatterns64x64.png"));
+  }
+
+  /* Every operation, on pictures tall enough to be cut into several strips */
+  private static Picture[] runEveryOperation(Picture first, Picture second) {
+    Picture[] both = { first, second };
+    return new Picture[] { Process.invert(first), Process.grayscale(first),
+        Process.rotate(first, Process.Angle._90),
+        Process.rotate(first, Process.Angle._180),
+        Process.flip(first, Process.Direction.H),
+        Process.flip(first, Process.Direction.V), Process.blur(first),
+        Process.blur(first, 3, Process.Border.MIRROR), Process.blend(both),
+        Process.mosaic(3, both) };
+  }
+
+  @Test
+  public void parallelRunsMatchSequentialRuns() {
+    Picture first = Utils.createPicture(8, 20000);
+    Picture second = Utils.createPicture(8, 20000);
+    for (int y = 0; y < 20000; y++) {
+      for (int x = 0; x < 8; x++) {
+        first.setRGB(x, y, (y * 7919 + x * 104729) & 0xffffff);
+        second.setRGB(x, y, (y * 31 ^ x * 1299709) & 0xffffff);
+      }
+    }
+
+    try {
+      Scheduler.setParallelism(1);
+      Picture[] sequential = runEveryOperation(first, second);
+      Scheduler.setParallelism(4);
+      Picture[] parallel = runEveryOperation(first, second);
+      for (int i = 0; i < sequential.length; i++) {
+        assertEquals(sequential[i], parallel[i]);
+      }
+    } finally {
+      Scheduler.setParallelism(Runtime.getRuntime().availableProcessors());
+    }
+  }
+
+  @Test
+  public void schedulingOptionsDoNotOutliveTheirRun() throws IOException {
+    runMain(tmpFolder, "--parallelism=3", "--block-size=7", "invert",
+        "images/red64x64.png");
+    new File(tmpFolder.getRoot(), "out.png").delete();
+    runMain(tmpFolder, "invert", "images/red64x64.png");
+
+    assertEquals(Runtime.getRuntime().availableProcessors(),
+        Scheduler.getParallelism());
+    assertEquals(Process.DEFAULT_BLOCK_SIZE, Process.getBlockSize());
+  }
+
+  @Test
+  public void blurBWPatternsInStrips() throws IOException {
+    assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"),
+        runMain(tmpFolder, "--stream=5", "blur",
+          "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void streamingDoesNotOutliveItsRun() throws IOException {
+    File streamed = new File(tmpFolder.getRoot(), "streamed.png");
+    Main.main(new String[] { "--stream", "invert", "images/black64x64.png",
+        streamed.getPath() });
+    assertEquals(Utils.loadPicture("images/white64x64.png"),
+        Utils.loadPicture(streamed.getPath()));
+
+    // Rotations cannot be streamed, so this only works in memory
+    assertEquals(Utils.loadPicture("images/green64x64R90doc.png"),
+        runMain(tmpFolder, "rotate", "90", "images/green64x64doc.png"));
+  }
+
   @Test
   public void blendRainbowPatterns() throws IOException {
     assertEquals(Utils.loadPicture("images/rainbowpatternsblend64x64.png"),
@@ -53,6 +234,13 @@ public class TestSuite {
           "images/rainbow64x64doc.png"));
   }
 
+  @Test
+  public void blendEqualWeightsRainbowPatterns() throws IOException {
+    assertEquals(Utils.loadPicture("images/rainbowpatternsblend64x64.png"),
+        runMain(tmpFolder, "blend", "--weights=3,3",
+          "images/bwpatterns64x64.png", "images/rainbow64x64doc.png"));
+  }
+
   /* This should always be successful as there are no reference images... */
   @Test
   public void mosaicBlackWhiteGreenBlue() throws IOException {
@@ -61,4 +249,93 @@ public class TestSuite {
           "images/green64x64doc.png", "images/blue64x32doc.png"));
   }
 
+  @Test
+  public void mosaicSquareTilesSpelledOut() throws IOException {
+    assertEquals(Utils.loadPicture("images/blackwhitegreenblueMosaic64x64.png"),
+        runMain(tmpFolder, "mosaic", "10x10", "images/black64x64.png",
+          "images/white64x64.png", "images/green64x64doc.png",
+          "images/blue64x32doc.png"));
+  }
+
+  @Test
+  public void mosaicRectangularTiles() throws IOException {
+    Picture[] pictures = { Utils.loadPicture("images/rainbow64x64doc.png"),
+        Utils.loadPicture("images/sunset64x32.png"),
+        Utils.loadPicture("images/green64x64doc.png") };
+    Picture mosaic = runMain(tmpFolder, "mosaic", "7x5",
+        "images/rainbow64x64doc.png", "images/sunset64x32.png",
+        "images/green64x64doc.png");
+
+    assertEquals(63, mosaic.getWidth());
+    assertEquals(30, mosaic.getHeight());
+    for (int y = 0; y < 30; y++) {
+      for (int x = 0; x < 63; x++) {
+        Picture source = pictures[(x / 7 + y / 5) % 3];
+        assertEquals(source.getRGB(x, y) & 0xffffff,
+            mosaic.getRGB(x, y) & 0xffffff);
+      }
+    }
+  }
+
+  @Test
+  public void batchManifest() throws IOException {
+    File inverted = new File(tmpFolder.getRoot(), "inverted.png");
+    File blurred = new File(tmpFolder.getRoot(), "blurred.png");
+    File manifest = tmpFolder.newFile("manifest.txt");
+    try (PrintWriter out = new PrintWriter(manifest)) {
+      out.println("# comments and blank lines are skipped");
+      out.println("invert images/black64x64.png " + inverted);
+      out.println();
+      out.println("blur images/bwpatterns64x64.png " + blurred);
+    }
+
+    Main.main(new String[] { "--jobs=2", "--batch=" + manifest });
+
+    assertEquals(Utils.loadPicture("images/white64x64.png"),
+        Utils.loadPicture(inverted.getPath()));
+    assertEquals(Utils.loadPicture("images/bwpatternsblur64x64.png"),
+        Utils.loadPicture(blurred.getPath()));
+  }
+
+  @Test
+  public void batchCountsErrorsAsFailures() throws IOException {
+    // 42966 * 49981 bytes is just over the largest array the VM allows
+    File huge = tmpFolder.newFile("huge.pgm");
+    Files.write(huge.toPath(),
+        "P5\n42966 49981\n255\n".getBytes(StandardCharsets.US_ASCII));
+    File inverted = new File(tmpFolder.getRoot(), "inverted.png");
+    List<Batch.Job> jobs = Arrays.asList(
+        new Batch.Job("huge", "invert", huge.getPath(),
+            new File(tmpFolder.getRoot(), "huge.png").getPath()),
+        new Batch.Job("black", "invert", "images/black64x64.png",
+            inverted.getPath()));
+
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    Batch.Report report = Batch.run(jobs, 2, new PrintStream(errors, true));
+    assertEquals(2, report.getJobs());
+    assertEquals(1, report.getFailures());
+    assertTrue(errors.toString().startsWith("huge: "));
+    assertEquals(Utils.loadPicture("images/white64x64.png"),
+        Utils.loadPicture(inverted.getPath()));
+  }
+
+  @Test
+  public void previewInvertRainbow() throws IOException {
+    Picture preview = runMain(tmpFolder, "--preview=16", "invert",
+        "images/rainbow64x64doc.png");
+    assertEquals(16, preview.getWidth());
+    assertEquals(Utils.subsample(
+        Utils.loadPicture("images/rainbow64x64doc.png"), 16).getRGB(5, 9)
+        ^ 0xffffff, preview.getRGB(5, 9));
+  }
+
+  @Test
+  public void previewDecodingMatchesSubsampling() {
+    Picture decoded = Utils.loadPicture("images/sunset64x32.png", 20);
+    assertEquals(16, decoded.getWidth());
+    assertEquals(8, decoded.getHeight());
+    assertEquals(Utils.subsample(Utils.loadPicture("images/sunset64x32.png"),
+        20), decoded);
+  }
+
 }
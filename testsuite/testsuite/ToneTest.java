@@ -0,0 +1,82 @@
+package testsuite;
+
+import static org.junit.Assert.assertEquals;
+import static testsuite.TestSuiteHelper.runMain;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import picture.Picture;
+import picture.Process;
+import picture.Tone;
+import picture.Utils;
+
+public class ToneTest {
+
+  @Rule
+  public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void tonesMatchThePointOperations() {
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+
+    assertEquals(Utils.loadPicture("images/rainbowI64x64doc.png"),
+        Process.tone(rainbow, Tone.invert()));
+    assertEquals(Utils.loadPicture("images/rainbowGS64x64doc.png"),
+        Process.tone(rainbow, Tone.grayscale()));
+  }
+
+  @Test
+  public void compiledChainMatchesStepByStep() {
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+    String[] steps = { "gamma=2.2", "red:linear=1.5,-20", "grayscale",
+        "curve=0,255,100,40,255,200", "blue:invert", "grayscale",
+        "threshold=90", "green:gamma=0.5" };
+
+    Picture stepByStep = rainbow;
+    for (String step : steps) {
+      stepByStep = Process.tone(stepByStep, Tone.parse(step));
+    }
+    assertEquals(stepByStep, Process.tone(rainbow, Tone.compile(steps)));
+  }
+
+  @Test
+  public void curvesInterpolateBetweenPoints() {
+    Picture picture = Utils.createPicture(4, 1);
+    picture.setRGB(0, 0, 0x000000);
+    picture.setRGB(1, 0, 0x404040);
+    picture.setRGB(2, 0, 0x808080);
+    picture.setRGB(3, 0, 0xf0f0f0);
+
+    Picture curved = Process.tone(picture, Tone.curve(64, 0, 128, 255));
+    assertEquals(0x000000, curved.getRGB(1, 0) & 0xffffff);
+    assertEquals(0xffffff, curved.getRGB(2, 0) & 0xffffff);
+    assertEquals(0xffffff, curved.getRGB(3, 0) & 0xffffff);
+  }
+
+  @Test
+  public void channelPrefixLeavesOtherChannels() {
+    Picture picture = Utils.createPicture(1, 1);
+    picture.setRGB(0, 0, 0x102030);
+
+    assertEquals(0xef2030, Process.tone(picture, Tone.parse("red:invert"))
+        .getRGB(0, 0) & 0xffffff);
+  }
+
+  @Test
+  public void toneFromMain() throws IOException {
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+    assertEquals(Process.invert(Process.grayscale(rainbow)),
+        runMain(tmpFolder, "tone", "grayscale", "invert",
+            "images/rainbow64x64doc.png"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void mixingTonesCannotBePerChannel() {
+    Tone.parse("red:grayscale");
+  }
+
+}
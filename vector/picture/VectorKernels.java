@@ -0,0 +1,112 @@
+package picture;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <tt>Kernels</tt> implemented with the incubating Java Vector API. This
+ * class lives in its own source tree because it needs
+ * <tt>--add-modules jdk.incubator.vector</tt> both to compile and to load;
+ * <tt>Kernels.get()</tt> picks it up reflectively when it can, and falls
+ * back to the scalar kernels when it cannot.
+ *
+ * Each method handles whole vectors and finishes the tail of the span with
+ * the scalar code it overrides, so the two always agree.
+ */
+public class VectorKernels extends Kernels {
+
+    private static final VectorSpecies<Integer> SPECIES =
+        IntVector.SPECIES_PREFERRED;
+
+    /* x / 3 == (x * DIVIDE_BY_3) >>> 17 for every x below 2^16 */
+    private static final int DIVIDE_BY_3 = 0xaaab;
+
+    @Override
+    public String getName() {
+        return "vector-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void invert(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, src, srcOffset + i)
+                .lanewise(VectorOperators.XOR, 0xffffff)
+                .intoArray(dst, dstOffset + i);
+        }
+        super.invert(src, srcOffset + i, dst, dstOffset + i, length - i);
+    }
+
+    @Override
+    public void grayscale(int[] src, int srcOffset, int[] dst, int dstOffset,
+            int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector rgb = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            IntVector average = red(rgb).add(green(rgb)).add(blue(rgb))
+                .mul(DIVIDE_BY_3).lanewise(VectorOperators.LSHR, 17);
+            average.lanewise(VectorOperators.LSHL, 16)
+                .or(average.lanewise(VectorOperators.LSHL, 8))
+                .or(average)
+                .intoArray(dst, dstOffset + i);
+        }
+        super.grayscale(src, srcOffset + i, dst, dstOffset + i, length - i);
+    }
+
+    @Override
+    public void accumulate(int[] src, int srcOffset, int weight, int[] red,
+            int[] green, int[] blue, int sumOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector rgb = IntVector.fromArray(SPECIES, src, srcOffset + i);
+            int s = sumOffset + i;
+            IntVector.fromArray(SPECIES, red, s)
+                .add(red(rgb).mul(weight)).intoArray(red, s);
+            IntVector.fromArray(SPECIES, green, s)
+                .add(green(rgb).mul(weight)).intoArray(green, s);
+            IntVector.fromArray(SPECIES, blue, s)
+                .add(blue(rgb).mul(weight)).intoArray(blue, s);
+        }
+        super.accumulate(src, srcOffset + i, weight, red, green, blue,
+            sumOffset + i, length - i);
+    }
+
+    @Override
+    public void average(int[] red, int[] green, int[] blue, int sumOffset,
+            int divisor, int[] dst, int dstOffset, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            int s = sumOffset + i;
+            IntVector r = IntVector.fromArray(SPECIES, red, s)
+                .lanewise(VectorOperators.DIV, divisor);
+            IntVector g = IntVector.fromArray(SPECIES, green, s)
+                .lanewise(VectorOperators.DIV, divisor);
+            IntVector b = IntVector.fromArray(SPECIES, blue, s)
+                .lanewise(VectorOperators.DIV, divisor);
+            r.lanewise(VectorOperators.LSHL, 16)
+                .or(g.lanewise(VectorOperators.LSHL, 8))
+                .or(b)
+                .intoArray(dst, dstOffset + i);
+        }
+        super.average(red, green, blue, sumOffset + i, divisor, dst,
+            dstOffset + i, length - i);
+    }
+
+    private static IntVector red(IntVector rgb) {
+        return rgb.lanewise(VectorOperators.LSHR, 16).and(0xff);
+    }
+
+    private static IntVector green(IntVector rgb) {
+        return rgb.lanewise(VectorOperators.LSHR, 8).and(0xff);
+    }
+
+    private static IntVector blue(IntVector rgb) {
+        return rgb.and(0xff);
+    }
+}